@@ -0,0 +1,175 @@
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+ * Convergecast over the BFS tree. A query goes from the root down to the leaves, partial values
+ * are combined on the way up and the result is sent back down, so a query costs 3 * (N - 1)
+ * messages and O(depth) hops whatever the number of edges. Queries are keyed by id and
+ * independent of each other, any number of them can be in flight on the same tree.
+ *
+ * AGGREGATE content: op,queryId,name,payload(base64)
+ *   REQUEST  a non-root node asks the root to start a query (goes up)
+ *   START    start a query in the subtree (goes down)
+ *   PARTIAL  combined value of a subtree (goes up)
+ *   RESULT   final value (goes down)
+ */
+public class Aggregation {
+    private static final String REQUEST = "REQUEST";
+    private static final String START = "START";
+    private static final String PARTIAL = "PARTIAL";
+    private static final String RESULT = "RESULT";
+
+    private static class Aggregate {
+        Reducer<Object> reducer;
+        Supplier<Object> local;
+    }
+
+    private static class Query {
+        String name;
+        Aggregate aggregate;
+        Object value;
+        int pending;
+    }
+
+    private Node node;
+    private ConcurrentHashMap<String, Aggregate> aggregates = new ConcurrentHashMap<>();
+    private HashMap<String, Query> queries = new HashMap<>();
+    private ConcurrentHashMap<String, CompletableFuture<Object>> waiting = new ConcurrentHashMap<>();
+    private AtomicInteger queryNo = new AtomicInteger();
+
+    public Aggregation(Node node) {
+        this.node = node;
+    }
+
+    /*
+     * Every node has to register the same name with the same reducer. local supplies this
+     * node's contribution when a query reaches it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void register(String name, Reducer<T> reducer, Supplier<T> local) {
+        Aggregate a = new Aggregate();
+        a.reducer = (Reducer<Object>) reducer;
+        a.local = (Supplier<Object>) local;
+        aggregates.put(name, a);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> query(String name) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (!aggregates.containsKey(name)) {
+            future.completeExceptionally(new Exception(String.format("Unknown aggregate: %s", name)));
+        } else if (node.getBuildTreeState() != BuildTreeState.DONE) {
+            future.completeExceptionally(new Exception("BFS tree is not built."));
+        } else {
+            String queryId = node.getId() + "." + queryNo.incrementAndGet();
+            waiting.put(queryId, future);
+            if (isRoot()) {
+                start(queryId, name);
+            } else {
+                send(node.getParent(), REQUEST, queryId, name, "");
+            }
+        }
+        return (CompletableFuture<T>) future;
+    }
+
+    public void process(Msg msg) {
+        String[] t = msg.getContent().split(",", 4);
+        String op = t[0];
+        String queryId = t[1];
+        String name = t[2];
+        String payload = t.length > 3 ? t[3] : "";
+
+        if (op.equals(REQUEST)) {
+            if (isRoot()) {
+                start(queryId, name);
+            } else {
+                send(node.getParent(), REQUEST, queryId, name, "");
+            }
+        } else if (op.equals(START)) {
+            start(queryId, name);
+        } else if (op.equals(PARTIAL)) {
+            combine(queryId, payload);
+        } else if (op.equals(RESULT)) {
+            finish(queryId, name, payload);
+        }
+    }
+
+    private synchronized void start(String queryId, String name) {
+        Aggregate a = aggregates.get(name);
+        if (a == null) {
+            // the subtree is left out, but the query still completes
+            Logger.Error("Unknown aggregate %s in query %s", name, queryId);
+            if (isRoot()) {
+                finish(queryId, name, "");
+            } else {
+                send(node.getParent(), PARTIAL, queryId, name, "");
+            }
+            return;
+        }
+
+        Query q = new Query();
+        q.name = name;
+        q.aggregate = a;
+        q.value = a.local.get();
+        q.pending = node.getChildren().size();
+        queries.put(queryId, q);
+        for (int child : node.getChildren().keySet()) {
+            send(child, START, queryId, name, "");
+        }
+        if (q.pending == 0) {
+            complete(queryId, q);
+        }
+    }
+
+    private synchronized void combine(String queryId, String payload) {
+        Query q = queries.get(queryId);
+        if (q == null) {
+            return;
+        }
+        if (!payload.isEmpty()) {
+            q.value = q.aggregate.reducer.combine(q.value, q.aggregate.reducer.decode(Base64.getDecoder().decode(payload)));
+        }
+        q.pending--;
+        if (q.pending == 0) {
+            complete(queryId, q);
+        }
+    }
+
+    private void complete(String queryId, Query q) {
+        queries.remove(queryId);
+        String payload = Base64.getEncoder().encodeToString(q.aggregate.reducer.encode(q.value));
+        if (isRoot()) {
+            finish(queryId, q.name, payload);
+        } else {
+            send(node.getParent(), PARTIAL, queryId, q.name, payload);
+        }
+    }
+
+    private void finish(String queryId, String name, String payload) {
+        for (int child : node.getChildren().keySet()) {
+            send(child, RESULT, queryId, name, payload);
+        }
+        CompletableFuture<Object> future = waiting.remove(queryId);
+        if (future == null) {
+            return;
+        }
+        Aggregate a = aggregates.get(name);
+        if (a == null || payload.isEmpty()) {
+            future.completeExceptionally(new Exception(String.format("Aggregate %s has no result.", name)));
+        } else {
+            future.complete(a.reducer.decode(Base64.getDecoder().decode(payload)));
+        }
+    }
+
+    private boolean isRoot() {
+        return node.getParent() == node.getId();
+    }
+
+    private void send(int toId, String op, String queryId, String name, String payload) {
+        node.getMsgService().sendMsg(MsgFactory.aggregateMsg(node, toId, op + "," + queryId + "," + name + "," + payload));
+    }
+}
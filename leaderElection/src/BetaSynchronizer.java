@@ -0,0 +1,341 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Beta synchronizer over the tree of the previous run.
+ *
+ * Setup: every edge carries HELLO,<tree epoch>,<T|N>. A node without a tree, with a tree of another
+ * epoch, or with an edge only one side counts as a tree edge floods FAIL and every node falls back
+ * to alpha. Otherwise OKs are collected over the tree by saturation and COMMIT,<depth>,<head> goes
+ * back from where they met, as in Restore. Costs 2|E| + 2(N - 1) messages once per run.
+ *
+ * Rounds: a real message is acknowledged once it was processed (ACK,r). A node with all messages of
+ * round r acknowledged is safe, SAFE,r is collected by saturation over the tree and PULSE,r sent
+ * back, and the round is done when the pulse arrives.
+ *
+ * SYNC content: HELLO,key,T|N | OK | FAIL | COMMIT,depth,head | ACK,r | SAFE,r | PULSE,r
+ */
+public class BetaSynchronizer implements Synchronizer {
+    protected static final String HELLO = "HELLO";
+    protected static final String OK = "OK";
+    protected static final String FAIL = "FAIL";
+    protected static final String COMMIT = "COMMIT";
+    protected static final String ACK = "ACK";
+    protected static final String SAFE = "SAFE";
+    protected static final String PULSE = "PULSE";
+
+    // a convergecast by saturation and the broadcast back from where it met
+    protected static class Wave {
+        Set<Integer> reported = new HashSet<>();
+        int reportedTo = -1;
+        boolean done;
+    }
+
+    protected static class Round {
+        int pending;
+        boolean ended;
+        boolean done;
+        Set<Integer> neighborSafe = new HashSet<>();
+        Wave[] waves;
+    }
+
+    protected Node node;
+    protected int treeKey;
+    protected List<Integer> tree;
+    protected int head = -1;
+    protected volatile Boolean decision;
+    private int epoch;
+    private AlphaSynchronizer fallback;
+    private Wave setup = new Wave();
+    private int helloNo;
+    private boolean started;
+    private boolean failed;
+    private HashMap<Integer, Round> rounds = new HashMap<>();
+
+    // called before the tree of the previous run is cleared
+    public BetaSynchronizer(Node node) {
+        this.node = node;
+        this.epoch = node.getEpoch();
+        this.treeKey = node.getTreeEpoch();
+        this.tree = node.getTreeNeighborIds();
+        this.fallback = new AlphaSynchronizer(node);
+    }
+
+    @Override
+    public void start() throws InterruptedException {
+        synchronized (this) {
+            started = true;
+            for (int nId : node.getNeighbors().keySet()) {
+                send(nId, join(HELLO, treeKey, tree.contains(nId) ? "T" : "N"));
+            }
+            if (!hasTree()) {
+                fail();
+            } else {
+                checkSetup();
+            }
+        }
+        for (long seen = node.getProgress(); decision == null && !node.isRunAborted(); seen = node.getProgress()) {
+            node.awaitProgress(seen);
+        }
+        if (decision == Boolean.FALSE) {
+            Logger.Info("Synchronizer: no tree shared by all nodes, falling back to alpha.");
+        } else if (decision == Boolean.TRUE) {
+            Logger.Info("Synchronizer: %s", describe());
+        }
+    }
+
+    @Override
+    public void sent(Msg msg, int round) {
+        if (isAlpha()) {
+            fallback.sent(msg, round);
+            return;
+        }
+        synchronized (this) {
+            round(round).pending++;
+        }
+    }
+
+    @Override
+    public void endRound(int round, Collection<Integer> peers, Msg empty) {
+        if (isAlpha()) {
+            fallback.endRound(round, peers, empty);
+            return;
+        }
+        synchronized (this) {
+            round(round).ended = true;
+            check(round);
+        }
+    }
+
+    @Override
+    public void received(Msg msg, int round) {
+        if (isAlpha()) {
+            fallback.received(msg, round);
+            return;
+        }
+        send(msg.getFromId(), join(ACK, round));
+    }
+
+    @Override
+    public boolean isRoundDone(int round) {
+        if (isAlpha()) {
+            return fallback.isRoundDone(round);
+        }
+        synchronized (this) {
+            Round rd = rounds.get(round);
+            return round < 1 || (rd != null && rd.done);
+        }
+    }
+
+    @Override
+    public synchronized void process(Msg msg) {
+        String[] t = msg.getContent().split(",");
+        String op = t[0];
+        int from = msg.getFromId();
+        if (op.equals(HELLO)) {
+            helloNo++;
+            if (!hasTree() || Integer.parseInt(t[1]) != treeKey || t[2].equals("T") != tree.contains(from)) {
+                fail();
+            } else {
+                checkSetup();
+            }
+        } else if (op.equals(OK)) {
+            setup.reported.add(from);
+            checkSetup();
+        } else if (op.equals(FAIL)) {
+            fail();
+        } else if (op.equals(COMMIT)) {
+            commit(from, Integer.parseInt(t[1]), Integer.parseInt(t[2]));
+        } else if (op.equals(ACK)) {
+            int r = Integer.parseInt(t[1]);
+            round(r).pending--;
+            check(r);
+        } else if (!processWave(op, from, t)) {
+            processOther(op, from, t);
+        }
+    }
+
+    @Override
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String getName() {
+        return isAlpha() ? "alpha" : "beta";
+    }
+
+    protected String describe() {
+        return String.format("beta over the epoch %d tree.", treeKey);
+    }
+
+    // the waves of a round, {report, broadcast back} each, run one after the other
+    protected String[][] waves() {
+        return new String[][] { { SAFE, PULSE } };
+    }
+
+    protected List<Integer> waveEdges() {
+        return tree;
+    }
+
+    protected boolean isReady(Round rd, int wave) {
+        return rd.ended && rd.pending == 0;
+    }
+
+    // the setup found a common tree, depth counts from where the OKs met
+    protected void committed(int from, int partner, int depth, int parentHead) {
+        head = node.getId();
+        decision = true;
+    }
+
+    protected void turned(int r, int wave) {
+    }
+
+    protected void processOther(String op, int from, String[] t) {
+    }
+
+    protected boolean isAlpha() {
+        return decision == Boolean.FALSE;
+    }
+
+    protected Round round(int r) {
+        Round rd = rounds.get(r);
+        if (rd == null) {
+            rd = new Round();
+            rd.waves = new Wave[waves().length];
+            for (int i = 0; i < rd.waves.length; i++) {
+                rd.waves[i] = new Wave();
+            }
+            rounds.put(r, rd);
+        }
+        return rd;
+    }
+
+    protected void check(int r) {
+        Round rd = round(r);
+        for (int i = 0; i < rd.waves.length; i++) {
+            Wave w = rd.waves[i];
+            if (w.done) {
+                continue;
+            }
+            if (!isReady(rd, i)) {
+                return;
+            }
+            List<Integer> waiting = waiting(w, waveEdges());
+            if (waiting.isEmpty()) {
+                turn(r, i, -1);
+            } else if (waiting.size() == 1 && w.reportedTo == -1) {
+                w.reportedTo = waiting.get(0);
+                send(w.reportedTo, join(waves()[i][0], r));
+            }
+            return;
+        }
+    }
+
+    private void turn(int r, int i, int from) {
+        Round rd = round(r);
+        Wave w = rd.waves[i];
+        if (w.done) {
+            return;
+        }
+        w.done = true;
+        for (int nId : waveEdges()) {
+            if (nId != from && nId != w.reportedTo) {
+                send(nId, join(waves()[i][1], r));
+            }
+        }
+        turned(r, i);
+        if (i == rd.waves.length - 1) {
+            rd.done = true;
+            rounds.keySet().removeIf(k -> k < r - 1);
+        } else {
+            check(r);
+        }
+    }
+
+    private boolean processWave(String op, int from, String[] t) {
+        String[][] waves = waves();
+        for (int i = 0; i < waves.length; i++) {
+            int r;
+            if (op.equals(waves[i][0])) {
+                r = Integer.parseInt(t[1]);
+                round(r).waves[i].reported.add(from);
+                check(r);
+                return true;
+            } else if (op.equals(waves[i][1])) {
+                r = Integer.parseInt(t[1]);
+                turn(r, i, from);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasTree() {
+        return treeKey != -1 && node.getNeighbors().keySet().containsAll(tree);
+    }
+
+    private void checkSetup() {
+        if (!started || failed || setup.done || helloNo < node.getNeighbors().size()) {
+            return;
+        }
+        List<Integer> waiting = waiting(setup, tree);
+        if (waiting.isEmpty()) {
+            commit(-1, 0, node.getId());
+        } else if (waiting.size() == 1 && setup.reportedTo == -1) {
+            setup.reportedTo = waiting.get(0);
+            send(setup.reportedTo, OK);
+        }
+    }
+
+    private void commit(int from, int depth, int parentHead) {
+        if (setup.done) {
+            return;
+        }
+        setup.done = true;
+        committed(from, from == -1 ? setup.reportedTo : -1, depth, parentHead);
+        for (int nId : tree) {
+            if (nId != from && nId != setup.reportedTo) {
+                send(nId, join(COMMIT, depth + 1, head));
+            }
+        }
+    }
+
+    private void fail() {
+        if (failed || setup.done) {
+            return;
+        }
+        failed = true;
+        decision = false;
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, FAIL);
+        }
+    }
+
+    protected static List<Integer> waiting(Wave w, List<Integer> edges) {
+        List<Integer> waiting = new ArrayList<>();
+        for (int nId : edges) {
+            if (!w.reported.contains(nId)) {
+                waiting.add(nId);
+            }
+        }
+        return waiting;
+    }
+
+    protected static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    protected void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.syncMsg(node, toId, content));
+    }
+}
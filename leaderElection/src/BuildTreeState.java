@@ -0,0 +1,3 @@
+public enum BuildTreeState {
+    WAITING, MARKED, DONE
+}
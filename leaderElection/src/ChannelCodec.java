@@ -0,0 +1,123 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Encoding of one direction of a channel, the sender and the reader each keep their own state.
+ *
+ * A frame only carries the fields that differ from the previous frame on the channel:
+ *     ~<mask>[z]|<changed fields>
+ * where bit i of the hex mask marks field i as changed. Contents of at least minBytes are deflated
+ * (z) into one stream per channel, flushed per frame, so earlier contents and a preset dictionary
+ * of the protocol's words act as the dictionary. Frames without ~ (CONNECT, DISCONNECT) are sent
+ * as they are and do not touch the state. TCP keeps the frames in order, which both sides rely on.
+ */
+public class ChannelCodec {
+    private static final byte[] DICTIONARY = dictionary();
+    private static final byte[] SYNC_TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+    private int minBytes;
+    private String[] last;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buf = new byte[1024];
+
+    public ChannelCodec(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    public static boolean isEncoded(byte[] frame, int len) {
+        return len > 0 && frame[0] == '~';
+    }
+
+    public String encode(String line) {
+        String[] fields = line.split("\\|", -1);
+        int n = fields.length;
+        int mask = 0;
+        for (int i = 0; i < n; i++) {
+            if (last == null || last.length != n || !fields[i].equals(last[i])) {
+                mask |= 1 << i;
+            }
+        }
+        boolean z = (mask & (1 << (n - 1))) != 0 && fields[n - 1].length() >= minBytes;
+        StringBuilder sb = new StringBuilder(line.length());
+        sb.append('~').append(Integer.toHexString(mask));
+        if (z) {
+            sb.append('z');
+        }
+        for (int i = 0; i < n; i++) {
+            if ((mask & (1 << i)) != 0) {
+                sb.append('|').append(z && i == n - 1 ? deflate(fields[i]) : fields[i]);
+            }
+        }
+        last = fields;
+        return sb.toString();
+    }
+
+    public String decode(String frame) throws DataFormatException {
+        int bar = frame.indexOf('|');
+        String head = bar == -1 ? frame.substring(1) : frame.substring(1, bar);
+        boolean z = head.endsWith("z");
+        int mask = Integer.parseInt(z ? head.substring(0, head.length() - 1) : head, 16);
+        String[] changed = bar == -1 ? new String[0] : frame.substring(bar + 1).split("\\|", -1);
+        String[] fields = last == null ? new String[Integer.bitCount(mask)] : Arrays.copyOf(last, last.length);
+        int c = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                fields[i] = z && i == fields.length - 1 ? inflate(changed[c++]) : changed[c++];
+            }
+        }
+        last = fields;
+        return String.join("|", fields);
+    }
+
+    private String deflate(String content) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        deflater.setInput(content.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+        } while (n == buf.length);
+        // every flush ends with the same empty block, the reader adds it back
+        byte[] bytes = out.toByteArray();
+        return Base64.getEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, bytes.length - SYNC_TAIL.length));
+    }
+
+    private String inflate(String encoded) throws DataFormatException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+        }
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        byte[] input = Arrays.copyOf(bytes, bytes.length + SYNC_TAIL.length);
+        System.arraycopy(SYNC_TAIL, 0, input, bytes.length, SYNC_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int n;
+        do {
+            n = inflater.inflate(buf);
+            out.write(buf, 0, n);
+        } while (n > 0 || (!inflater.needsInput() && !inflater.finished()));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // words that show up in most contents, later words are cheaper to refer to
+    private static byte[] dictionary() {
+        StringBuilder sb = new StringBuilder();
+        for (String a : Tracer.ACTIONS) {
+            sb.append(a).append(',');
+        }
+        sb.append("HELLO,OK,FAIL,COMMIT,ACK,SAFE,PULSE,CLUSTER,MIN,PREF,CSAFE,NSAFE,READY,");
+        sb.append("ACCEPT,REJECT,LEADER,EMPTY,SEARCH,QUERY,RESULT,DONE,0,1,2,3,4,5,6,7,8,9,");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * On-disk snapshot of the election and BFS result of one node, checkpoint_<id>_e<epoch>.bin,
+ * written and read through a memory mapping.
+ *
+ * Header: magic(int) nodeId(int) epoch(int) length(int) topologyHash(long) timestamp(long)
+ * Body:   electState(int) leader(int) parent(int) maxDegree(int) childrenNo(int) children(int...)
+ *         ancestorsNo(int) ancestors(int...)
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x43484b50;
+    private static final int HEADER_SIZE = 32;
+
+    private int nodeId;
+    private int epoch;
+    private long topologyHash;
+    private long timestamp;
+
+    private int electState;
+    private int leader;
+    private int parent;
+    private int maxDegree;
+    private List<Integer> children = new ArrayList<>();
+    private List<Integer> ancestors = new ArrayList<>();
+
+    public static Checkpoint capture(Node node, long topologyHash) {
+        Checkpoint cp = new Checkpoint();
+        cp.nodeId = node.getId();
+        cp.epoch = node.getEpoch();
+        cp.topologyHash = topologyHash;
+        cp.timestamp = System.currentTimeMillis();
+        cp.electState = node.getElectState().ordinal();
+        cp.leader = node.getLargestUID();
+        cp.parent = node.getParent();
+        cp.maxDegree = node.getMaxDegree();
+        cp.children.addAll(node.getChildren().keySet());
+        cp.ancestors.addAll(node.getAncestors());
+        return cp;
+    }
+
+    public void save(String dir) throws IOException {
+        new File(dir).mkdirs();
+        File file = new File(dir, String.format("checkpoint_%d_e%d.bin", nodeId, epoch));
+        int length = 24 + 4 * (children.size() + ancestors.size());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + length);
+            buf.putInt(MAGIC).putInt(nodeId).putInt(epoch).putInt(length);
+            buf.putLong(topologyHash).putLong(timestamp);
+            buf.putInt(electState).putInt(leader).putInt(parent).putInt(maxDegree).putInt(children.size());
+            for (int c : children) {
+                buf.putInt(c);
+            }
+            buf.putInt(ancestors.size());
+            for (int a : ancestors) {
+                buf.putInt(a);
+            }
+            buf.force();
+        }
+    }
+
+    public static Checkpoint load(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC) {
+                return null;
+            }
+            Checkpoint cp = new Checkpoint();
+            cp.nodeId = buf.getInt();
+            cp.epoch = buf.getInt();
+            int length = buf.getInt();
+            cp.topologyHash = buf.getLong();
+            cp.timestamp = buf.getLong();
+            if (ch.size() < HEADER_SIZE + length) {
+                return null;
+            }
+            cp.electState = buf.getInt();
+            cp.leader = buf.getInt();
+            cp.parent = buf.getInt();
+            cp.maxDegree = buf.getInt();
+            int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                cp.children.add(buf.getInt());
+            }
+            // checkpoints written before the path was kept end here
+            if (buf.remaining() >= 4) {
+                n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    cp.ancestors.add(buf.getInt());
+                }
+            }
+            return cp;
+        }
+    }
+
+    // newest checkpoint of the node that was taken on the same topology
+    public static Checkpoint loadLatest(String dir, int nodeId, long topologyHash) throws IOException {
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith("checkpoint_" + nodeId + "_e"));
+        Checkpoint latest = null;
+        if (files == null) {
+            return null;
+        }
+        for (File f : files) {
+            Checkpoint cp = load(f);
+            if (cp != null && cp.nodeId == nodeId && cp.topologyHash == topologyHash
+                    && (latest == null || cp.timestamp > latest.timestamp)) {
+                latest = cp;
+            }
+        }
+        return latest;
+    }
+
+    /*
+     * Hash of the whole config, not only of the own neighbors: a change anywhere in the network
+     * can change the leader and the tree.
+     */
+    public static long topologyHash(String configPath) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (BufferedReader br = new BufferedReader(new FileReader(configPath))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.split("#")[0].trim().toLowerCase().replaceAll("\\s+", " ");
+                if (!line.isEmpty()) {
+                    md.update(line.getBytes(StandardCharsets.UTF_8));
+                    md.update((byte) '\n');
+                }
+            }
+        }
+        byte[] digest = md.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    // checkpoints of different nodes belong together if they have the same key
+    public String key() {
+        return String.format("%d:%x:%d", epoch, topologyHash, leader);
+    }
+
+    public List<Integer> getTreeNeighborIds() {
+        List<Integer> ids = new ArrayList<>(children);
+        if (parent != nodeId && parent != -1) {
+            ids.add(parent);
+        }
+        return ids;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public ElectState getElectState() {
+        return ElectState.values()[electState];
+    }
+
+    public int getLeader() {
+        return leader;
+    }
+
+    public int getParent() {
+        return parent;
+    }
+
+    public int getMaxDegree() {
+        return maxDegree;
+    }
+
+    public List<Integer> getChildren() {
+        return children;
+    }
+
+    public List<Integer> getAncestors() {
+        return ancestors;
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Degree bound of the tree (-degreeBound=<k>). When the DEGREE convergecast tells the root that
+ * the tree is above k, it runs passes of a local improvement before END:
+ * - PROBE goes down the tree with the path from the root, and every node sends its tree degree
+ *   and path to all neighbors (INFO).
+ * - a child of a node above k looks for a neighbor below k outside its own subtree (the child is
+ *   not on the neighbor's path) to move under. The best move, off the node of the highest degree,
+ *   goes up with the max degree seen (PROPOSE).
+ * - the root sends MOVE down to the chosen child, which leaves its parent (LEAVE, LEFT) and is
+ *   adopted by the new one (ADOPT). MOVED goes up from there to the root, the next pass starts.
+ * A move takes one degree off a node above k and lifts no node above it, so the passes end, either
+ * within k or with no move left. A pass costs 2|E| + O(N) messages. END then sends the new paths.
+ *
+ * BOUND content: op,pass,args...
+ */
+public class DegreeBound {
+    private static final String PROBE = "PROBE";
+    private static final String INFO = "INFO";
+    private static final String PROPOSE = "PROPOSE";
+    private static final String MOVE = "MOVE";
+    private static final String LEAVE = "LEAVE";
+    private static final String LEFT = "LEFT";
+    private static final String ADOPT = "ADOPT";
+    private static final String MOVED = "MOVED";
+
+    private static class Pass {
+        boolean probed;
+        boolean reported;
+        HashMap<Integer, Integer> degrees = new HashMap<>();
+        HashMap<Integer, String> paths = new HashMap<>();
+        Set<Integer> proposed = new HashSet<>();
+        int maxDegree;
+        int bestScore = -1;
+        int bestChild;
+        int bestTarget;
+        int bestVia = -1;
+    }
+
+    private Node node;
+    private int bound;
+    private TreeMap<Integer, Pass> passes = new TreeMap<>();
+    private int target = -1;
+    private int moves;
+
+    public DegreeBound(Node node, int bound) {
+        this.node = node;
+        this.bound = bound;
+    }
+
+    // called on the root once the tree is built
+    public synchronized void start() {
+        Logger.Info("[BOUND] Tree max degree %d is above %d, moving children", node.getMaxDegree(), bound);
+        begin(0);
+    }
+
+    public synchronized void process(Msg msg) {
+        String[] t = msg.getContent().split(",");
+        String op = t[0];
+        int p = Integer.parseInt(t[1]);
+        int from = msg.getFromId();
+
+        if (op.equals(PROBE)) {
+            node.setAncestors(t[2]);
+            begin(p);
+        } else if (op.equals(INFO)) {
+            Pass s = pass(p);
+            s.degrees.put(from, Integer.parseInt(t[2]));
+            s.paths.put(from, t[3]);
+            check(p, s);
+        } else if (op.equals(PROPOSE)) {
+            Pass s = pass(p);
+            s.proposed.add(from);
+            s.maxDegree = Math.max(s.maxDegree, Integer.parseInt(t[2]));
+            offer(s, Integer.parseInt(t[3]), Integer.parseInt(t[4]), Integer.parseInt(t[5]), from);
+            check(p, s);
+        } else if (op.equals(MOVE)) {
+            int child = Integer.parseInt(t[2]);
+            if (child == node.getId()) {
+                target = Integer.parseInt(t[3]);
+                send(node.getParent(), join(LEAVE, p));
+            } else {
+                send(pass(p).bestVia, msg.getContent());
+            }
+        } else if (op.equals(LEAVE)) {
+            node.removeChild(from);
+            send(from, join(LEFT, p));
+        } else if (op.equals(LEFT)) {
+            node.setParent(target);
+            send(target, join(ADOPT, p));
+        } else if (op.equals(ADOPT)) {
+            node.addChild(from);
+            moved(p);
+        } else if (op.equals(MOVED)) {
+            moved(p);
+        }
+    }
+
+    private void begin(int p) {
+        passes.headMap(p).clear();
+        Pass s = pass(p);
+        s.probed = true;
+        String path = path(node);
+        for (int child : node.getChildren().keySet()) {
+            send(child, join(PROBE, p, path));
+        }
+        int degree = node.getTreeNeighborIds().size();
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, join(INFO, p, degree, path));
+        }
+        check(p, s);
+    }
+
+    private void check(int p, Pass s) {
+        if (!s.probed || s.reported || s.degrees.size() < node.getNeighbors().size()
+                || !s.proposed.containsAll(node.getChildren().keySet())) {
+            return;
+        }
+        s.reported = true;
+        s.maxDegree = Math.max(s.maxDegree, node.getTreeNeighborIds().size());
+        int parent = node.getParent();
+        if (parent == node.getId()) {
+            decide(p, s);
+            return;
+        }
+        if (s.degrees.get(parent) > bound) {
+            int best = -1;
+            for (int nId : s.degrees.keySet()) {
+                if (nId == parent || s.degrees.get(nId) >= bound || inSubtree(s.paths.get(nId))) {
+                    continue;
+                }
+                if (best == -1 || s.degrees.get(nId) < s.degrees.get(best)
+                        || (s.degrees.get(nId).equals(s.degrees.get(best)) && nId < best)) {
+                    best = nId;
+                }
+            }
+            if (best != -1) {
+                offer(s, s.degrees.get(parent), node.getId(), best, -1);
+            }
+        }
+        send(parent, join(PROPOSE, p, s.maxDegree, s.bestScore, s.bestChild, s.bestTarget));
+    }
+
+    private void decide(int p, Pass s) {
+        if (s.bestScore == -1) {
+            passes.clear();
+            node.setMaxDegree(s.maxDegree);
+            Logger.Info("[BOUND] %d children moved, tree max degree is %d (bound %d)", moves, s.maxDegree, bound);
+            node.finishTree();
+            return;
+        }
+        Logger.Info("[BOUND] Moving %d under %d", s.bestChild, s.bestTarget);
+        send(s.bestVia, join(MOVE, p, s.bestChild, s.bestTarget));
+    }
+
+    // the new parent tells the root that the move is done
+    private void moved(int p) {
+        if (node.getParent() != node.getId()) {
+            send(node.getParent(), join(MOVED, p));
+            return;
+        }
+        moves++;
+        begin(p + 1);
+    }
+
+    // a neighbor whose path from the root runs through this node
+    private boolean inSubtree(String path) {
+        for (String a : path.split("/")) {
+            if (Integer.parseInt(a) == node.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Pass pass(int p) {
+        Pass s = passes.get(p);
+        if (s == null) {
+            s = new Pass();
+            passes.put(p, s);
+        }
+        return s;
+    }
+
+    private static void offer(Pass s, int score, int child, int target, int via) {
+        if (score > s.bestScore || (score == s.bestScore && score != -1 && child < s.bestChild)) {
+            s.bestScore = score;
+            s.bestChild = child;
+            s.bestTarget = target;
+            s.bestVia = via;
+        }
+    }
+
+    private static String path(Node node) {
+        StringBuilder sb = new StringBuilder();
+        for (int a : node.getAncestors()) {
+            sb.append(a).append("/");
+        }
+        return sb.append(node.getId()).toString();
+    }
+
+    private static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    private void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.boundMsg(node, toId, content));
+    }
+}
@@ -0,0 +1,3 @@
+public interface DeliveryListener {
+    void onDeliver(int srcId, String streamId, byte[] data);
+}
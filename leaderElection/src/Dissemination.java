@@ -0,0 +1,115 @@
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Broadcast and multicast along the BFS tree (parent and children) only, N - 1 messages per chunk
+ * instead of one per edge. A node forwards to every tree neighbor except the one the chunk came
+ * from, so starting at any node reaches the whole tree, and starting on a single tree edge
+ * reaches the subtree behind it.
+ * Payloads are split into CHUNK_SIZE chunks and every chunk is forwarded as soon as it arrives,
+ * so a large payload is pipelined down the tree instead of being stored and forwarded whole.
+ *
+ * DISSEMINATE content: streamId,seq,total,chunk(base64)
+ */
+public class Dissemination {
+    public static final int CHUNK_SIZE = 2048;
+
+    private static class Stream {
+        byte[][] chunks;
+        int received;
+    }
+
+    private Node node;
+    private ConcurrentHashMap<String, Stream> streams = new ConcurrentHashMap<>();
+    private List<DeliveryListener> listeners = new CopyOnWriteArrayList<>();
+    private AtomicInteger streamNo = new AtomicInteger();
+
+    public Dissemination(Node node) {
+        this.node = node;
+    }
+
+    public void addListener(DeliveryListener listener) {
+        listeners.add(listener);
+    }
+
+    public String broadcast(byte[] data) {
+        return send(data, node.getTreeNeighborIds());
+    }
+
+    // delivers to the subtrees behind the given tree neighbors
+    public String multicast(byte[] data, Collection<Integer> via) throws Exception {
+        List<Integer> treeNeighbors = node.getTreeNeighborIds();
+        for (int nId : via) {
+            if (!treeNeighbors.contains(nId)) {
+                throw new Exception(String.format("[ %d ] is not a tree neighbor of %d.", nId, node.getId()));
+            }
+        }
+        return send(data, via);
+    }
+
+    private String send(byte[] data, Collection<Integer> targets) {
+        String streamId = node.getId() + "." + streamNo.incrementAndGet();
+        int total = Math.max(1, (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int seq = 0; seq < total; seq++) {
+            byte[] chunk = Arrays.copyOfRange(data, seq * CHUNK_SIZE, Math.min(data.length, (seq + 1) * CHUNK_SIZE));
+            String content = streamId + "," + seq + "," + total + "," + Base64.getEncoder().encodeToString(chunk);
+            for (int toId : targets) {
+                node.getMsgService().sendMsg(MsgFactory.disseminateMsg(node, toId, content));
+            }
+        }
+        return streamId;
+    }
+
+    public void process(Msg msg) {
+        int from = msg.getFromId();
+        for (int toId : node.getTreeNeighborIds()) {
+            if (toId != from) {
+                msg.setFromId(node.getId());
+                msg.setToId(toId);
+                node.getMsgService().sendMsg(msg);
+            }
+        }
+
+        String[] t = msg.getContent().split(",", 4);
+        String streamId = t[0];
+        int seq = Integer.parseInt(t[1]);
+        int total = Integer.parseInt(t[2]);
+        byte[] chunk = t.length > 3 ? Base64.getDecoder().decode(t[3]) : new byte[0];
+
+        Stream s = streams.computeIfAbsent(streamId, k -> {
+            Stream n = new Stream();
+            n.chunks = new byte[total][];
+            return n;
+        });
+        byte[] data = null;
+        synchronized (s) {
+            if (s.chunks[seq] == null) {
+                s.chunks[seq] = chunk;
+                s.received++;
+            }
+            if (s.received == total) {
+                streams.remove(streamId);
+                int size = 0;
+                for (byte[] c : s.chunks) {
+                    size += c.length;
+                }
+                data = new byte[size];
+                int pos = 0;
+                for (byte[] c : s.chunks) {
+                    System.arraycopy(c, 0, data, pos, c.length);
+                    pos += c.length;
+                }
+            }
+        }
+        if (data != null) {
+            for (DeliveryListener listener : listeners) {
+                listener.onDeliver(msg.getSrcId(), streamId, data);
+            }
+        }
+    }
+}
@@ -0,0 +1,3 @@
+public enum ElectState {
+    UNKNOWN, ISLEADER, ISNOTLEADER
+}
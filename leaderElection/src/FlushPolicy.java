@@ -0,0 +1,110 @@
+/*
+ * When the buffered output of a channel is written to the socket.
+ *
+ * message: every message right away, the default, for request/reply phases like TEST/REPLY.
+ * round:   messages of a round wait until the node ends the round, round -1 messages (replies,
+ *          synchronizer and control traffic) go right away.
+ * batch:   a channel is written once maxBytes are buffered.
+ *
+ * In round and batch mode nothing waits longer than maxDelay ms, messages sent from a handler
+ * between rounds are not held up until the next round. The socket options apply to every mode,
+ * TCP_NODELAY is on by default since the coalescing is done here and not by Nagle.
+ *
+ * queued: senders only put the line into a queue of the channel and a writer thread per channel
+ *         writes it, so a neighbor that does not read blocks no send to the others. A queue that
+ *         grows past queueCap lines fails its channel, the neighbor is taken as gone.
+ */
+public class FlushPolicy {
+    public static final String MESSAGE = "message";
+    public static final String ROUND = "round";
+    public static final String BATCH = "batch";
+    public static final int QUEUE_CAP = 10000;
+
+    private String mode;
+    private int maxBytes;
+    private long maxDelay;
+    private boolean noDelay;
+    private int sendBuffer;
+    private int receiveBuffer;
+    // lines a channel may queue, 0 for no queue
+    private int queueCap;
+
+    public FlushPolicy(String mode, int maxBytes, long maxDelay, boolean noDelay, int sendBuffer, int receiveBuffer,
+            int queueCap) throws Exception {
+        if (!mode.equals(MESSAGE) && !mode.equals(ROUND) && !mode.equals(BATCH)) {
+            throw new Exception(String.format("Unknown flush policy: %s", mode));
+        }
+        this.mode = mode;
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+        this.noDelay = noDelay;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+        this.queueCap = queueCap;
+    }
+
+    public static FlushPolicy perMessage() {
+        FlushPolicy p = new FlushPolicy();
+        p.mode = MESSAGE;
+        p.maxBytes = 8192;
+        p.maxDelay = 5;
+        p.noDelay = true;
+        return p;
+    }
+
+    private FlushPolicy() {
+    }
+
+    // after a message of the given round was buffered
+    public boolean flushNow(int round, int pendingBytes) {
+        if (mode.equals(ROUND)) {
+            return round == -1;
+        }
+        if (mode.equals(BATCH)) {
+            return pendingBytes >= maxBytes;
+        }
+        return true;
+    }
+
+    public boolean isPerMessage() {
+        return mode.equals(MESSAGE);
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public boolean isNoDelay() {
+        return noDelay;
+    }
+
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public boolean isQueued() {
+        return queueCap > 0;
+    }
+
+    public int getQueueCap() {
+        return queueCap;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (maxBytes %d, maxDelay %d ms, nodelay %b, sndbuf %d, rcvbuf %d, queueCap %d)", mode,
+                maxBytes, maxDelay, noDelay, sendBuffer, receiveBuffer, queueCap);
+    }
+}
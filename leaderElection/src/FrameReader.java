@@ -0,0 +1,91 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/*
+ * Splits a channel into lines without decoding them. The frame and the view over it are reused, a
+ * returned view is only valid until the next read.
+ */
+public class FrameReader implements Closeable {
+    private InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos;
+    private int limit;
+    private byte[] frame = new byte[256];
+    private ByteBuffer frameBuf = ByteBuffer.wrap(frame);
+    private MsgView view = new MsgView();
+    private ChannelCodec decoder;
+    private int wireLength;
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    // null at the end of the stream
+    public MsgView read() throws IOException {
+        int len = 0;
+        while (true) {
+            if (pos == limit) {
+                int n = in.read(buf, 0, buf.length);
+                if (n < 0) {
+                    if (len == 0) {
+                        return null;
+                    }
+                    break;
+                }
+                pos = 0;
+                limit = n;
+                continue;
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                break;
+            }
+            if (len == frame.length) {
+                frame = Arrays.copyOf(frame, len * 2);
+                frameBuf = ByteBuffer.wrap(frame);
+            }
+            frame[len++] = b;
+        }
+        if (len > 0 && frame[len - 1] == '\r') {
+            len--;
+        }
+        wireLength = len;
+        if (ChannelCodec.isEncoded(frame, len)) {
+            len = decode(len);
+        }
+        return view.wrap(frameBuf, 0, len);
+    }
+
+    // bytes of the last frame as received, before decoding
+    public int getWireLength() {
+        return wireLength;
+    }
+
+    private int decode(int len) throws IOException {
+        if (decoder == null) {
+            decoder = new ChannelCodec(0);
+        }
+        byte[] line;
+        try {
+            line = decoder.decode(new String(frame, 0, len, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException(String.format("Corrupt frame: %s", e.getMessage()));
+        }
+        if (line.length > frame.length) {
+            frame = new byte[line.length];
+            frameBuf = ByteBuffer.wrap(frame);
+        }
+        System.arraycopy(line, 0, frame, 0, line.length);
+        return line.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
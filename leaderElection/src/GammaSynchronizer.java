@@ -0,0 +1,183 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Gamma synchronizer. After the beta setup the tree is cut into clusters: depth counts from where
+ * the OKs met, and a node whose depth is a multiple of clusterDepth heads a new cluster. Every node
+ * tells its neighbors its cluster (CLUSTER,head), and the smallest edge to each neighboring cluster
+ * is found by a saturation inside the cluster (MIN up, PREF down). That edge is the preferred edge
+ * between the two clusters.
+ *
+ * Rounds: SAFE is collected inside the cluster and CSAFE sent back, then every node tells the
+ * clusters behind its preferred edges (NSAFE,r). READY is collected once a node has CSAFE and an
+ * NSAFE over each of its preferred edges, and PULSE goes back. A cluster waits only for itself and
+ * its neighbor clusters.
+ *
+ * SYNC content adds: CLUSTER,head | MIN,entries | PREF,entries | CSAFE,r | NSAFE,r | READY,r
+ * entries: head:x.y/...   smallest edge (x,y), x < y, to each neighboring cluster
+ */
+public class GammaSynchronizer extends BetaSynchronizer {
+    private static final String CLUSTER = "CLUSTER";
+    private static final String MIN = "MIN";
+    private static final String PREF = "PREF";
+    private static final String CSAFE = "CSAFE";
+    private static final String NSAFE = "NSAFE";
+    private static final String READY = "READY";
+
+    private int clusterDepth;
+    private boolean committed;
+    private List<Integer> clusterEdges = new ArrayList<>();
+    private Map<Integer, Integer> clusterOf = new TreeMap<>();
+    private Map<Integer, Long> mins = new TreeMap<>();
+    private Wave minWave = new Wave();
+    private Set<Integer> preferred = new HashSet<>();
+
+    public GammaSynchronizer(Node node, int clusterDepth) {
+        super(node);
+        this.clusterDepth = clusterDepth;
+    }
+
+    @Override
+    public String getName() {
+        return isAlpha() ? "alpha" : "gamma";
+    }
+
+    @Override
+    protected String describe() {
+        return String.format("gamma over the epoch %d tree, cluster of %d, %d cluster edges, %d preferred edges.",
+                treeKey, head, clusterEdges.size(), preferred.size());
+    }
+
+    @Override
+    protected String[][] waves() {
+        return new String[][] { { SAFE, CSAFE }, { READY, PULSE } };
+    }
+
+    @Override
+    protected List<Integer> waveEdges() {
+        return clusterEdges;
+    }
+
+    @Override
+    protected boolean isReady(Round rd, int wave) {
+        if (wave == 0) {
+            return super.isReady(rd, wave);
+        }
+        return rd.waves[0].done && rd.neighborSafe.containsAll(preferred);
+    }
+
+    @Override
+    protected void committed(int from, int partner, int depth, int parentHead) {
+        head = depth % clusterDepth == 0 ? node.getId() : parentHead;
+        for (int nId : tree) {
+            if (nId == partner) {
+                continue;
+            }
+            boolean inside = nId == from ? depth % clusterDepth != 0 : (depth + 1) % clusterDepth != 0;
+            if (inside) {
+                clusterEdges.add(nId);
+            }
+        }
+        committed = true;
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, join(CLUSTER, head));
+        }
+        checkMin();
+    }
+
+    @Override
+    protected void turned(int r, int wave) {
+        if (wave == 0) {
+            for (int nId : preferred) {
+                send(nId, join(NSAFE, r));
+            }
+        }
+    }
+
+    @Override
+    protected void processOther(String op, int from, String[] t) {
+        if (op.equals(CLUSTER)) {
+            clusterOf.put(from, Integer.parseInt(t[1]));
+            checkMin();
+        } else if (op.equals(MIN)) {
+            merge(t.length > 1 ? t[1] : "");
+            minWave.reported.add(from);
+            checkMin();
+        } else if (op.equals(PREF)) {
+            merge(t.length > 1 ? t[1] : "");
+            turnMin(from);
+        } else if (op.equals(NSAFE)) {
+            int r = Integer.parseInt(t[1]);
+            round(r).neighborSafe.add(from);
+            check(r);
+        }
+    }
+
+    private void checkMin() {
+        if (!committed || minWave.done || clusterOf.size() < node.getNeighbors().size()) {
+            return;
+        }
+        for (int nId : node.getNeighbors().keySet()) {
+            int c = clusterOf.get(nId);
+            if (c != head) {
+                offer(c, edge(node.getId(), nId));
+            }
+        }
+        List<Integer> waiting = waiting(minWave, clusterEdges);
+        if (waiting.isEmpty()) {
+            turnMin(-1);
+        } else if (waiting.size() == 1 && minWave.reportedTo == -1) {
+            minWave.reportedTo = waiting.get(0);
+            send(minWave.reportedTo, join(MIN, encode()));
+        }
+    }
+
+    private void turnMin(int from) {
+        if (minWave.done) {
+            return;
+        }
+        minWave.done = true;
+        for (int nId : clusterEdges) {
+            if (nId != from && nId != minWave.reportedTo) {
+                send(nId, join(PREF, encode()));
+            }
+        }
+        for (int nId : node.getNeighbors().keySet()) {
+            int c = clusterOf.get(nId);
+            if (c != head && mins.get(c) == edge(node.getId(), nId)) {
+                preferred.add(nId);
+            }
+        }
+        decision = true;
+    }
+
+    private void offer(int cluster, long edge) {
+        mins.merge(cluster, edge, Math::min);
+    }
+
+    private void merge(String entries) {
+        for (String e : entries.split("/")) {
+            if (e.isEmpty()) continue;
+            String[] kv = e.split(":");
+            String[] xy = kv[1].split("\\.");
+            offer(Integer.parseInt(kv[0]), edge(Integer.parseInt(xy[0]), Integer.parseInt(xy[1])));
+        }
+    }
+
+    private String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Long> e : mins.entrySet()) {
+            if (sb.length() > 0) sb.append("/");
+            sb.append(e.getKey()).append(":").append(e.getValue() >> 32).append(".").append(e.getValue() & 0xffffffffL);
+        }
+        return sb.toString();
+    }
+
+    private static long edge(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Runs many nodes in one process: java Host <config> <ids> [options], ids like 1-100 or 1,5,7 or
+ * 1-10,20. The config is read once and edges between the hosted nodes go through a LocalHub, only
+ * edges to nodes of other processes open sockets, so each process listens on the ports of its
+ * nodes with a remote neighbor only. Every node runs on its own thread as NetNode runs it, with the
+ * same options, and logs under its own id. With -daemon the console goes to the smallest id, RUN
+ * commands reach the other nodes over the network.
+ */
+public class Host {
+
+    public static void main(String[] args) {
+        try {
+            String configPath = args.length > 0 ? args[0] : "../config.txt";
+            Set<Integer> ids = parseIds(args.length > 1 ? args[1] : "");
+            HashMap<String, String> options = NetNode.parseOptions(args, 2);
+            Logger.setDebugMode(options.containsKey("d"));
+
+            Logger.Info("Init %d nodes......", ids.size());
+            HashMap<Integer, Node> nodes = NetNode.initNodes(configPath, ids);
+            if (nodes.size() < ids.size()) {
+                Set<Integer> missing = new TreeSet<>(ids);
+                missing.removeAll(nodes.keySet());
+                throw new Exception(String.format("Can not find nodes %s in config.", missing));
+            }
+
+            LocalHub hub = new LocalHub(nodes.keySet());
+            int local = 0;
+            int remote = 0;
+            for (Node node : nodes.values()) {
+                node.setHub(hub);
+                for (int nId : node.getNeighbors().keySet()) {
+                    if (hub.isLocal(nId)) {
+                        local++;
+                    } else {
+                        remote++;
+                    }
+                }
+            }
+            Logger.Info("Hosting %d nodes: %d local edges, %d remote edges.", nodes.size(), local / 2, remote);
+
+            int first = Collections.min(nodes.keySet());
+            List<Thread> threads = new ArrayList<>();
+            for (Node node : nodes.values()) {
+                Thread thread = new Thread(() -> {
+                    Logger.setLocalNodeId(node.getId());
+                    try {
+                        NetNode.runNode(node, configPath, options, node.getId() == first);
+                    } catch (Exception e) {
+                        StringWriter sw = new StringWriter();
+                        PrintWriter pw = new PrintWriter(sw);
+                        e.printStackTrace(pw);
+                        Logger.Error(sw.toString());
+                    }
+                }, "node-" + node.getId());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+        }
+    }
+
+    static Set<Integer> parseIds(String spec) throws Exception {
+        Set<Integer> ids = new TreeSet<>();
+        for (String part : spec.split(",")) {
+            String[] range = part.trim().split("-");
+            if (range.length == 1 && range[0].matches("\\d+")) {
+                ids.add(Integer.parseInt(range[0]));
+            } else if (range.length == 2 && range[0].matches("\\d+") && range[1].matches("\\d+")) {
+                for (int id = Integer.parseInt(range[0]); id <= Integer.parseInt(range[1]); id++) {
+                    ids.add(id);
+                }
+            } else {
+                throw new Exception(String.format("Invalid node ids [ %s ], use e.g. 1-100 or 1,5,7.", spec));
+            }
+        }
+        return ids;
+    }
+}
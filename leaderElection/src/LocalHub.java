@@ -0,0 +1,43 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * The edges between the nodes of one Host. Every hosted node has an inbox, a local channel puts
+ * its frames into the inbox of the neighbor and the neighbor's MsgService takes them on one thread
+ * in the order they came. No socket, reader thread or codec per edge, a frame is copied once.
+ */
+public class LocalHub {
+
+    static class Frame {
+        final int fromId;
+        final byte[] data;
+
+        Frame(int fromId, byte[] data) {
+            this.fromId = fromId;
+            this.data = data;
+        }
+    }
+
+    private HashMap<Integer, LinkedBlockingQueue<Frame>> inboxes = new HashMap<>();
+
+    public LocalHub(Collection<Integer> ids) {
+        for (int id : ids) {
+            inboxes.put(id, new LinkedBlockingQueue<>());
+        }
+    }
+
+    public boolean isLocal(int id) {
+        return inboxes.containsKey(id);
+    }
+
+    public void send(int fromId, int toId, String line) {
+        inboxes.get(toId).add(new Frame(fromId, line.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // the next frame for id, blocks until there is one
+    Frame take(int id) throws InterruptedException {
+        return inboxes.get(id).take();
+    }
+}
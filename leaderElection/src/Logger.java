@@ -6,10 +6,26 @@ import java.util.Date;
 
 public class Logger {
 
-    private static int localNodeId = 0;
+    // per thread, the nodes of a Host log under their own ids; threads a node starts inherit it
+    private static InheritableThreadLocal<Integer> localNodeId = new InheritableThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
+    private static boolean isDebugging = false;
 
     public static void setLocalNodeId(int id) {
-        localNodeId = id;
+        localNodeId.set(id);
+    }
+
+    public static void setDebugMode(boolean d) {
+        isDebugging = d;
+    }
+
+    public static boolean isDebugging() {
+        return isDebugging;
     }
 
     public static PrintStream outputStream = null;
@@ -33,7 +49,7 @@ public class Logger {
             if (args != null) {
                 log = String.format(log, args);
             }
-            log = String.format("[Info] #%d - %s: %s", localNodeId, getCurrentTimeStamp(), log);
+            log = String.format("[Info] #%d - %s: %s", localNodeId.get(), getCurrentTimeStamp(), log);
             System.out.println(log);
 
             if (outputStream != null) {
@@ -52,7 +68,7 @@ public class Logger {
             if (args != null) {
                 log = String.format(log, args);
             }
-            log = String.format("[Error] #%d - %s: %s", localNodeId, getCurrentTimeStamp(), log);
+            log = String.format("[Error] #%d - %s: %s", localNodeId.get(), getCurrentTimeStamp(), log);
             System.out.println(log);
             if (outputStream != null) {
                 outputStream.println(log);
@@ -66,12 +82,14 @@ public class Logger {
     }
 
     public static void Debug(String log, Object... args) {
+        if (!isDebugging) return;
+
         try {
             if (args != null) {
                 log = String.format(log, args);
             }
-            log = String.format("[Debug] #%d - %s: %s", localNodeId, getCurrentTimeStamp(), log);
-            //System.out.println(log);
+            log = String.format("[Debug] #%d - %s: %s", localNodeId.get(), getCurrentTimeStamp(), log);
+            System.out.println(log);
             if (outputStream != null) {
                 outputStream.println(log);
             }
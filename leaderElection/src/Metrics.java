@@ -0,0 +1,207 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMBean {
+    private Node node;
+
+    private ConcurrentHashMap<String, AtomicLong> sentByAction = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AtomicLong> receivedByAction = new ConcurrentHashMap<>();
+
+    private Histogram roundDuration = new Histogram();
+    private long lastRoundTime = 0;
+
+    private AtomicInteger bufferedMsgDepth = new AtomicInteger();
+    private AtomicInteger maxBufferedMsgDepth = new AtomicInteger();
+
+    private Map<String, Long> phaseDurations = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private AtomicBoolean dumped = new AtomicBoolean(false);
+
+    public Metrics(Node node) {
+        this.node = node;
+    }
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("distributed-algorithms:type=Metrics,node=" + node.getId()));
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (!dumped.get()) {
+                Logger.Info(dump());
+            }
+        }));
+    }
+
+    public void onSend(String action, MsgChannel ch, int bytes) {
+        sentByAction.computeIfAbsent(action, k -> new AtomicLong()).incrementAndGet();
+        ch.addSentBytes(bytes);
+    }
+
+    public void onReceive(String action, MsgChannel ch, int bytes) {
+        receivedByAction.computeIfAbsent(action, k -> new AtomicLong()).incrementAndGet();
+        if (ch != null) {
+            ch.addReceivedBytes(bytes);
+        }
+    }
+
+    public void resetRoundClock() {
+        lastRoundTime = 0;
+    }
+
+    public void onRoundAdvance() {
+        long now = System.nanoTime();
+        if (lastRoundTime != 0) {
+            roundDuration.record(now - lastRoundTime);
+        }
+        lastRoundTime = now;
+    }
+
+    public void onBuffer() {
+        int depth = bufferedMsgDepth.incrementAndGet();
+        int m;
+        while (depth > (m = maxBufferedMsgDepth.get()) && !maxBufferedMsgDepth.compareAndSet(m, depth)) {
+        }
+    }
+
+    public void onUnbuffer() {
+        bufferedMsgDepth.decrementAndGet();
+    }
+
+    public void recordPhase(String phase, long millis) {
+        phaseDurations.put(phase, millis);
+    }
+
+    public long getPhaseDuration(String phase) {
+        return phaseDurations.getOrDefault(phase, 0L);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return sum(sentByAction);
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return sum(receivedByAction);
+    }
+
+    @Override
+    public String[] getMessagesSentByAction() {
+        return format(sentByAction);
+    }
+
+    @Override
+    public String[] getMessagesReceivedByAction() {
+        return format(receivedByAction);
+    }
+
+    @Override
+    public String[] getBytesByChannel() {
+        List<String> res = new ArrayList<>();
+        if (node.getMsgService() == null) {
+            return new String[0];
+        }
+        for (Map.Entry<Integer, MsgChannel> e : new TreeMap<>(node.getMsgService().channels).entrySet()) {
+            res.add(String.format("%d: sent=%d received=%d%s", e.getKey(), e.getValue().getSentBytes(),
+                    e.getValue().getReceivedBytes(),
+                    e.getValue().isQueued() ? " maxQueued=" + e.getValue().getMaxQueued() : ""));
+        }
+        return res.toArray(new String[0]);
+    }
+
+    @Override
+    public long getRoundCount() {
+        return roundDuration.getCount();
+    }
+
+    @Override
+    public double getRoundMeanMicros() {
+        return roundDuration.getMean() / 1000;
+    }
+
+    @Override
+    public long getRoundP50Micros() {
+        return roundDuration.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getRoundP99Micros() {
+        return roundDuration.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getRoundMaxMicros() {
+        return roundDuration.getMax() / 1000;
+    }
+
+    @Override
+    public int getBufferedMsgDepth() {
+        return bufferedMsgDepth.get();
+    }
+
+    @Override
+    public int getMaxBufferedMsgDepth() {
+        return maxBufferedMsgDepth.get();
+    }
+
+    @Override
+    public String[] getPhaseDurations() {
+        List<String> res = new ArrayList<>();
+        synchronized (phaseDurations) {
+            for (Map.Entry<String, Long> e : phaseDurations.entrySet()) {
+                res.add(String.format("%s: %d ms", e.getKey(), e.getValue()));
+            }
+        }
+        return res.toArray(new String[0]);
+    }
+
+    @Override
+    public long getElectionMillis() {
+        return getPhaseDuration("elect");
+    }
+
+    @Override
+    public String dump() {
+        dumped.set(true);
+        StringBuilder sb = new StringBuilder("[METRICS]");
+        sb.append(String.format("\n  messages sent=%d received=%d", getMessagesSent(), getMessagesReceived()));
+        sb.append("\n  sent by action: ").append(String.join(", ", getMessagesSentByAction()));
+        sb.append("\n  received by action: ").append(String.join(", ", getMessagesReceivedByAction()));
+        sb.append("\n  bytes by channel: ").append(String.join(", ", getBytesByChannel()));
+        sb.append("\n  round duration (us): ").append(roundDuration.summary(1000));
+        sb.append(String.format("\n  buffered msg depth=%d max=%d", getBufferedMsgDepth(), getMaxBufferedMsgDepth()));
+        sb.append("\n  phases: ").append(String.join(", ", getPhaseDurations()));
+        return sb.toString();
+    }
+
+    private static long sum(Map<String, AtomicLong> counters) {
+        long s = 0;
+        for (AtomicLong c : counters.values()) {
+            s += c.get();
+        }
+        return s;
+    }
+
+    private static String[] format(Map<String, AtomicLong> counters) {
+        List<String> res = new ArrayList<>();
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<>(counters).entrySet()) {
+            res.add(e.getKey() + "=" + e.getValue().get());
+        }
+        return res.toArray(new String[0]);
+    }
+}
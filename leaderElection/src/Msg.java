@@ -4,6 +4,8 @@ public class Msg {
     private int fromId;
     private int toId;
     private int round;
+    private int epoch;
+    private int session;
     private String content = "";
 
     public Msg(String str) {
@@ -13,7 +15,9 @@ public class Msg {
         this.fromId = Integer.parseInt(token[2]);
         this.toId = Integer.parseInt(token[3]);
         this.round = Integer.parseInt(token[4]);
-        this.content = token.length < 6 ? "" : token[5];
+        this.epoch = Integer.parseInt(token[5]);
+        this.session = Integer.parseInt(token[6]);
+        this.content = token.length < 8 ? "" : token[7];
     }
 
     public Msg() {
@@ -59,6 +63,22 @@ public class Msg {
         round = v;
     }
 
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(int e) {
+        epoch = e;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    public void setSession(int s) {
+        session = s;
+    }
+
     public String getContent() {
         return content;
     }
@@ -69,6 +89,7 @@ public class Msg {
 
     @Override
     public String toString() {
-        return String.format("%s|%d|%d|%d|%d|%s", this.action, this.srcId, this.fromId, this.toId, this.round, this.content);
+        return String.format("%s|%d|%d|%d|%d|%d|%d|%s", this.action, this.srcId, this.fromId, this.toId, this.round,
+                this.epoch, this.session, this.content);
     }
 }
@@ -7,4 +7,14 @@ public class MsgAction {
     public static final String REPLY = "REPLY";
     public static final String DEGREE = "DEGREE";
     public static final String END = "END";
+    public static final String RUN = "RUN";
+    public static final String AGGREGATE = "AGGREGATE";
+    public static final String DISSEMINATE = "DISSEMINATE";
+    public static final String RESTORE = "RESTORE";
+    public static final String HEARTBEAT = "HEARTBEAT";
+    public static final String REPAIR = "REPAIR";
+    public static final String SYNC = "SYNC";
+    public static final String CENTER = "CENTER";
+    public static final String BOUND = "BOUND";
+    public static final String ROUTE = "ROUTE";
 }
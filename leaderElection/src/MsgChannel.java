@@ -1,29 +1,71 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MsgChannel {
+    private static class Pending {
+        final String line;
+        final int round;
+
+        Pending(String line, int round) {
+            this.line = line;
+            this.round = round;
+        }
+    }
+
+    private static final Pending FLUSH = new Pending(null, -1);
+    private static final Pending CLOSE = new Pending(null, -1);
+
     private boolean isConnecting = false;
+    private volatile boolean failed = false;
+    private volatile long lastReceived = System.currentTimeMillis();
 
-    private BufferedReader in = null;
+    private FrameReader in = null;
     private PrintStream out = null;
+    private FlushPolicy policy;
+    private MsgService service;
+    private ChannelCodec encoder;
+    private int pendingBytes;
+    private long pendingSince;
+    // -sendQueue: lines wait for the writer thread of the channel, a full socket holds up only this
+    // channel, and a queue past the cap fails it
+    private LinkedBlockingQueue<Pending> queue;
+    private volatile int maxQueued;
 
     private int nodeId;
     private String host;
     private int port;
     private Socket clientSocket;
     private Socket serverSocket;
+    private LocalHub hub;
+    private int localId;
 
-    public MsgChannel(int id, String h, int p) throws IOException {
+    private AtomicLong sentBytes = new AtomicLong();
+    private AtomicLong receivedBytes = new AtomicLong();
+
+    public MsgChannel(int id, String h, int p, FlushPolicy policy, MsgService service) throws IOException {
         nodeId = id;
         host = h;
         port = p;
+        this.policy = policy;
+        this.service = service;
+        if (policy.isQueued()) {
+            queue = new LinkedBlockingQueue<>();
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
     }
 
     public boolean isConnecting() {
         return isConnecting;
     }
 
-    public BufferedReader getInChannel() {
+    public FrameReader getInChannel() {
         return in;
     }
 
@@ -31,25 +73,104 @@ public class MsgChannel {
         return out;
     }
 
+    public void setEncoder(ChannelCodec codec) {
+        encoder = codec;
+    }
+
+    // an edge to a node of the same Host, lines go to its inbox instead of a socket
+    public void connectLocal(LocalHub h, int fromId) {
+        hub = h;
+        localId = fromId;
+        isConnecting = true;
+        queue = null;
+    }
+
+    public boolean isLocal() {
+        return hub != null;
+    }
+
+    /*
+     * Buffers one line and writes the channel out if the policy says so, returns the bytes on the
+     * wire. A queued line is counted by the writer thread once it is written and returns 0, a line
+     * that finds the queue at its cap is dropped and returns -1.
+     */
+    public synchronized int write(String line, int round) {
+        if (hub != null) {
+            hub.send(localId, nodeId, line);
+            return line.length() + 1;
+        }
+        if (encoder != null) {
+            line = encoder.encode(line);
+        }
+        if (queue != null) {
+            if (queue.size() >= policy.getQueueCap()) {
+                return -1;
+            }
+            queue.add(new Pending(line, round));
+            maxQueued = Math.max(maxQueued, queue.size());
+            return 0;
+        }
+        out.println(line);
+        if (pendingBytes == 0) {
+            pendingSince = System.currentTimeMillis();
+        }
+        pendingBytes += line.length() + 1;
+        if (policy.flushNow(round, pendingBytes)) {
+            flush();
+        }
+        return line.length() + 1;
+    }
+
+    public synchronized void flush() {
+        if (queue != null) {
+            queue.add(FLUSH);
+            return;
+        }
+        flushOut();
+    }
+
+    private void flushOut() {
+        if (pendingBytes > 0) {
+            out.flush();
+            pendingBytes = 0;
+        }
+    }
+
+    public synchronized void flushOlderThan(long now, long delay) {
+        if (pendingBytes > 0 && now - pendingSince >= delay) {
+            flush();
+        }
+    }
+
     public boolean hasInChannel() {
-        return in == null ? false : true;
+        return in == null ? hub != null : true;
     }
 
-    public void assignInChannel(Socket st, BufferedReader in) {
+    public void assignInChannel(Socket st, FrameReader in) {
         this.serverSocket = st;
         this.in = in;
     }
 
     public boolean hasOutChannel() {
-        return out == null ? false : true;
+        return out == null ? hub != null : true;
     }
 
     public boolean connectOutChannel() {
 
         try {
-            clientSocket = new Socket(host, port);
-            out = new PrintStream(clientSocket.getOutputStream());
+            clientSocket = new Socket();
+            clientSocket.setTcpNoDelay(policy.isNoDelay());
+            if (policy.getSendBuffer() > 0) {
+                clientSocket.setSendBufferSize(policy.getSendBuffer());
+            }
+            clientSocket.connect(new InetSocketAddress(host, port));
+            out = new PrintStream(new BufferedOutputStream(clientSocket.getOutputStream(),
+                    Math.max(policy.getMaxBytes(), 8192)), false);
             out.println(MsgFactory.connectMsg(nodeId));
+            out.flush();
+            if (queue != null) {
+                startWriter();
+            }
             return true;
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
@@ -60,6 +181,67 @@ public class MsgChannel {
         }
     }
 
+    /*
+     * Writes the queued lines on a thread of its own. In message mode the stream is flushed once the
+     * queue runs empty, so a burst leaves in one write; round and batch flush as without the queue,
+     * and nothing stays buffered longer than maxDelay. The thread sleeps in take() while nothing is
+     * buffered and polls only until the buffered bytes are due.
+     */
+    private void startWriter() {
+        Thread thread = new Thread(() -> {
+            try {
+                long delay = Math.max(1, policy.getMaxDelay());
+                while (!failed) {
+                    Pending p = pendingBytes == 0 ? queue.take()
+                            : queue.poll(Math.max(1, pendingSince + delay - System.currentTimeMillis()),
+                                    TimeUnit.MILLISECONDS);
+                    if (p == null || p == FLUSH) {
+                        flushOut();
+                        continue;
+                    }
+                    if (p == CLOSE) {
+                        if (!failed) {
+                            out.println(MsgFactory.disconnectMsg(nodeId));
+                        }
+                        out.close();
+                        clientSocket.close();
+                        return;
+                    }
+                    out.println(p.line);
+                    service.addSentBytes(this, p.line.length() + 1);
+                    long now = System.currentTimeMillis();
+                    if (pendingBytes == 0) {
+                        pendingSince = now;
+                    }
+                    pendingBytes += p.line.length() + 1;
+                    if (policy.isPerMessage() ? queue.isEmpty()
+                            : (policy.flushNow(p.round, pendingBytes) || now - pendingSince >= delay)) {
+                        flushOut();
+                    }
+                }
+            } catch (Exception e) {
+                if (!failed) {
+                    StringWriter sw = new StringWriter();
+                    PrintWriter pw = new PrintWriter(sw);
+                    e.printStackTrace(pw);
+                    Logger.Error(sw.toString());
+                }
+            } finally {
+                queue.clear();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isQueued() {
+        return queue != null;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
     public void shutdownInChannel() {
         try {
             if (!this.serverSocket.isClosed()) {
@@ -79,12 +261,72 @@ public class MsgChannel {
         isConnecting = true;
     }
 
-    public void disconnect() throws IOException {
+    public synchronized void disconnect() throws IOException {
+        if (hub != null) {
+            // the neighbor answers with its own DISCONNECT, which ends here
+            if (isConnecting) {
+                isConnecting = false;
+                hub.send(localId, nodeId, MsgFactory.disconnectMsg(nodeId).toString());
+            }
+            return;
+        }
         isConnecting = false;
+        if (queue != null) {
+            // the writer sends DISCONNECT after what is still queued
+            queue.add(CLOSE);
+            return;
+        }
         out.println(MsgFactory.disconnectMsg(nodeId));
         out.close();
         clientSocket.close();
     }
 
+    public void touch() {
+        lastReceived = System.currentTimeMillis();
+    }
+
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    // true only for the caller that marks the channel first
+    public synchronized boolean markFailed() {
+        if (failed) {
+            return false;
+        }
+        failed = true;
+        isConnecting = false;
+        if (queue != null) {
+            // nothing queued is written any more, CLOSE wakes a writer waiting in take()
+            queue.clear();
+            queue.add(CLOSE);
+        }
+        try {
+            if (clientSocket != null) clientSocket.close();
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            Logger.Debug("Closing channel to %d: %s", nodeId, e.getMessage());
+        }
+        return true;
+    }
+
+    public void addSentBytes(long n) {
+        sentBytes.addAndGet(n);
+    }
+
+    public void addReceivedBytes(long n) {
+        receivedBytes.addAndGet(n);
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
 
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
 }
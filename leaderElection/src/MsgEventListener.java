@@ -1,3 +1,8 @@
 public interface MsgEventListener {
     void onReceiveMsg(Msg msg);
+
+    // the view is reused by the reader, a listener that keeps the message takes a Msg
+    default void onReceiveFrame(MsgView view) {
+        onReceiveMsg(view.toMsg());
+    }
 }
@@ -1,8 +1,14 @@
 public class MsgFactory {
-    private static int localNodeId = 0;
+    // per thread like the id of the Logger
+    private static InheritableThreadLocal<Integer> localNodeId = new InheritableThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
 
     public static void setLocalNodeId(int id) {
-        localNodeId = id;
+        localNodeId.set(id);
     }
 
     public static Msg testMsg(Node node) {
@@ -11,14 +17,16 @@ public class MsgFactory {
         msg.setSrcId(node.getId());
         msg.setFromId(node.getId());
         msg.setRound(node.getRound());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
     public static Msg connectMsg(int toId) {
         Msg msg = new Msg();
         msg.setAction(MsgAction.CONNECT);
-        msg.setSrcId(localNodeId);
-        msg.setFromId(localNodeId);
+        msg.setSrcId(localNodeId.get());
+        msg.setFromId(localNodeId.get());
         msg.setToId(toId);
         msg.setRound(-1);
         return msg;
@@ -27,8 +35,18 @@ public class MsgFactory {
     public static Msg disconnectMsg(int toId) {
         Msg msg = new Msg();
         msg.setAction(MsgAction.DISCONNECT);
-        msg.setSrcId(localNodeId);
-        msg.setFromId(localNodeId);
+        msg.setSrcId(localNodeId.get());
+        msg.setFromId(localNodeId.get());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        return msg;
+    }
+
+    public static Msg heartbeatMsg(int toId) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.HEARTBEAT);
+        msg.setSrcId(localNodeId.get());
+        msg.setFromId(localNodeId.get());
         msg.setToId(toId);
         msg.setRound(-1);
         return msg;
@@ -41,6 +59,8 @@ public class MsgFactory {
         msg.setFromId(node.getId());
         msg.setRound(node.getRound() + 1);
         msg.setContent(node.getLargestUID() + "," + node.getDistanceOfLargestUID());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -52,6 +72,8 @@ public class MsgFactory {
         msg.setToId(to);
         msg.setRound(-1);
         msg.setContent(s);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -62,6 +84,8 @@ public class MsgFactory {
         msg.setFromId(node.getId());
         msg.setRound(node.getRound() + 1);
         msg.setContent(s);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -71,6 +95,8 @@ public class MsgFactory {
         msg.setSrcId(node.getId());
         msg.setFromId(node.getId());
         msg.setRound(-1);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -80,6 +106,123 @@ public class MsgFactory {
         msg.setSrcId(node.getId());
         msg.setFromId(node.getId());
         msg.setRound(-1);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg runMsg(Node node, int epoch, String command) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.RUN);
+        msg.setContent(command);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setRound(-1);
+        msg.setEpoch(epoch);
+        return msg;
+    }
+
+    public static Msg aggregateMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.AGGREGATE);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg disseminateMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.DISSEMINATE);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg syncMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.SYNC);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg restoreMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.RESTORE);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg repairMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.REPAIR);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg centerMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.CENTER);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg routeMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.ROUTE);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg boundMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.BOUND);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setContent(content);
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 }
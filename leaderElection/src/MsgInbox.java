@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ * Messages that arrived early, one arena per (epoch, level, round), the arenas of an epoch in
+ * their own map under the full 32 bits of level and round. Draining a round takes its
+ * arena and the arena of the round -1 messages of the same level out in one step, replays them in
+ * arrival order and releases both. Arenas of older epochs are released by startEpoch. Chunks are
+ * pooled, so a steady run does not allocate direct memory either.
+ */
+public class MsgInbox {
+    static final int CHUNK = 16 * 1024;
+    private static final int POOL = 64;
+
+    private HashMap<Integer, HashMap<Long, MsgArena>> epochs = new HashMap<>();
+    private ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int seq;
+
+    public static long key(int level, int round) {
+        return ((long) level << 32) | (round & 0xffffffffL);
+    }
+
+    public synchronized void add(int epoch, long key, ByteBuffer src, int off, int len) {
+        epochs.computeIfAbsent(epoch, e -> new HashMap<>()).computeIfAbsent(key, k -> new MsgArena())
+                .append(src, off, len, seq++, this);
+    }
+
+    public synchronized boolean isEmpty() {
+        return epochs.isEmpty();
+    }
+
+    // returns the number of frames handed to the consumer
+    public int drain(int epoch, long roundKey, long anyKey, MsgView view, Consumer<MsgView> consumer) {
+        MsgArena a;
+        MsgArena b;
+        synchronized (this) {
+            HashMap<Long, MsgArena> arenas = epochs.get(epoch);
+            if (arenas == null) {
+                return 0;
+            }
+            a = arenas.remove(roundKey);
+            b = arenas.remove(anyKey);
+            if (arenas.isEmpty()) {
+                epochs.remove(epoch);
+            }
+        }
+        if (a == null && b == null) {
+            return 0;
+        }
+        int n = 0;
+        while (true) {
+            int sa = a == null ? -1 : a.peek();
+            int sb = b == null ? -1 : b.peek();
+            if (sa == -1 && sb == -1) {
+                break;
+            }
+            MsgArena next = sb == -1 || (sa != -1 && sa < sb) ? a : b;
+            consumer.accept(next.next(view));
+            n++;
+        }
+        release(a);
+        release(b);
+        return n;
+    }
+
+    // drops the arenas of epochs before e, returns the number of frames dropped
+    public synchronized int releaseBefore(int e) {
+        int n = 0;
+        Iterator<Map.Entry<Integer, HashMap<Long, MsgArena>>> it = epochs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, HashMap<Long, MsgArena>> entry = it.next();
+            if (entry.getKey() < e) {
+                for (MsgArena arena : entry.getValue().values()) {
+                    n += arena.getFrameNo();
+                    release(arena);
+                }
+                it.remove();
+            }
+        }
+        return n;
+    }
+
+    public synchronized void forEach(MsgView view, Consumer<MsgView> consumer) {
+        for (HashMap<Long, MsgArena> arenas : epochs.values()) {
+            for (MsgArena arena : arenas.values()) {
+                arena.rewind();
+                while (arena.peek() != -1) {
+                    consumer.accept(arena.next(view));
+                }
+                arena.rewind();
+            }
+        }
+    }
+
+    synchronized ByteBuffer allocate(int size) {
+        if (size <= CHUNK && !free.isEmpty()) {
+            return free.poll();
+        }
+        return ByteBuffer.allocateDirect(Math.max(size, CHUNK));
+    }
+
+    private synchronized void release(MsgArena arena) {
+        if (arena == null) {
+            return;
+        }
+        for (ByteBuffer c : arena.getChunks()) {
+            if (c.capacity() == CHUNK && free.size() < POOL) {
+                c.clear();
+                free.add(c);
+            }
+        }
+    }
+}
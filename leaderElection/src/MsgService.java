@@ -1,9 +1,15 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MsgService {
     HashMap<Integer, MsgChannel> channels = new HashMap<>();
@@ -14,6 +20,20 @@ public class MsgService {
 
     private List<MsgEventListener> listeners;
 
+    // session 0 goes to the listeners above, other sessions to their own listener
+    private HashMap<Integer, MsgEventListener> sessionListeners = new HashMap<>();
+    private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Msg>> pendingSessionMsgs = new ConcurrentHashMap<>();
+    private Set<Integer> closedSessions = ConcurrentHashMap.newKeySet();
+
+    private FailureDetector failureDetector;
+    private Journal journal;
+    private LocalHub hub;
+
+    private AtomicLong sentMsgNo = new AtomicLong();
+    private AtomicLong sentBytes = new AtomicLong();
+    private AtomicLong receivedMsgNo = new AtomicLong();
+    private AtomicLong receivedBytes = new AtomicLong();
+
     public MsgService(Node node) {
         nodeInfo = node;
     }
@@ -30,14 +50,35 @@ public class MsgService {
     }
 
     public void startServer() throws Exception {
-        String host = nodeInfo.getHost();
         int port = nodeInfo.getPort();
-        serverSocket = new ServerSocket(port);
+        FlushPolicy policy = nodeInfo.getFlushPolicy();
+        hub = nodeInfo.getHub();
 
         for (Node node : nodeInfo.getNeighbors().values()) {
-            MsgChannel ch = new MsgChannel(node.getId(), node.getHost(), node.getPort());
+            MsgChannel ch = new MsgChannel(node.getId(), node.getHost(), node.getPort(), policy, this);
+            if (hub != null && hub.isLocal(node.getId())) {
+                ch.connectLocal(hub, nodeInfo.getId());
+            } else if (nodeInfo.getCompressMin() >= 0) {
+                ch.setEncoder(new ChannelCodec(nodeInfo.getCompressMin()));
+            }
             channels.put(node.getId(), ch);
         }
+        if (!policy.isPerMessage() && !policy.isQueued()) {
+            // queued channels flush on their writer threads
+            startFlusher(policy.getMaxDelay());
+        }
+        if (localChannels() == channels.size()) {
+            // all neighbors are in the same Host, nothing to listen on
+            inChannelsReady = true;
+            return;
+        }
+
+        serverSocket = new ServerSocket();
+        if (policy.getReceiveBuffer() > 0) {
+            // set before bind so larger windows can be negotiated
+            serverSocket.setReceiveBufferSize(policy.getReceiveBuffer());
+        }
+        serverSocket.bind(new InetSocketAddress(port));
 
         (new Thread() {
             @Override
@@ -56,19 +97,27 @@ public class MsgService {
 
     }
 
+    private int localChannels() {
+        int count = 0;
+        for (MsgChannel ch : channels.values()) {
+            if (ch.isLocal()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private void startInChannels() throws IOException {
 
-        int count = 0;
+        int count = localChannels();
         while (count < channels.size()) {
 
             Socket socket = serverSocket.accept();
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String inputLine = in.readLine();
-            //Logger.Debug(inputLine);
-            Msg msg = new Msg(inputLine);
+            FrameReader in = new FrameReader(socket.getInputStream());
+            MsgView view = in.read();
 
-            if (msg.getAction().equals(MsgAction.CONNECT)) {
-                MsgChannel ch = channels.getOrDefault(msg.getSrcId(), null);
+            if (view != null && view.getAction().equals(MsgAction.CONNECT)) {
+                MsgChannel ch = channels.getOrDefault(view.getSrcId(), null);
                 if (ch != null && !ch.hasInChannel()) {
                     ch.assignInChannel(socket, in);
                     count++;
@@ -81,7 +130,7 @@ public class MsgService {
 
     public void startOutChannels() throws IOException {
 
-        int count = 0;
+        int count = localChannels();
         while (count < channels.size()) {
 
             for (MsgChannel ch : channels.values()) {
@@ -98,6 +147,36 @@ public class MsgService {
         outChannelsReady = true;
     }
 
+    // writes out what the round and batch policies held back for longer than delay ms
+    private void startFlusher(long delay) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(Math.max(1, delay));
+                    long now = System.currentTimeMillis();
+                    for (MsgChannel ch : channels.values()) {
+                        if (ch.hasOutChannel() && !ch.isFailed()) {
+                            ch.flushOlderThan(now, delay);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Logger.Debug("Flusher stopped.");
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // called when the node ends a round, the round policy sends the round's messages now
+    public void flush() {
+        for (MsgChannel ch : channels.values()) {
+            if (ch.hasOutChannel() && !ch.isFailed()) {
+                ch.flush();
+            }
+        }
+    }
+
     public void registerEventListenser(MsgEventListener listener) {
         if (listeners == null) {
             listeners = new ArrayList<>();
@@ -105,35 +184,144 @@ public class MsgService {
         listeners.add(listener);
     }
 
+    /*
+     * A neighbor may start a session before this node has opened it, those messages are kept
+     * until the session registers and are then delivered in arrival order.
+     */
+    public void registerSession(int session, MsgEventListener listener) {
+        synchronized (sessionListeners) {
+            sessionListeners.put(session, listener);
+            ConcurrentLinkedQueue<Msg> pending = pendingSessionMsgs.remove(session);
+            if (pending != null) {
+                for (Msg msg : pending) {
+                    listener.onReceiveMsg(msg);
+                }
+            }
+        }
+    }
+
+    public void unregisterSession(int session) {
+        synchronized (sessionListeners) {
+            closedSessions.add(session);
+            sessionListeners.remove(session);
+            pendingSessionMsgs.remove(session);
+        }
+    }
+
     public void listenToChannels() {
+        boolean local = false;
         for (MsgChannel ch : channels.values()) {
+            if (ch.isLocal()) {
+                local = true;
+                continue;
+            }
             if (!ch.isConnecting()) continue;
             (new Thread() {
                 @Override
                 public void run() {
-                    try (
-                            BufferedReader in = ch.getInChannel()
-                    ) {
+                    try (FrameReader in = ch.getInChannel()) {
                         while (ch.isConnecting()) {
-                            String inputLine;
-                            while ((inputLine = ch.getInChannel().readLine()) != null) {
-                                //Logger.Debug("\n=== Received Msg Start ===");
-                                //Logger.Debug(inputLine);
-                                Msg msg = new Msg(inputLine);
-                                Logger.Debug(String.format("[RECEIVED] %s | s: %d, f: %d, t: %d, r: %d, c: %s", msg.getAction(), msg.getSrcId(), msg.getFromId(), msg.getToId(), msg.getRound(), msg.getContent()));
-                                onReceiveMsg(msg);
+                            MsgView view;
+                            while ((view = in.read()) != null) {
+                                receive(ch, view, in.getWireLength() + 1);
+                            }
+                            if (ch.isConnecting()) {
+                                fail(ch.getNodeId(), "channel closed");
                             }
                         }
                         ch.shutdownInChannel();
                     } catch (IOException e) {
-                        StringWriter sw = new StringWriter();
-                        PrintWriter pw = new PrintWriter(sw);
-                        e.printStackTrace(pw);
-                        Logger.Error(sw.toString());
+                        // closing a failed channel ends its reader with an exception as well
+                        if (!ch.isFailed()) {
+                            fail(ch.getNodeId(), e.getMessage());
+                        }
                     }
                 }
             }).start();
         }
+        if (local) {
+            Thread thread = new Thread(this::listenToHub);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // one reader for all edges within the Host
+    private void listenToHub() {
+        MsgView view = new MsgView();
+        try {
+            while (true) {
+                LocalHub.Frame f = hub.take(nodeInfo.getId());
+                receive(channels.get(f.fromId), view.wrap(ByteBuffer.wrap(f.data), 0, f.data.length), f.data.length + 1);
+            }
+        } catch (InterruptedException e) {
+            Logger.Debug("Local reader stopped.");
+        }
+    }
+
+    private void receive(MsgChannel ch, MsgView view, int bytes) {
+        receivedMsgNo.incrementAndGet();
+        receivedBytes.addAndGet(bytes);
+        String action = view.getAction();
+        ch.touch();
+        nodeInfo.getMetrics().onReceive(action, ch, bytes);
+        if (nodeInfo.getTracer().isEnabled()) {
+            nodeInfo.getTracer().receive(view.toMsg());
+        }
+        if (action.equals(MsgAction.HEARTBEAT)) {
+            return;
+        }
+        if (journal != null) {
+            journal.record(view, nodeInfo.getPhaseNo(), nodeInfo.getRound(), 0);
+        }
+        if (Logger.isDebugging()) {
+            Logger.Debug("[RECEIVED] %s | s: %d, f: %d, t: %d, r: %d, c: %s", action, view.getSrcId(),
+                    view.getFromId(), view.getToId(), view.getRound(), view.getContent());
+        }
+        onReceiveFrame(view);
+    }
+
+    public void setJournal(Journal j) {
+        journal = j;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    // hands a journaled frame to the node as if it had arrived on a channel
+    public void replay(MsgView view) {
+        receivedMsgNo.incrementAndGet();
+        receivedBytes.addAndGet(view.getLength() + 1);
+        // counted like a received frame, a replay has no channels so only the per-action counts move
+        nodeInfo.getMetrics().onReceive(view.getAction(), channels.get(view.getFromId()), view.getLength() + 1);
+        if (nodeInfo.getTracer().isEnabled()) {
+            nodeInfo.getTracer().receive(view.toMsg());
+        }
+        onReceiveFrame(view);
+    }
+
+    public void setFailureDetector(FailureDetector detector) {
+        failureDetector = detector;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    /*
+     * Declares a neighbor failed, at most once per channel. Messages to it are dropped from now
+     * on. Without a failure detector the channel is only closed, recovery needs its timeouts.
+     */
+    public void fail(int targetId, String reason) {
+        MsgChannel ch = channels.get(targetId);
+        if (ch == null || !ch.markFailed()) {
+            return;
+        }
+        Logger.Info("[FAILURE] Neighbor %d failed: %s", targetId, reason);
+        if (failureDetector != null) {
+            nodeInfo.neighborFailed(targetId);
+        }
     }
 
     public void disconnect(int targetId) throws IOException {
@@ -143,18 +331,74 @@ public class MsgService {
         channels.get(targetId).disconnect();
     }
 
-    private void onReceiveMsg(Msg msg) {
+    /*
+     * Frames are handed over as a view into the reader's buffer, only a session that is not open
+     * yet needs its own copy.
+     */
+    private void onReceiveFrame(MsgView view) {
+        int session = view.getSession();
+        if (session != 0) {
+            MsgEventListener listener;
+            synchronized (sessionListeners) {
+                if (closedSessions.contains(session)) return;
+                listener = sessionListeners.get(session);
+                if (listener == null) {
+                    pendingSessionMsgs.computeIfAbsent(session, k -> new ConcurrentLinkedQueue<>()).add(view.toMsg());
+                    return;
+                }
+            }
+            listener.onReceiveFrame(view);
+            return;
+        }
+
         if (listeners.isEmpty()) return;
 
         for (MsgEventListener listener : listeners) {
-            listener.onReceiveMsg(msg);
+            listener.onReceiveFrame(view);
         }
     }
 
     public void sendMsg(Msg msg) {
-        Logger.Debug(String.format("[SEND] %s | s: %d, f: %d, t: %d, r: %d, c: %s", msg.getAction(), msg.getSrcId(), msg.getFromId(), msg.getToId(), msg.getRound(), msg.getContent()));
+        if (Logger.isDebugging()) {
+            Logger.Debug("[SEND] %s | s: %d, f: %d, t: %d, r: %d, c: %s", msg.getAction(), msg.getSrcId(),
+                    msg.getFromId(), msg.getToId(), msg.getRound(), msg.getContent());
+        }
 
         MsgChannel ch = channels.get(msg.getToId());
-        ch.getOutChannel().println(msg.toString());
+        if (ch == null || ch.isFailed()) {
+            return;
+        }
+        int bytes = ch.write(msg.toString(), msg.getRound());
+        if (bytes < 0) {
+            // the neighbor has not read this many lines, it is taken as gone
+            fail(ch.getNodeId(), String.format("send queue over %d lines", nodeInfo.getFlushPolicy().getQueueCap()));
+            return;
+        }
+        sentMsgNo.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+        nodeInfo.getMetrics().onSend(msg.getAction(), ch, bytes);
+        nodeInfo.getTracer().send(msg);
+    }
+
+    // a queued line is counted here once its writer thread wrote it
+    void addSentBytes(MsgChannel ch, int bytes) {
+        sentBytes.addAndGet(bytes);
+        ch.addSentBytes(bytes);
+    }
+
+    public long getSentMsgNo() {
+        return sentMsgNo.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getReceivedMsgNo() {
+        return receivedMsgNo.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
     }
 }
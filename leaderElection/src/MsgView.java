@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Reads the fields of a frame (action|src|from|to|round|epoch|session|content) in place. Receiving
+ * and buffering only look at the header, a Msg is made once the frame is processed. A view is
+ * reused, it is only valid until the next wrap.
+ */
+public class MsgView {
+    private static final int FIELDS = 8;
+
+    private ByteBuffer buf;
+    private int offset;
+    private int length;
+    private int[] starts = new int[FIELDS + 1];
+
+    public MsgView wrap(ByteBuffer b, int off, int len) {
+        buf = b;
+        offset = off;
+        length = len;
+        int f = 0;
+        starts[0] = off;
+        for (int i = off; i < off + len && f < FIELDS - 1; i++) {
+            if (b.get(i) == '|') {
+                starts[++f] = i + 1;
+            }
+        }
+        // missing fields read as empty
+        while (f < FIELDS) {
+            starts[++f] = off + len + 1;
+        }
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // one of the MsgAction constants, no copy for known actions
+    public String getAction() {
+        int start = starts[0];
+        int len = end(0) - start;
+        for (String a : Tracer.ACTIONS) {
+            if (matches(a, start, len)) {
+                return a;
+            }
+        }
+        return string(0);
+    }
+
+    public int getSrcId() {
+        return number(1);
+    }
+
+    public int getFromId() {
+        return number(2);
+    }
+
+    public int getToId() {
+        return number(3);
+    }
+
+    public int getRound() {
+        return number(4);
+    }
+
+    public int getEpoch() {
+        return number(5);
+    }
+
+    public int getSession() {
+        return number(6);
+    }
+
+    public String getContent() {
+        return string(7);
+    }
+
+    public Msg toMsg() {
+        Msg msg = new Msg();
+        msg.setAction(getAction());
+        msg.setSrcId(getSrcId());
+        msg.setFromId(getFromId());
+        msg.setToId(getToId());
+        msg.setRound(getRound());
+        msg.setEpoch(getEpoch());
+        msg.setSession(getSession());
+        msg.setContent(getContent());
+        return msg;
+    }
+
+    @Override
+    public String toString() {
+        return toMsg().toString();
+    }
+
+    private int end(int field) {
+        return Math.max(starts[field], starts[field + 1] - 1);
+    }
+
+    private boolean matches(String s, int start, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf.get(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int number(int field) {
+        int i = starts[field];
+        int end = end(field);
+        boolean negative = i < end && buf.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int v = 0;
+        for (; i < end; i++) {
+            v = v * 10 + (buf.get(i) - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    private String string(int field) {
+        int start = starts[field];
+        int len = end(field) - start;
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + start, len, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,11 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 public class NetNode {
 
@@ -8,45 +14,345 @@ public class NetNode {
 
             String configPath = args.length > 0 ? args[0] : "../config.txt";
             String nodeId = args.length > 1 ? args[1] : "-1";
+            HashMap<String, String> options = parseOptions(args, 2);
+            Logger.setDebugMode(options.containsKey("d"));
 
             Logger.setLocalNodeId(Integer.parseInt(nodeId));
             Logger.Info("Init node......");
 
             Node node = initNode(configPath, nodeId);
+            runNode(node, configPath, options, true);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+        }
+    }
+
+    // sets a node up from the options and runs it, in a Host only one node reads the console
+    public static void runNode(Node node, String configPath, HashMap<String, String> options, boolean console)
+            throws Exception {
+        if (options.containsKey("trace")) {
+            int capacity = Integer.parseInt(options.getOrDefault("traceCapacity", "65536"));
+            node.setTracer(new Tracer(options.get("trace"), node.getId(), capacity));
+        }
+        if (options.containsKey("checkpoint")) {
+            node.setCheckpoint(options.get("checkpoint"), Checkpoint.topologyHash(configPath));
+        }
+        if (options.containsKey("fused")) {
+            node.setFused(true);
+        }
+        if (options.containsKey("center")) {
+            node.setCenter(true);
+        }
+        if (options.containsKey("degreeBound")) {
+            node.setDegreeBound(Integer.parseInt(options.get("degreeBound")));
+        }
+        if (options.containsKey("route")) {
+            node.setRouting(options.get("route").isEmpty() ? Routing.TREE_MODE : options.get("route"));
+        }
+        if (options.containsKey("sync")) {
+            node.setSync(options.get("sync"), Integer.parseInt(options.getOrDefault("clusterDepth", "2")));
+        }
+        if (options.containsKey("flush") || options.containsKey("sndBuf") || options.containsKey("rcvBuf")
+                || options.containsKey("noDelay") || options.containsKey("sendQueue")) {
+            node.setFlushPolicy(new FlushPolicy(options.getOrDefault("flush", FlushPolicy.MESSAGE),
+                    Integer.parseInt(options.getOrDefault("flushBytes", "8192")),
+                    Long.parseLong(options.getOrDefault("flushMs", "5")),
+                    !options.getOrDefault("noDelay", "true").equals("false"),
+                    Integer.parseInt(options.getOrDefault("sndBuf", "0")),
+                    Integer.parseInt(options.getOrDefault("rcvBuf", "0")),
+                    !options.containsKey("sendQueue") ? 0 : options.get("sendQueue").isEmpty() ? FlushPolicy.QUEUE_CAP
+                            : Integer.parseInt(options.get("sendQueue"))));
+            Logger.Info("Flush policy: %s", node.getFlushPolicy());
+        }
+        if (options.containsKey("journal")) {
+            node.setJournal(new Journal(options.get("journal"), node.getId()));
+        }
+        if (options.containsKey("compress")) {
+            node.setCompressMin(options.get("compress").isEmpty() ? 64 : Integer.parseInt(options.get("compress")));
+        }
+
+        node.startMsgService();
+        if (options.containsKey("heartbeat")) {
+            long interval = options.get("heartbeat").isEmpty() ? 500 : Long.parseLong(options.get("heartbeat"));
+            long timeout = Long.parseLong(options.getOrDefault("failTimeout", String.valueOf(interval * 6)));
+            new FailureDetector(node.getMsgService(), interval, timeout).start();
+        }
+        registerAggregates(node);
+        logDeliveries(node);
+
+        StringBuilder tmp = new StringBuilder();
+        for (int nId : node.getNeighbors().keySet()) {
+            tmp.append(nId + "  ");
+        }
+        Logger.Info("Connecting Node: %s", tmp);
+
+        // only enable when debugging connections
+        // testMode(node);
+
+        if (!restore(node)) {
+            runPhases(node, "ALL");
+        } else {
+            printResult(node);
+            labelTree(node);
+        }
 
-            node.startMsgService();
+        Logger.Info(node.getMetrics().dump());
+        node.getTracer().close();
+        if (node.getMsgService().getJournal() != null) {
+            node.getMsgService().getJournal().flush();
+        }
 
-            StringBuilder tmp = new StringBuilder();
-            for (int nId : node.getNeighbors().keySet()) {
-                tmp.append(nId + "  ");
+        if (options.containsKey("daemon")) {
+            if (console) {
+                runDaemon(node);
+            } else {
+                runCommands(node);
             }
-            Logger.Info("Connecting Node: %s", tmp);
+        } else if (options.containsKey("heartbeat")) {
+            // failures are recovered through new runs
+            runCommands(node);
+        }
+    }
+
+    public static boolean restore(Node node) throws InterruptedException {
+        if (node.getRestore() == null) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        boolean restored = node.getRestore().run();
+        if (restored) {
+            node.restoreFrom(node.getRestore().getCheckpoint());
+            Logger.Info("Restored leader %d and BFS tree from the epoch %d checkpoint.", node.getLargestUID(),
+                    node.getRestore().getCheckpoint().getEpoch());
+        } else {
+            Logger.Info("No usable checkpoint on all nodes, recomputing.");
+        }
+        node.getMetrics().recordPhase("restore", System.currentTimeMillis() - startTime);
+        Logger.Info("[STATS] restore.ok=%d restore.msgs=%d restore.ms=%d", restored ? 1 : 0,
+                node.getMsgService().getSentMsgNo() - msgNo, node.getMetrics().getPhaseDuration("restore"));
+        return restored;
+    }
+
+    public static void runElection(Node node) throws InterruptedException {
+        Logger.Info("Begin to elect leader.");
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        long bytes = node.getMsgService().getSentBytes();
+        electLeader(node);
+        Logger.Info("Leader election finished. The result is: %s", node.getElectState());
+        node.getMetrics().recordPhase(phaseName(node, "elect"), System.currentTimeMillis() - startTime);
+        Logger.Info("[STATS] elect.rounds=%d elect.msgs=%d elect.bytes=%d elect.ms=%d", node.getRound(),
+                node.getMsgService().getSentMsgNo() - msgNo, node.getMsgService().getSentBytes() - bytes,
+                node.getMetrics().getPhaseDuration(phaseName(node, "elect")));
+    }
+
+    public static void runBuildTree(Node node) throws InterruptedException {
+        Logger.Info("Begin to create BFS tree.");
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        long bytes = node.getMsgService().getSentBytes();
+        buildTree(node);
+        Logger.Info("BFS tree building finished.");
+        node.getMetrics().recordPhase(phaseName(node, "bfs"), System.currentTimeMillis() - startTime);
+        Logger.Info("[STATS] bfs.sync=%s bfs.rounds=%d bfs.msgs=%d bfs.bytes=%d bfs.ms=%d",
+                node.getSynchronizer().getName(), node.getRound(),
+                node.getMsgService().getSentMsgNo() - msgNo, node.getMsgService().getSentBytes() - bytes,
+                node.getMetrics().getPhaseDuration(phaseName(node, "bfs")));
+    }
 
-            // only enable when debugging connections
-            // testMode(node);
+    private static String phaseName(Node node, String phase) {
+        String name = node.getEpoch() == 0 ? phase : phase + ".e" + node.getEpoch();
+        return node.getSession() == 0 ? name : name + ".s" + node.getSession();
+    }
+
+    // the tree came with the LEADER flood, only the DEGREE convergecast and END are left
+    public static void runFusedTree(Node node) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        long bytes = node.getMsgService().getSentBytes();
+        for (long seen = node.getProgress(); node.getBuildTreeState() != BuildTreeState.DONE
+                && !node.isRunAborted(); seen = node.getProgress()) {
+            node.awaitProgress(seen);
+        }
+        Logger.Info("BFS tree building finished.");
+        node.getMetrics().recordPhase(phaseName(node, "bfs"), System.currentTimeMillis() - startTime);
+        Logger.Info("[STATS] bfs.sync=fused bfs.rounds=0 bfs.msgs=%d bfs.bytes=%d bfs.ms=%d",
+                node.getMsgService().getSentMsgNo() - msgNo, node.getMsgService().getSentBytes() - bytes,
+                node.getMetrics().getPhaseDuration(phaseName(node, "bfs")));
+    }
+    public static void printResult(Node node) {
+        String tag = node.getSession() == 0 ? "" : String.format("[S%d] ", node.getSession());
+        Logger.Info("%sP: %s ---> %s", tag, node.getParent() == node.getId() ? " null" : node.getParent(), node.getId());
+
+        StringBuilder sb = new StringBuilder();
+        for (int key : node.getChildren().keySet()) {
+            sb.append(key);
+            sb.append(", ");
+        }
 
-            Logger.Info("Begin to elect leader.");
-            electLeader(node);
-            Logger.Info("Leader election finished. The result is: %s", node.getElectState());
+        Logger.Info("%sNode %s : {%s}", tag, node.getId(), sb.toString());
 
-            Logger.Info("Begin to create BFS tree.");
-            buildTree(node);
-            Logger.Info("BFS tree building finished.");
-            
-            Logger.Info("P: %s ---> %s", node.getParent() == node.getId() ? " null" : node.getParent(), node.getId());
+        if (node.getElectState() == ElectState.ISLEADER) {
+            Logger.Info("%s----------------------------------  Tree max degree is: %s", tag, node.getMaxDegree());
+        }
+    }
+
+    public static void runDaemon(Node node) throws Exception {
+        Logger.Info("Daemon mode. Commands: [ELECT] re-elect leader, [BFS] rebuild BFS tree, [ALL] both, "
+                + "[SESSION <id> ELECT|BFS|ALL|CLOSE [overlay config]] run in a concurrent session, "
+                + "[AGG <name>] aggregate over the BFS tree, [CAST <text>] [CASTFILE <path>] broadcast over the BFS tree, "
+                + "[CASTSUB <text>] multicast to the own subtree, [SEND <id> <text>] unicast with -route.");
 
-            StringBuilder sb = new StringBuilder();
-            for (int key : node.getChildren().keySet()) {
-                sb.append(key);
-                sb.append(", ");
+        Runnable task = () -> {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String command = line.trim().toUpperCase();
+                    if (command.equals("ELECT") || command.equals("BFS") || command.equals("ALL")) {
+                        node.requestRun(command);
+                    } else if (command.startsWith("SESSION ") && sessionCommand(line) != null) {
+                        node.requestRun(sessionCommand(line));
+                    } else if (command.startsWith("AGG ")) {
+                        String name = line.trim().split("\\s+")[1];
+                        node.getAggregation().query(name).whenComplete((value, e) -> {
+                            if (e != null) {
+                                Logger.Error("[AGG] %s failed: %s", name, e.getMessage());
+                            } else {
+                                Logger.Info("[AGG] %s = %s", name, Reducers.format(value));
+                            }
+                        });
+                    } else if (command.startsWith("CASTFILE ")) {
+                        byte[] data = Files.readAllBytes(Paths.get(line.trim().split("\\s+", 2)[1]));
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().broadcast(data), data.length);
+                    } else if (command.startsWith("CAST ")) {
+                        byte[] data = line.trim().split("\\s+", 2)[1].getBytes(StandardCharsets.UTF_8);
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().broadcast(data), data.length);
+                    } else if (command.startsWith("CASTSUB ")) {
+                        byte[] data = line.trim().split("\\s+", 2)[1].getBytes(StandardCharsets.UTF_8);
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().multicast(data,
+                                node.getChildren().keySet()), data.length);
+                    } else if (command.matches("SEND\\s+\\d+\\s+.*") && node.getRouting() != null) {
+                        String[] t = line.trim().split("\\s+", 3);
+                        byte[] data = t[2].getBytes(StandardCharsets.UTF_8);
+                        try {
+                            Logger.Info("[ROUTE] %s to %s: %d bytes", node.getRouting().send(Integer.parseInt(t[1]), data),
+                                    t[1], data.length);
+                        } catch (Exception e) {
+                            Logger.Error("[ROUTE] SEND failed: %s", e.getMessage());
+                        }
+                    } else if (!command.isEmpty()) {
+                        Logger.Info("Not Supported");
+                    }
+                }
+            } catch (Exception e) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                e.printStackTrace(pw);
+                Logger.Error(sw.toString());
+            }
+        };
+        new Thread(task).start();
+
+        runCommands(node);
+    }
+
+    private static void runCommands(Node node) throws Exception {
+        while (true) {
+            Msg run = node.takeRunCommand();
+            String command = run.getContent();
+            if (command.startsWith("SESSION ")) {
+                dispatchSession(node, run);
+                continue;
             }
+            if (command.equals("CLOSE")) {
+                Logger.Info("Session %d closed.", node.getSession());
+                return;
+            }
+            node.startEpoch(run.getEpoch());
+            Logger.Info("Epoch %d: %s requested by %d%s", run.getEpoch(), command, run.getSrcId(),
+                    node.getSession() == 0 ? "" : " in session " + node.getSession());
 
-            Logger.Info("Node %s : {%s}", node.getId(), sb.toString());
+            runPhases(node, command);
+        }
+    }
 
-            if (node.getElectState() == ElectState.ISLEADER) {
-                Logger.Info("----------------------------------  Tree max degree is: %s", node.getMaxDegree());
+    // a run is given up as soon as a newer command is waiting
+    static void runPhases(Node node, String command) throws IOException, InterruptedException {
+        if (command.equals("ELECT") || command.equals("ALL")) {
+            runElection(node);
+        }
+        if (command.equals("BFS") && !node.isRunAborted()) {
+            runBuildTree(node);
+        } else if (command.equals("ALL") && !node.isRunAborted()) {
+            if (node.isFused()) {
+                runFusedTree(node);
+            } else {
+                runBuildTree(node);
             }
+        }
+        if (node.isRunAborted()) {
+            Logger.Info("Run given up for a newer command.");
+            return;
+        }
+        node.saveCheckpoint();
+        printResult(node);
+        labelTree(node);
+    }
+
+    // an ELECT alone leaves no tree, the routes of the last one stay
+    private static void labelTree(Node node) {
+        if (node.getRouting() != null && node.getBuildTreeState() == BuildTreeState.DONE) {
+            node.getRouting().treeDone();
+        }
+    }
 
+    /*
+     * SESSION <id> <command> [overlay config]: every session gets its own Node and run loop, so
+     * commands for different sessions overlap while commands within a session stay in order.
+     * Nodes that are not part of the overlay ignore the session.
+     */
+    private static void dispatchSession(Node node, Msg run) {
+        try {
+            String[] t = run.getContent().split("\\s+");
+            int sessionId = Integer.parseInt(t[1]);
+            Node session = node.getSession(sessionId);
+            if (session == null) {
+                if (t[2].equals("CLOSE")) return;
+                HashMap<Integer, Node> overlay = null;
+                if (t.length > 3) {
+                    Node member = initNode(t[3], String.valueOf(node.getId()));
+                    if (member == null) {
+                        Logger.Info("Not a member of session %d.", sessionId);
+                        return;
+                    }
+                    overlay = member.getNeighbors();
+                }
+                session = node.openSession(sessionId, overlay);
+                registerAggregates(session);
+                logDeliveries(session);
+                Node s = session;
+                new Thread(() -> {
+                    try {
+                        runCommands(s);
+                    } catch (Exception e) {
+                        StringWriter sw = new StringWriter();
+                        PrintWriter pw = new PrintWriter(sw);
+                        e.printStackTrace(pw);
+                        Logger.Error(sw.toString());
+                    }
+                }).start();
+            }
+            if (t[2].equals("CLOSE")) {
+                node.closeSession(sessionId);
+            }
+            Msg command = new Msg(run.toString());
+            command.setContent(t[2]);
+            session.addRunCommand(command);
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
@@ -55,9 +361,69 @@ public class NetNode {
         }
     }
 
+    private static String sessionCommand(String line) {
+        String[] t = line.trim().split("\\s+");
+        if (t.length < 3 || t.length > 4 || !t[1].matches("[1-9][0-9]*")) {
+            return null;
+        }
+        String command = t[2].toUpperCase();
+        if (!command.equals("ELECT") && !command.equals("BFS") && !command.equals("ALL") && !command.equals("CLOSE")) {
+            return null;
+        }
+        return "SESSION " + t[1] + " " + command + (t.length > 3 ? " " + t[3] : "");
+    }
+
+    public static void logDeliveries(Node node) {
+        node.getDissemination().addListener(new DeliveryListener() {
+            @Override
+            public void onDeliver(int srcId, String streamId, byte[] data) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                Logger.Info("[CAST] stream %s from %d: %d bytes, crc32 %08x%s", streamId, srcId, data.length,
+                        crc.getValue(), data.length <= 256 ? ": " + new String(data, StandardCharsets.UTF_8) : "");
+            }
+        });
+        if (node.getRouting() != null) {
+            node.getRouting().addListener(new DeliveryListener() {
+                @Override
+                public void onDeliver(int srcId, String routeId, byte[] data) {
+                    Logger.Info("[ROUTE] %s from %d: %d bytes%s", routeId, srcId, data.length,
+                            data.length <= 256 ? ": " + new String(data, StandardCharsets.UTF_8) : "");
+                }
+            });
+        }
+    }
+
+    public static void registerAggregates(Node node) {
+        Aggregation aggregation = node.getAggregation();
+        aggregation.register("nodes", Reducers.count(), () -> 1L);
+        aggregation.register("degreeSum", Reducers.sum(), () -> (long) node.getNeighbors().size());
+        aggregation.register("maxDegree", Reducers.max(),
+                () -> (long) (node.getChildren().size() + (node.getParent() == node.getId() ? 0 : 1)));
+        aggregation.register("topIds", Reducers.topK(3), () -> new long[] { node.getId() });
+        aggregation.register("degrees", Reducers.histogram(),
+                () -> Reducers.bucket(new long[] { 2, 4, 8, 16 }, node.getNeighbors().size()));
+        aggregation.register("msgs", Reducers.sum(), () -> node.getMsgService().getSentMsgNo());
+    }
+
+    public static HashMap<String, String> parseOptions(String[] args, int from) {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String[] kv = args[i].replaceFirst("^-", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        return options;
+    }
+
     public static Node initNode(String configs, String nodeId) throws Exception {
+        int id = Integer.parseInt(nodeId);
+        return initNodes(configs, Collections.singleton(id)).get(id);
+    }
+
+    // reads the config once for all the given nodes, nodes it does not list are left out
+    public static HashMap<Integer, Node> initNodes(String configs, Set<Integer> ids) throws Exception {
 
-        Node node = null;
+        HashMap<Integer, Node> result = new HashMap<>();
         HashMap<String, String> nodes = new HashMap<>();
         try (BufferedReader br = new BufferedReader(new FileReader(configs))) {
             String line;
@@ -79,27 +445,31 @@ public class NetNode {
                         }
                         nodes.put(t[0], line);
                     } else if (lineNum > nodeNum) {
-                        if(!t[0].equals(String.valueOf(nodeId))) {
+                        int nodeId = Integer.parseInt(t[0]);
+                        if (!ids.contains(nodeId) || result.containsKey(nodeId)) {
                             continue;
                         }
-                        String nodeInfo = nodes.get(nodeId);
+                        String nodeInfo = nodes.get(t[0]);
                         String[] s1 = nodeInfo.trim().split("\\s+");
-                        node = new Node(Integer.parseInt(s1[0]), s1[1], Integer.parseInt(s1[2]));
+                        Node node = new Node(Integer.parseInt(s1[0]), s1[1], Integer.parseInt(s1[2]));
                         for (int i = 1; i < t.length; i++) {
-                            if (t[i].equals(nodeId)) continue;
+                            if (t[i].equals(t[0])) continue;
                             if (!nodes.containsKey(t[i])) {
                                 throw new Exception(String.format("Can not find neighbor [ %s ] in nodeList.", t[i]));
                             }
                             String[] s2 = nodes.get(t[i]).trim().split("\\s+");
                             node.addNeighbor(Integer.parseInt(s2[0]), s2[1].trim(), Integer.parseInt(s2[2]));
                         }
-                        break;
+                        result.put(nodeId, node);
+                        if (result.size() == ids.size()) {
+                            break;
+                        }
                     }
                 }
             }
         }
 
-        return node;
+        return result;
     }
 
     private static boolean isValidLine(String line) {
@@ -141,32 +511,45 @@ public class NetNode {
         new Thread(task).start();
     }
 
-    public static void electLeader(Node node) {
+    public static void electLeader(Node node) throws InterruptedException {
         node.leaderElectInit();
         int roundMsgNumber = node.getNeighbors().size();
-        while (node.getNodeState() == NodeState.ELECT) {
+        if (roundMsgNumber == 0) {
+            // cut off from all other nodes, no message would ever end the rounds
+            node.determineLeader();
+        }
+        // blocks between rounds, a hundred hosted nodes share the cores with their message threads
+        while (node.getNodeState() == NodeState.ELECT && !node.isRunAborted()) {
+            long seen = node.getProgress();
             if (node.getProcessedMsgNoElect() == roundMsgNumber * node.getRound()) {
                 node.sendElectMsg();
                 node.updateRound();
                 Logger.Info("Round: %s, UID: %s, Dis: %s", node.getRound(), node.getLargestUID(), node.getDistanceOfLargestUID());
+            } else {
+                node.awaitProgress(seen);
             }
         }
     }
 
-    public static void buildTree(Node node) {
+    public static void buildTree(Node node) throws InterruptedException {
+        // taken before buildTreeInit clears the tree it may run over
+        Synchronizer sync = node.getSynchronizer();
         node.buildTreeInit();
         node.markLeader();
+        sync.start();
 
-        int roundMsgNumber = node.getNeighbors().size();
-        while (node.getBuildTreeState() != BuildTreeState.DONE) {
-            if (node.getProcessedMsgNoBuild() == roundMsgNumber * node.getRound()) {
+        while (node.getBuildTreeState() != BuildTreeState.DONE && !node.isRunAborted()) {
+            long seen = node.getProgress();
+            if (sync.isRoundDone(node.getRound())) {
                 if (node.getBuildTreeState() == BuildTreeState.MARKED) {
                     node.sendSearchMsg();
                     node.setBuildTreeState(BuildTreeState.WAITING);
-                } else {
-                    node.sendEmptyMsg();
+                    node.checkConverge();
                 }
+                sync.endRound(node.getRound() + 1, node.getNeighbors().keySet(), MsgFactory.buildMsg(node, "EMPTY"));
                 node.updateRound();
+            } else {
+                node.awaitProgress(seen);
             }
         }
     }
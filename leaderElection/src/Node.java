@@ -1,30 +1,54 @@
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
 
-enum NodeState {
-    IDLE, ELECT, BUILDTREE
-}
-enum ElectState {
-    UNKNOWN, ISLEADER, ISNOTLEADER
-}
-
-enum BuildTreeState {
-    WAITING, MARKED, DONE
-}
 public class Node {
     private int id;
     private String host;
     private int port;
     private MsgService msgService;
+    private Metrics metrics;
+    private Tracer tracer = Tracer.DISABLED;
+    private FlushPolicy flushPolicy = FlushPolicy.perMessage();
+    private Journal journal;
+    // set when the node runs in a Host, edges to the other hosted nodes stay in memory
+    private LocalHub hub;
+    // contents of at least this many bytes are deflated, -1 sends frames as they are
+    private int compressMin = -1;
+    private Aggregation aggregation = new Aggregation(this);
+    private Dissemination dissemination = new Dissemination(this);
+    private Restore restore;
+    private Repair repair = new Repair(this);
+    private String checkpointDir;
+    private long topologyHash;
     private HashMap<Integer, Node> neighbors = new HashMap<>();
 
-    private static ConcurrentLinkedQueue<Msg> bufferedMsg = new ConcurrentLinkedQueue<>();
+    private MsgInbox bufferedMsg = new MsgInbox();
+
+    // session 0 owns the connections, every other session is a Node sharing them
+    private int session;
+    private HashMap<Integer, Node> sessions = new HashMap<>();
+    private Node owner;
+    private volatile boolean closed = false;
 
     private NodeState nodeState;
     private int round;
+    // round resets since the node started, (phaseNo, round) never goes back
+    private volatile int phaseNo;
+    private volatile int epoch;
+    private int highestRunEpoch;
+    private LinkedBlockingQueue<Msg> runCommands = new LinkedBlockingQueue<>();
+    // bumped by every processed message, round and run command; the run and buffer threads wait
+    // on it instead of spinning, at most PROGRESS_WAIT_MS in case a change is not signalled
+    private static final long PROGRESS_WAIT_MS = 100;
+    private final Object progressLock = new Object();
+    private long progress;
 
     private int largestUID;
     private int receivedLargestUID;
@@ -33,6 +57,22 @@ public class Node {
     private int unchangedRound;
     private int processedMsgNoElect;
 
+    // fused mode: the neighbor the largest UID first came from is the BFS parent
+    private boolean fused;
+    private int receivedParent = -1;
+    private int electParent = -1;
+
+    // center mode: the root moves from the leader to the center of the BFS tree
+    private boolean center;
+    private HashMap<Integer, Integer> branches = new HashMap<>();
+
+    // tree degree the root brings the tree down to before END, 0 for none
+    private int degreeBound;
+    private DegreeBound bound = new DegreeBound(this, 0);
+
+    // unicast over the tree, null unless -route
+    private Routing routing;
+
     private boolean isMarked;
     private ElectState electState;
     private BuildTreeState buildTreeState;
@@ -42,7 +82,14 @@ public class Node {
     private HashMap<Integer, Node> children = new HashMap<>();
     private int maxDegree;
     private int parent;
-    
+    private List<Integer> ancestors = new ArrayList<>();
+    private int treeEpoch = -1;
+
+    // rounds of the BFS phase, beta and gamma reuse the tree of the previous run
+    private String syncMode = "alpha";
+    private int clusterDepth = 2;
+    private Synchronizer synchronizer;
+
 
     public Node(int id, String host, int port) {
         this.id = id;
@@ -52,7 +99,10 @@ public class Node {
 
     public void startMsgService() throws Exception {
         MsgFactory.setLocalNodeId(id);
+        metrics = new Metrics(this);
+        metrics.register();
         msgService = new MsgService(this);
+        msgService.setJournal(journal);
         msgService.startServer();
         Logger.Info("Msg Service started......");
 
@@ -84,6 +134,15 @@ public class Node {
         Logger.Info("Ready for messaging....");
     }
 
+    // no sockets, messages come from a journal through MsgService.replay
+    public void startReplay() {
+        MsgFactory.setLocalNodeId(id);
+        metrics = new Metrics(this);
+        msgService = new MsgService(this);
+        checkBuffer();
+        waitForMessage();
+    }
+
     public void connectNeighbors() throws IOException {
         msgService.startOutChannels();
     }
@@ -94,23 +153,69 @@ public class Node {
             public void onReceiveMsg(Msg msg) {
                 processMsg(msg);
             }
+
+            @Override
+            public void onReceiveFrame(MsgView view) {
+                processFrame(view);
+            }
         });
         msgService.listenToChannels();
     }
 
+    // messages of a later epoch or round wait in the buffer
+    private boolean isDeferred(int epoch, int round) {
+        return epoch > getEpoch() || (round != getRound() && round != -1);
+    }
+
+    /*
+     * Gates a received frame on its header. Frames that wait are copied into the buffer as they
+     * are, only a frame processed now becomes a Msg.
+     */
+    private void processFrame(MsgView view) {
+        String action = view.getAction();
+        if (!action.equals(MsgAction.RUN) && !action.equals(MsgAction.DISCONNECT)) {
+            int e = view.getEpoch();
+            if (e < getEpoch()) {
+                return;
+            }
+            if (isDeferred(e, view.getRound())) {
+                addFrameToBuffer(view);
+                return;
+            }
+        }
+        processMsg(view.toMsg());
+    }
+
     private void processMsg(Msg msg) {
         try {
-            if (msg.getRound() != getRound() && msg.getRound() != -1) {
-                addMsgToBuffer(msg);
+            processAction(msg);
+        } finally {
+            signalProgress();
+        }
+    }
+
+    private void processAction(Msg msg) {
+        try {
+            if (msg.getAction().equals(MsgAction.RUN)) {
+                processRunMsg(msg);
                 return;
             }
-
             if (msg.getAction().equals(MsgAction.DISCONNECT)) {
                 msgService.disconnect(msg.getFromId());
-            } else if (msg.getAction().equals(MsgAction.ELECTLEADER)) {
+                return;
+            }
+            if (msg.getEpoch() < getEpoch()) {
+                return;
+            }
+            if (isDeferred(msg.getEpoch(), msg.getRound())) {
+                addMsgToBuffer(msg);
+                return;
+            }
+
+            if (msg.getAction().equals(MsgAction.ELECTLEADER)) {
                 // Electing leader
                 // receive a broadcast msg from leader
-                if (msg.getContent().equals("LEADER")) {
+                if (msg.getContent().startsWith("LEADER")) {
                     leaderElected(msg);
                 } else if (msg.getRound() == getRound()) {
                     // receive msg from nbs in the same round
@@ -118,7 +223,7 @@ public class Node {
                     String[] knowledge = msg.getContent().split(",");
                     int uid = Integer.parseInt(knowledge[0]);
                     int d = Integer.parseInt(knowledge[1]);
-                    updateKnowledge(uid, d);
+                    updateKnowledge(uid, d, msg.getFromId());
                     if (getProcessedMsgNoElect() == getRound() * neighbors.size() - 1) {
                         checkKnowledge();
                     }
@@ -130,6 +235,7 @@ public class Node {
                     processSearchMsg(fromId);
                 }
                 updateProcessedMsgNoBuild();
+                getSynchronizer().received(msg, msg.getRound());
             } else if (msg.getAction().equals(MsgAction.REPLY)) {
                 if (msg.getContent().equals("ACCEPT")) {
                     int fromId = msg.getFromId();
@@ -140,13 +246,50 @@ public class Node {
             } else if (msg.getAction().equals(MsgAction.TEST)) {
                 Logger.Debug("%s", msg.toString());
             } else if (msg.getAction().equals(MsgAction.DEGREE)) {
+                String[] t = msg.getContent().trim().split(",");
                 int d = this.getChildren().size() + (this.getParent() == this.getId() ? 0 : 1);
-                this.maxDegree = Math.max(d, Math.max(this.maxDegree, Integer.parseInt(msg.getContent().trim())));
+                this.maxDegree = Math.max(d, Math.max(this.maxDegree, Integer.parseInt(t[0])));
+                if (t.length > 1) {
+                    branches.put(msg.getFromId(), Integer.parseInt(t[1]) + 1);
+                }
                 updateChildrenMsgNo();
                 checkConverge();
            } else if (msg.getAction().equals(MsgAction.END)) {
+                // END carries the path from the root, a failure repair needs it
+                setAncestors(msg.getContent());
+                int root = Integer.parseInt(msg.getContent().split("/")[0]);
+                if (root != getLargestUID()) {
+                    // the center mode moved the root away from the leader
+                    setLargestUID(root);
+                    setElectState(ElectState.ISNOTLEADER);
+                }
+                msg.setContent(msg.getContent() + "/" + id);
                 broadcastToChildren(msg);
+                treeEpoch = getEpoch();
                 setBuildTreeState(BuildTreeState.DONE);
+            } else if (msg.getAction().equals(MsgAction.CENTER)) {
+                String[] t = msg.getContent().split(",");
+                moveRoot(msg.getFromId(), Integer.parseInt(t[0]), Integer.parseInt(t[1]), Integer.parseInt(t[2]));
+            } else if (msg.getAction().equals(MsgAction.ROUTE)) {
+                if (routing != null) {
+                    routing.process(msg);
+                }
+            } else if (msg.getAction().equals(MsgAction.BOUND)) {
+                bound.process(msg);
+            } else if (msg.getAction().equals(MsgAction.AGGREGATE)) {
+                aggregation.process(msg);
+            } else if (msg.getAction().equals(MsgAction.DISSEMINATE)) {
+                dissemination.process(msg);
+            } else if (msg.getAction().equals(MsgAction.REPAIR)) {
+                repair.process(msg);
+            } else if (msg.getAction().equals(MsgAction.SYNC)) {
+                getSynchronizer().process(msg);
+            } else if (msg.getAction().equals(MsgAction.RESTORE)) {
+                if (restore != null) {
+                    restore.process(msg);
+                } else if (!msg.getContent().equals("FAIL")) {
+                    msgService.sendMsg(MsgFactory.restoreMsg(this, msg.getFromId(), "FAIL"));
+                }
             } else {
                 Logger.Debug(String.format("[!!!!Lost!!!!] %s | s: %d, f: %d, t: %d, r: %d, c: %s, STATE: %s", msg.getAction(), msg.getSrcId(), msg.getFromId(), msg.getToId(), msg.getRound(), msg.getContent(), getNodeState()));
             }
@@ -158,21 +301,258 @@ public class Node {
         }
     }
 
+    /*
+     * Opens an independent protocol instance over the same connections. overlay restricts the
+     * instance to a subset of the neighbors, null keeps all of them.
+     */
+    public synchronized Node openSession(int sessionId, HashMap<Integer, Node> overlay) throws Exception {
+        Node s = sessions.get(sessionId);
+        if (s != null) {
+            return s;
+        }
+        if (sessionId == 0) {
+            throw new Exception("Session 0 is reserved.");
+        }
+        if (overlay != null) {
+            for (int nId : overlay.keySet()) {
+                if (!neighbors.containsKey(nId)) {
+                    throw new Exception(String.format("Session %d: [ %d ] is not a neighbor of %d.", sessionId, nId, id));
+                }
+            }
+        }
+        s = new Node(id, host, port);
+        s.session = sessionId;
+        s.owner = this;
+        s.msgService = msgService;
+        s.metrics = metrics;
+        s.tracer = tracer;
+        s.syncMode = syncMode;
+        s.fused = fused;
+        s.center = center;
+        s.degreeBound = degreeBound;
+        if (routing != null) {
+            s.routing = new Routing(s, routing.getMode());
+        }
+        s.clusterDepth = clusterDepth;
+        s.neighbors = overlay == null ? neighbors : overlay;
+        sessions.put(sessionId, s);
+
+        s.checkBuffer();
+        Node target = s;
+        msgService.registerSession(sessionId, new MsgEventListener() {
+            @Override
+            public void onReceiveMsg(Msg msg) {
+                target.processMsg(msg);
+            }
+
+            @Override
+            public void onReceiveFrame(MsgView view) {
+                target.processFrame(view);
+            }
+        });
+        return s;
+    }
+
+    /*
+     * Called once per failed neighbor. A run in progress cannot finish without it and is started
+     * again on the remaining nodes, a finished tree is repaired around the failed node.
+     */
+    public void neighborFailed(int nId) {
+        List<Node> open;
+        synchronized (this) {
+            open = new ArrayList<>(sessions.values());
+        }
+        for (Node s : open) {
+            s.neighborFailed(nId);
+        }
+        if (!neighbors.containsKey(nId)) {
+            return;
+        }
+        boolean wasChild;
+        synchronized (this) {
+            // copies, other threads may be iterating over the old maps
+            HashMap<Integer, Node> n = new HashMap<>(neighbors);
+            n.remove(nId);
+            neighbors = n;
+            wasChild = children.containsKey(nId);
+            removeChild(nId);
+            if (wasChild || parent == nId) {
+                // repaired or not, only a new BFS tree is known to be the same on all nodes
+                treeEpoch = -1;
+            }
+        }
+        signalProgress();
+
+        if (isRunAborted()) {
+            // the next run is already queued and will not include the failed node
+            return;
+        }
+        if (getBuildTreeState() != BuildTreeState.DONE) {
+            Logger.Info("[FAILURE] Run in progress, starting it again without %d", nId);
+            requestRecoveryRun();
+        } else if (getParent() == nId && nId == getLargestUID()) {
+            Logger.Info("[FAILURE] Leader %d failed, electing a new one", nId);
+            requestRecoveryRun();
+        } else if (getParent() == nId) {
+            repair.start(nId);
+        } else if (wasChild) {
+            repair.repaired(nId);
+        }
+    }
+
+    public void requestRecoveryRun() {
+        if (session == 0) {
+            requestRun("ALL");
+        } else {
+            owner.requestRun("SESSION " + session + " ALL");
+        }
+    }
+
+    // a newer command is waiting, the run in progress is given up
+    public boolean isRunAborted() {
+        for (Msg m : runCommands) {
+            if (!m.getContent().startsWith("SESSION ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void closeSession(int sessionId) {
+        Node s = sessions.remove(sessionId);
+        if (s != null) {
+            msgService.unregisterSession(sessionId);
+            s.closed = true;
+        }
+    }
+
+    public synchronized Node getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    private synchronized void processRunMsg(Msg msg) {
+        if (msg.getEpoch() <= highestRunEpoch) {
+            return;
+        }
+        highestRunEpoch = msg.getEpoch();
+        transferMsg(msg);
+        runCommands.add(msg);
+        signalProgress();
+    }
+
+    public synchronized void requestRun(String command) {
+        processRunMsg(MsgFactory.runMsg(this, Math.max(highestRunEpoch, getEpoch()) + 1, command));
+    }
+
+    public Msg takeRunCommand() throws InterruptedException {
+        return runCommands.take();
+    }
+
+    public void addRunCommand(Msg msg) {
+        runCommands.add(msg);
+    }
+
+    public void startEpoch(int e) {
+        int dropped = bufferedMsg.releaseBefore(e);
+        for (int i = 0; i < dropped; i++) {
+            metrics.onUnbuffer();
+        }
+        this.round = 0;
+        this.phaseNo = this.phaseNo + 1;
+        synchronized (this) {
+            this.processedMsgNoElect = 0;
+            this.processedMsgNoBuild = 0;
+        }
+        this.epoch = e;
+        signalProgress();
+    }
+
+    public void setCheckpoint(String dir, long hash) throws IOException {
+        checkpointDir = dir;
+        topologyHash = hash;
+        restore = new Restore(this, Checkpoint.loadLatest(dir, id, hash));
+    }
+
+    public Restore getRestore() {
+        return restore;
+    }
+
+    public void saveCheckpoint() throws IOException {
+        if (checkpointDir != null) {
+            Checkpoint.capture(this, topologyHash).save(checkpointDir);
+        }
+    }
+
+    public void restoreFrom(Checkpoint cp) {
+        this.nodeState = NodeState.IDLE;
+        this.electState = cp.getElectState();
+        this.largestUID = cp.getLeader();
+        this.parent = cp.getParent();
+        this.maxDegree = cp.getMaxDegree();
+        this.isMarked = true;
+        this.children = new HashMap<>();
+        for (int c : cp.getChildren()) {
+            children.put(c, neighbors.get(c));
+        }
+        this.ancestors = cp.getAncestors();
+        this.treeEpoch = cp.getEpoch();
+        this.buildTreeState = BuildTreeState.DONE;
+    }
+
     public void leaderElected(Msg msg) {
+        if (fused) {
+            leaderFlood(msg);
+            return;
+        }
         if (getNodeState() == NodeState.ELECT) {
             if (getNodeState() == NodeState.ELECT) {
                 setNodeState(NodeState.IDLE);
             }
+            if (getElectState() == ElectState.UNKNOWN) {
+                // the flood can overtake the last rounds here, without a state no DEGREE is ever sent
+                setLargestUID(msg.getSrcId());
+                setElectState(ElectState.ISNOTLEADER);
+            }
             transferMsg(msg);
         }
     }
 
-    public synchronized void updateKnowledge(int uid, int d) {
+    /*
+     * Fused mode. Every node takes the LEADER flood to all its neighbors once, the sender included,
+     * with the parent it kept from the rounds: one LEADER per edge, so a node knows its children
+     * once all arrived, and the DEGREE convergecast and END run as after a BFS. The parent is a BFS
+     * parent, a UID moves one hop per round and comes first over a shortest path.
+     */
+    private synchronized void leaderFlood(Msg msg) {
+        int from = msg.getFromId();
+        if (Integer.parseInt(msg.getContent().split(",")[1]) == id) {
+            children.put(from, neighbors.get(from));
+        }
+        if (getNodeState() == NodeState.ELECT) {
+            setNodeState(NodeState.IDLE);
+            setLargestUID(msg.getSrcId());
+            setElectState(ElectState.ISNOTLEADER);
+            // the flood only overtakes the rounds if the synchronizer lags, any sender keeps it a tree
+            setParent(electParent == -1 ? from : electParent);
+            markNode();
+            Msg leader = new Msg(msg.toString());
+            leader.setContent("LEADER," + getParent());
+            leader.setFromId(id);
+            broadcastMsg(leader);
+        }
+        updateReplyMsgNo();
+        checkConverge();
+    }
+
+    public synchronized void updateKnowledge(int uid, int d, int from) {
         if (uid == getLargestUID()) {
             if (d > getReceivedDistanceOfLargestUID()) {
                 setReceivedDistanceOfLargestUID(d);
             }
         } else if (uid > getLargestUID()) {
+            if (uid > getReceivedLargestUID() || (uid == getReceivedLargestUID() && from < receivedParent)) {
+                receivedParent = from;
+            }
             if (uid >= getReceivedLargestUID()) {
                 setReceivedLargestUID(uid);
                 setReceivedDistanceOfLargestUID(d + 1);
@@ -183,6 +563,9 @@ public class Node {
     public void checkKnowledge() {
         if (getReceivedDistanceOfLargestUID() != getDistanceOfLargestUID() || getReceivedLargestUID() != getLargestUID()) {
             setUnchangedRound(0);
+            if (getReceivedLargestUID() != getLargestUID()) {
+                electParent = receivedParent;
+            }
             setLargestUID(getReceivedLargestUID());
             setDistanceOfLargestUID(getReceivedDistanceOfLargestUID());
         } else if (getUnchangedRound() == 0) {
@@ -205,7 +588,12 @@ public class Node {
     public void broadcastLeader() {
         Msg electMsg = MsgFactory.electMsg(this);
         Logger.Debug("Leader MSG: %s", electMsg.getRound());
-        electMsg.setContent("LEADER");
+        if (fused) {
+            setParent(id);
+            markNode();
+            checkConverge();
+        }
+        electMsg.setContent(fused ? "LEADER," + id : "LEADER");
         electMsg.setRound(-1);
         broadcastMsg(electMsg);
     }
@@ -240,15 +628,23 @@ public class Node {
     }
 
     public void leaderElectInit() {
+        metrics.resetRoundClock();
         this.nodeState = NodeState.ELECT;
         this.electState = ElectState.UNKNOWN;
+        this.buildTreeState = BuildTreeState.WAITING;
         this.round = 0;
+        this.phaseNo = this.phaseNo + 1;
         this.largestUID = id;
         this.receivedLargestUID = id;
         this.distanceOfLargestUID = 0;
         this.receivedDistanceOfLargestUID = 0;
         this.unchangedRound = 0;
         this.processedMsgNoElect = 0;
+        this.receivedParent = -1;
+        this.electParent = -1;
+        if (fused) {
+            resetTree();
+        }
     }
 
     public void sendElectMsg() {
@@ -263,15 +659,26 @@ public class Node {
     }
 
     public void buildTreeInit() {
+        metrics.resetRoundClock();
         this.nodeState = NodeState.BUILDTREE;
         this.buildTreeState = BuildTreeState.WAITING;
-        this.isMarked = false;
         this.round = 0;
+        this.phaseNo = this.phaseNo + 1;
+        resetTree();
+    }
+
+    private void resetTree() {
+        this.isMarked = false;
         this.maxDegree = 0;
         this.parent = -1;
         this.processedMsgNoBuild = 0;
         this.childrenMsgNo = 0;
         this.replyMsgNo = 0;
+        this.children = new HashMap<>();
+        this.branches = new HashMap<>();
+        this.bound = new DegreeBound(this, degreeBound);
+        this.ancestors = new ArrayList<>();
+        this.treeEpoch = -1;
     }
 
     public void markLeader() {
@@ -301,25 +708,40 @@ public class Node {
         if (getReplyMsgNo() == this.neighbors.size() && getChildrenMsgNo() == this.children.size()) {
             if (getElectState() == ElectState.ISNOTLEADER) {
                 sendDegreeMsg();
+            } else if (getElectState() == ElectState.ISLEADER && center) {
+                moveRoot(-1, 0, this.maxDegree, height());
             } else if (getElectState() == ElectState.ISLEADER) {
-                setBuildTreeState(BuildTreeState.DONE);
-                sendEndMsg();
+                rootReady();
             }
         }
     }
 
+    // the root knows the tree, only the degree bound may still change it
+    private void rootReady() {
+        if (degreeBound > 0 && maxDegree > degreeBound) {
+            bound.start();
+        } else {
+            finishTree();
+        }
+    }
+
+    public synchronized void finishTree() {
+        treeEpoch = getEpoch();
+        setBuildTreeState(BuildTreeState.DONE);
+        sendEndMsg();
+    }
+
     public boolean getIsMarked() {
         return this.isMarked;
     }
 
     public void sendSearchMsg() {
         Msg msg = MsgFactory.buildMsg(this, "SEARCH");
-        broadcastMsg(msg);
-    }
-
-    public void sendEmptyMsg() {
-        Msg msg = MsgFactory.buildMsg(this, "EMPTY");
-        broadcastMsg(msg);
+        for (Node node : neighbors.values()) {
+            msg.setToId(node.getId());
+            msgService.sendMsg(msg);
+            getSynchronizer().sent(msg, msg.getRound());
+        }
     }
     
     public void sendAcceptMsg(int to) {
@@ -335,46 +757,170 @@ public class Node {
     public void sendDegreeMsg() {
         Msg msg = MsgFactory.degreeMsg(this);
         msg.setToId(this.parent);
-        msg.setContent(String.valueOf(Math.max(this.children.size() + 1, this.maxDegree)));
+        String degree = String.valueOf(Math.max(this.children.size() + 1, this.maxDegree));
+        msg.setContent(center ? degree + "," + height() : degree);
         msgService.sendMsg(msg);
     }
 
+    // every neighbor of the leader is its child, a root moved to the center has a parent among them
     public void sendEndMsg() {
         Msg msg = MsgFactory.endMsg(this);
-        broadcastMsg(msg);
+        msg.setContent(String.valueOf(id));
+        broadcastToChildren(msg);
+    }
+
+    private int height() {
+        int h = 0;
+        for (int b : branches.values()) {
+            h = Math.max(h, b);
+        }
+        return h;
+    }
+
+    /*
+     * Center mode, run once the DEGREE convergecast reached the leader. branches holds the longest
+     * path down each child, the edge the root came over counts as a child with the longest path
+     * behind it. The root moves over the longest branch while it is more than one longer than the
+     * next one, which stops at a center of the tree: its height is the radius of the tree, at most
+     * the height below the leader. CENTER content: branch,maxDegree,leaderHeight
+     */
+    private synchronized void moveRoot(int from, int branch, int degree, int leaderHeight) {
+        if (from != -1) {
+            addChild(from);
+            branches.put(from, branch);
+        }
+        int best = -1, l1 = 0, l2 = 0;
+        for (int c : children.keySet()) {
+            int l = branches.getOrDefault(c, 1);
+            if (l > l1 || (l == l1 && c < best)) {
+                l2 = l1;
+                l1 = l;
+                best = c;
+            } else if (l > l2) {
+                l2 = l;
+            }
+        }
+        if (l1 > l2 + 1) {
+            removeChild(best);
+            branches.remove(best);
+            setParent(best);
+            setElectState(ElectState.ISNOTLEADER);
+            msgService.sendMsg(MsgFactory.centerMsg(this, best, (l2 + 1) + "," + degree + "," + leaderHeight));
+            return;
+        }
+        if (from == -1) {
+            Logger.Info("Leader %d is the tree center, height %d.", id, l1);
+        } else {
+            Logger.Info("Root moved from leader %d to the tree center %d, height %d instead of %d.", getLargestUID(), id,
+                    l1, leaderHeight);
+        }
+        setParent(id);
+        setLargestUID(id);
+        setElectState(ElectState.ISLEADER);
+        this.maxDegree = degree;
+        this.ancestors = new ArrayList<>();
+        rootReady();
     }
 
     public void checkBuffer() {
         Runnable task = () -> {
-            while (true) {
-                while (!bufferedMsg.isEmpty()) {
-                    synchronized (bufferedMsg) {
-                        for (Msg m : bufferedMsg) {
-                            if (m.getRound() == getRound()) {
-                                processMsg(m);
-                                bufferedMsg.remove(m);
-                                break;
-                            }
-                        }
+            MsgView view = new MsgView();
+            try {
+                while (!closed) {
+                    // a message, round or epoch since the last drain may have freed some
+                    long seen = getProgress();
+                    int n = bufferedMsg.isEmpty() ? 0 : bufferedMsg.drain(getEpoch(), MsgInbox.key(0, getRound()),
+                            MsgInbox.key(0, -1), view, v -> processMsg(v.toMsg()));
+                    for (int i = 0; i < n; i++) {
+                        metrics.onUnbuffer();
+                    }
+                    if (n == 0) {
+                        awaitProgress(seen);
                     }
                 }
+            } catch (InterruptedException e) {
+                Logger.Error("Buffer thread interrupted.");
             }
         };
         new Thread(task).start();
     }
 
     public void addMsgToBuffer(Msg msg) {
-        synchronized (bufferedMsg) {
-            bufferedMsg.add(msg);
+        tracer.buffer(msg);
+        byte[] frame = msg.toString().getBytes(StandardCharsets.UTF_8);
+        bufferedMsg.add(msg.getEpoch(), MsgInbox.key(0, msg.getRound()), ByteBuffer.wrap(frame), 0, frame.length);
+        metrics.onBuffer();
+        signalProgress();
+    }
+
+    private void addFrameToBuffer(MsgView view) {
+        if (tracer.isEnabled()) {
+            tracer.buffer(view.toMsg());
         }
+        bufferedMsg.add(view.getEpoch(), MsgInbox.key(0, view.getRound()), view.getBuffer(), view.getOffset(),
+                view.getLength());
+        metrics.onBuffer();
+        signalProgress();
     }
 
     public void printMsgInBuffer() {
-        synchronized (bufferedMsg) {
-            for (Msg m : bufferedMsg) {
-                Logger.Info("Buffered Msg: %s", m.toString());
-            }
-        }
+        bufferedMsg.forEach(new MsgView(), v -> Logger.Info("Buffered Msg: %s", v.toString()));
+    }
+
+    public MsgService getMsgService() {
+        return msgService;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    public Dissemination getDissemination() {
+        return dissemination;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy p) {
+        flushPolicy = p;
+    }
+
+    public void setJournal(Journal j) {
+        journal = j;
+    }
+
+    public void setHub(LocalHub h) {
+        hub = h;
+    }
+
+    public LocalHub getHub() {
+        return hub;
+    }
+
+    public int getCompressMin() {
+        return compressMin;
+    }
+
+    public void setCompressMin(int n) {
+        compressMin = n;
+    }
+
+    public int getPhaseNo() {
+        return phaseNo;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public void setTracer(Tracer t) {
+        tracer = t;
     }
 
     public int getId() {
@@ -393,6 +939,14 @@ public class Node {
         return round;
     }
 
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
     public int getParent() {
         return parent;
     }
@@ -401,10 +955,92 @@ public class Node {
         parent = p;
     }
 
+    public boolean isFused() {
+        return fused;
+    }
+
+    public void setFused(boolean fused) {
+        this.fused = fused;
+    }
+
+    public boolean isCenter() {
+        return center;
+    }
+
+    public void setCenter(boolean center) {
+        this.center = center;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String mode) throws Exception {
+        routing = new Routing(this, mode);
+    }
+
+    public int getDegreeBound() {
+        return degreeBound;
+    }
+
+    public void setDegreeBound(int k) throws Exception {
+        if (k < 2) {
+            throw new Exception(String.format("Degree bound %d is below 2, no spanning tree of more than 2 nodes meets it.", k));
+        }
+        this.degreeBound = k;
+    }
+
+    public void setSync(String mode, int depth) throws Exception {
+        if (!mode.equals("alpha") && !mode.equals("beta") && !mode.equals("gamma")) {
+            throw new Exception(String.format("Unknown synchronizer: %s", mode));
+        }
+        syncMode = mode;
+        clusterDepth = depth;
+    }
+
+    /*
+     * One synchronizer per epoch. It is made on first use, by the BFS phase or by a SYNC message
+     * of a faster neighbor, both before this run clears the previous tree. The first run has no
+     * tree anywhere and always uses alpha.
+     */
+    public synchronized Synchronizer getSynchronizer() {
+        if (synchronizer == null || synchronizer.getEpoch() != getEpoch()) {
+            if (getEpoch() == 0 || syncMode.equals("alpha")) {
+                synchronizer = new AlphaSynchronizer(this);
+            } else if (syncMode.equals("beta")) {
+                synchronizer = new BetaSynchronizer(this);
+            } else {
+                synchronizer = new GammaSynchronizer(this, clusterDepth);
+            }
+        }
+        return synchronizer;
+    }
+
+    public int getTreeEpoch() {
+        return treeEpoch;
+    }
+
     public int getMaxDegree() {
         return maxDegree;
     }
 
+    public void setMaxDegree(int d) {
+        maxDegree = d;
+    }
+
+    public List<Integer> getAncestors() {
+        return ancestors;
+    }
+
+    // path from the leader down to the parent, "a/b/c"
+    public void setAncestors(String path) {
+        List<Integer> a = new ArrayList<>();
+        for (String t : path.split("/")) {
+            if (!t.isEmpty()) a.add(Integer.parseInt(t));
+        }
+        ancestors = a;
+    }
+
     public synchronized int getChildrenMsgNo() {
         return childrenMsgNo;
     }
@@ -419,10 +1055,38 @@ public class Node {
 
     public void setRound(int r) {
         this.round = r;
+        this.phaseNo = this.phaseNo + 1;
     }
 
     public void updateRound() {
+        // the round's messages are all sent by now
+        msgService.flush();
         this.round = this.round + 1;
+        metrics.onRoundAdvance();
+        tracer.round(this.round, getNodeState().ordinal());
+        signalProgress();
+    }
+
+    public long getProgress() {
+        synchronized (progressLock) {
+            return progress;
+        }
+    }
+
+    public void signalProgress() {
+        synchronized (progressLock) {
+            progress++;
+            progressLock.notifyAll();
+        }
+    }
+
+    // blocks until something happened since seen was read
+    public void awaitProgress(long seen) throws InterruptedException {
+        synchronized (progressLock) {
+            if (progress == seen) {
+                progressLock.wait(PROGRESS_WAIT_MS);
+            }
+        }
     }
 
     public HashMap<Integer, Node> getNeighbors() {
@@ -433,6 +1097,28 @@ public class Node {
         return children;
     }
 
+    public List<Integer> getTreeNeighborIds() {
+        List<Integer> ids = new ArrayList<>(children.keySet());
+        if (parent != id && parent != -1) {
+            ids.add(parent);
+        }
+        return ids;
+    }
+
+    public synchronized void addChild(int nId) {
+        HashMap<Integer, Node> c = new HashMap<>(children);
+        c.put(nId, neighbors.get(nId));
+        children = c;
+    }
+
+    public synchronized void removeChild(int nId) {
+        if (children.containsKey(nId)) {
+            HashMap<Integer, Node> c = new HashMap<>(children);
+            c.remove(nId);
+            children = c;
+        }
+    }
+
     public void addNeighbor(int id, String host, int port) {
         this.neighbors.put(id, new Node(id, host, port));
     }
@@ -499,6 +1185,7 @@ public class Node {
 
     public synchronized void setNodeState(NodeState s) {
         Logger.Info("Round %s : %s ----> %s", getRound(),this.nodeState, s);
+        tracer.state(Tracer.NODE_STATE, getRound(), this.nodeState, s);
         this.nodeState = s;
     }
     
@@ -508,6 +1195,7 @@ public class Node {
 
     public synchronized void setElectState(ElectState es) {
         Logger.Info("Round %s : %s ----> %s", getRound(), this.electState, es);
+        tracer.state(Tracer.ELECT_STATE, getRound(), this.electState, es);
         this.electState = es;
     }
     
@@ -517,6 +1205,7 @@ public class Node {
 
     public synchronized void setBuildTreeState(BuildTreeState bts) {
         Logger.Info("Round %s : %s ----> %s", getRound(), this.buildTreeState, bts);
+        tracer.state(Tracer.BUILD_TREE_STATE, getRound(), this.buildTreeState, bts);
         this.buildTreeState = bts;
     }
 
@@ -0,0 +1,3 @@
+public enum NodeState {
+    IDLE, ELECT, BUILDTREE
+}
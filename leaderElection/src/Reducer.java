@@ -0,0 +1,11 @@
+/*
+ * Associative and commutative combine function of a tree aggregation, together with the
+ * binary encoding of its values.
+ */
+public interface Reducer<T> {
+    T combine(T a, T b);
+
+    byte[] encode(T value);
+
+    T decode(byte[] data);
+}
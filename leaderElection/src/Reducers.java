@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Reducers {
+
+    public static Reducer<Long> sum() {
+        return new LongReducer() {
+            @Override
+            public Long combine(Long a, Long b) {
+                return a + b;
+            }
+        };
+    }
+
+    // count is a sum where every node contributes 1
+    public static Reducer<Long> count() {
+        return sum();
+    }
+
+    public static Reducer<Long> min() {
+        return new LongReducer() {
+            @Override
+            public Long combine(Long a, Long b) {
+                return Math.min(a, b);
+            }
+        };
+    }
+
+    public static Reducer<Long> max() {
+        return new LongReducer() {
+            @Override
+            public Long combine(Long a, Long b) {
+                return Math.max(a, b);
+            }
+        };
+    }
+
+    // k largest values, in descending order
+    public static Reducer<long[]> topK(int k) {
+        return new LongArrayReducer() {
+            @Override
+            public long[] combine(long[] a, long[] b) {
+                long[] res = new long[Math.min(k, a.length + b.length)];
+                int i = 0, j = 0;
+                for (int n = 0; n < res.length; n++) {
+                    res[n] = j >= b.length || (i < a.length && a[i] >= b[j]) ? a[i++] : b[j++];
+                }
+                return res;
+            }
+        };
+    }
+
+    /*
+     * Fixed bucket histogram: counts[i] is the number of values below bounds[i] (and not below
+     * bounds[i - 1]), the last bucket holds everything else. Use bucket() for the local value.
+     */
+    public static Reducer<long[]> histogram() {
+        return new LongArrayReducer() {
+            @Override
+            public long[] combine(long[] a, long[] b) {
+                long[] res = Arrays.copyOf(a, Math.max(a.length, b.length));
+                for (int i = 0; i < b.length; i++) {
+                    res[i] += b[i];
+                }
+                return res;
+            }
+        };
+    }
+
+    public static long[] bucket(long[] bounds, long value) {
+        long[] counts = new long[bounds.length + 1];
+        int i = 0;
+        while (i < bounds.length && value >= bounds[i]) {
+            i++;
+        }
+        counts[i] = 1;
+        return counts;
+    }
+
+    public static String format(Object value) {
+        return value instanceof long[] ? Arrays.toString((long[]) value) : String.valueOf(value);
+    }
+
+    private static abstract class LongReducer implements Reducer<Long> {
+        @Override
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(8).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(byte[] data) {
+            return ByteBuffer.wrap(data).getLong();
+        }
+    }
+
+    private static abstract class LongArrayReducer implements Reducer<long[]> {
+        @Override
+        public byte[] encode(long[] value) {
+            ByteBuffer buf = ByteBuffer.allocate(8 * value.length);
+            for (long v : value) {
+                buf.putLong(v);
+            }
+            return buf.array();
+        }
+
+        @Override
+        public long[] decode(byte[] data) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            long[] value = new long[data.length / 8];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = buf.getLong();
+            }
+            return value;
+        }
+    }
+}
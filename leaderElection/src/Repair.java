@@ -0,0 +1,266 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Local repair of the BFS tree after a node failed, so that one crash does not cost a new
+ * election. Every node knows its path from the leader (sent down with END), so a node is cut off
+ * exactly when the failed node is on that path.
+ *
+ * - every child of the failed node searches its subtree for the non-tree neighbor that is still
+ *   attached and closest to the leader (SEARCH down, PROBE/PROBED, REPORT up). The subtree is then
+ *   re-rooted along the path to that neighbor (ATTACH), which adopts it and sends the new paths
+ *   down (ADOPT, PATH). Depths can end up larger than in a fresh BFS tree.
+ * - a subtree that only borders other cut-off subtrees searches again until one of them is
+ *   attached, for at most the failure timeout.
+ * - if the leader failed, or a subtree has no way back to it, the nodes that can still reach each
+ *   other elect a new leader in a new epoch.
+ * Every new parent and the parent of the failed node send REPAIRED up to the leader, which
+ * recounts the max degree.
+ *
+ * REPAIR content: op,failedId,root,attempt,args...   root is the child of the failed node
+ */
+public class Repair {
+    private static final String SEARCH = "SEARCH";
+    private static final String PROBE = "PROBE";
+    private static final String PROBED = "PROBED";
+    private static final String REPORT = "REPORT";
+    private static final String ATTACH = "ATTACH";
+    private static final String ADOPT = "ADOPT";
+    private static final String PATH = "PATH";
+    private static final String REPAIRED = "REPAIRED";
+
+    private static final String SAME = "S";
+    private static final String CUT = "C";
+    private static final String ATTACHED = "A";
+
+    private static class Search {
+        int parent = -1;
+        int pending;
+        int bestDepth = -1;
+        int bestX;
+        int bestY;
+        int bestVia = -1;
+        boolean sawCut;
+        long deadline;
+    }
+
+    private Node node;
+    private HashMap<String, Search> searches = new HashMap<>();
+    private ScheduledExecutorService timer;
+
+    public Repair(Node node) {
+        this.node = node;
+    }
+
+    // called on the children of the failed node
+    public synchronized void start(int failed) {
+        long deadline = System.currentTimeMillis() + node.getMsgService().getFailureDetector().getTimeout();
+        search(failed, 0, deadline);
+    }
+
+    public synchronized void process(Msg msg) {
+        String[] t = msg.getContent().split(",");
+        String op = t[0];
+        int failed = Integer.parseInt(t[1]);
+        int root = Integer.parseInt(t[2]);
+        String key = t[1] + "." + t[2] + "." + t[3];
+        int from = msg.getFromId();
+
+        if (op.equals(SEARCH)) {
+            Search s = new Search();
+            s.parent = from;
+            searches.put(key, s);
+            explore(s, join(failed, root, t[3]));
+            report(key, s, failed, root, t[3]);
+        } else if (op.equals(PROBE)) {
+            String status;
+            if (node.getId() == root || node.getAncestors().contains(root)) {
+                status = SAME;
+            } else if (node.getAncestors().contains(failed)) {
+                status = CUT;
+            } else {
+                status = ATTACHED;
+            }
+            send(from, join(PROBED, failed, root, t[3], status, node.getAncestors().size()));
+        } else if (op.equals(PROBED)) {
+            Search s = searches.get(key);
+            if (t[4].equals(ATTACHED)) {
+                offer(s, Integer.parseInt(t[5]), node.getId(), from, -1);
+            } else if (t[4].equals(CUT)) {
+                s.sawCut = true;
+            }
+            s.pending--;
+            report(key, s, failed, root, t[3]);
+        } else if (op.equals(REPORT)) {
+            Search s = searches.get(key);
+            if (!t[4].equals("-")) {
+                offer(s, Integer.parseInt(t[4]), Integer.parseInt(t[5]), Integer.parseInt(t[6]), from);
+            }
+            s.sawCut |= t[7].equals("1");
+            s.pending--;
+            report(key, s, failed, root, t[3]);
+        } else if (op.equals(ATTACH)) {
+            // the old parent is now below this node
+            node.addChild(from);
+            attach(key, searches.remove(key), failed, root, t[3]);
+        } else if (op.equals(ADOPT)) {
+            node.addChild(from);
+            Logger.Info("[REPAIR] Adopted %d, subtree of %d is attached again", from, root);
+            send(from, join(PATH, failed, root, t[3], path(node)));
+            repaired(failed);
+        } else if (op.equals(PATH)) {
+            searches.keySet().removeIf(k -> k.startsWith(t[1] + "." + t[2] + "."));
+            node.setAncestors(t[4]);
+            for (int child : node.getChildren().keySet()) {
+                send(child, join(PATH, failed, root, t[3], path(node)));
+            }
+        } else if (op.equals(REPAIRED)) {
+            repaired(failed);
+        }
+    }
+
+    // the parent of a failed node or a new parent tells the leader that the tree changed
+    public void repaired(int failed) {
+        if (node.getParent() != node.getId()) {
+            send(node.getParent(), join(REPAIRED, failed, -1, 0));
+            return;
+        }
+        node.getAggregation().<Long>query("maxDegree").whenComplete((value, e) -> {
+            if (e == null) {
+                node.setMaxDegree(value.intValue());
+                Logger.Info("[REPAIR] Tree max degree is now %d", value);
+            }
+        });
+    }
+
+    private void search(int failed, int attempt, long deadline) {
+        String key = failed + "." + node.getId() + "." + attempt;
+        Search s = new Search();
+        s.deadline = deadline;
+        searches.put(key, s);
+        Logger.Info("[REPAIR] Parent %d failed, searching for a way back to the leader (attempt %d)", failed, attempt);
+        explore(s, join(failed, node.getId(), attempt));
+        report(key, s, failed, node.getId(), String.valueOf(attempt));
+    }
+
+    private void explore(Search s, String args) {
+        List<Integer> probes = new ArrayList<>();
+        for (int nId : node.getNeighbors().keySet()) {
+            if (nId != s.parent && !node.getChildren().containsKey(nId)) {
+                probes.add(nId);
+            }
+        }
+        s.pending = node.getChildren().size() + probes.size();
+        for (int child : node.getChildren().keySet()) {
+            send(child, SEARCH + "," + args);
+        }
+        for (int nId : probes) {
+            send(nId, PROBE + "," + args);
+        }
+    }
+
+    private void report(String key, Search s, int failed, int root, String attempt) {
+        if (s.pending > 0) {
+            return;
+        }
+        if (s.parent != -1) {
+            String best = s.bestDepth == -1 ? "-,-,-" : s.bestDepth + "," + s.bestX + "," + s.bestY;
+            send(s.parent, join(REPORT, failed, root, attempt, best, s.sawCut ? 1 : 0));
+            if (s.bestDepth == -1) {
+                searches.remove(key);
+            }
+            return;
+        }
+        decide(key, s, failed, Integer.parseInt(attempt));
+    }
+
+    private void decide(String key, Search s, int failed, int attempt) {
+        if (s.bestDepth != -1) {
+            Logger.Info("[REPAIR] Reattaching over (%d,%d) at depth %d", s.bestX, s.bestY, s.bestDepth + 1);
+            attach(key, searches.remove(key), failed, node.getId(), String.valueOf(attempt));
+            return;
+        }
+        searches.remove(key);
+        if (s.sawCut && System.currentTimeMillis() < s.deadline) {
+            retry(failed, attempt + 1, s.deadline);
+            return;
+        }
+        Logger.Info("[REPAIR] No way back to the leader, electing a new one");
+        node.requestRecoveryRun();
+    }
+
+    private void retry(int failed, int attempt, long deadline) {
+        timer().schedule(() -> {
+            try {
+                synchronized (this) {
+                    search(failed, attempt, deadline);
+                }
+            } catch (Exception e) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                e.printStackTrace(pw);
+                Logger.Error(sw.toString());
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+    }
+
+    // one thread for all retries, started with the first one
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    // reverses the tree edges from the subtree root down to the chosen edge
+    private void attach(String key, Search s, int failed, int root, String attempt) {
+        if (s.bestVia != -1) {
+            node.removeChild(s.bestVia);
+            node.setParent(s.bestVia);
+            send(s.bestVia, join(ATTACH, failed, root, attempt));
+        } else {
+            node.setParent(s.bestY);
+            send(s.bestY, join(ADOPT, failed, root, attempt));
+        }
+    }
+
+    private static void offer(Search s, int depth, int x, int y, int via) {
+        if (s.bestDepth == -1 || depth < s.bestDepth || (depth == s.bestDepth && y < s.bestY)) {
+            s.bestDepth = depth;
+            s.bestX = x;
+            s.bestY = y;
+            s.bestVia = via;
+        }
+    }
+
+    private static String path(Node node) {
+        StringBuilder sb = new StringBuilder();
+        for (int a : node.getAncestors()) {
+            sb.append(a).append("/");
+        }
+        return sb.append(node.getId()).toString();
+    }
+
+    private static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    private void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.repairMsg(node, toId, content));
+    }
+}
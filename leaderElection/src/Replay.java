@@ -0,0 +1,99 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/*
+ * Runs one node of a recorded execution without sockets:
+ *     java Replay <config> <journal> [-fused] [-center] [-degreeBound=<k>] [-route[=sp]] [-sync=...] [-clusterDepth=...] [-trace=<dir>]
+ * The node id comes from the journal. A frame is handed to the node once the node is in the phase
+ * and round it was in when the frame arrived, messages the node sends go nowhere. The node runs
+ * the first ALL run only, commands typed on the recorded node's console are not in the journal.
+ */
+public class Replay {
+    // a node that waits this long for a frame of a later round gets it anyway
+    private static final long STALL_MS = 200;
+
+    private static volatile long delivered;
+    private static volatile long recordedNanos;
+
+    public static void main(String[] args) {
+        try {
+            String configPath = args[0];
+            Journal.Reader journal = new Journal.Reader(args[1]);
+            HashMap<String, String> options = NetNode.parseOptions(args, 2);
+            Logger.setDebugMode(options.containsKey("d"));
+            Logger.setLocalNodeId(journal.getNodeId());
+
+            Node node = NetNode.initNode(configPath, String.valueOf(journal.getNodeId()));
+            if (options.containsKey("trace")) {
+                int capacity = Integer.parseInt(options.getOrDefault("traceCapacity", "65536"));
+                node.setTracer(new Tracer(options.get("trace"), node.getId(), capacity));
+            }
+            if (options.containsKey("fused")) {
+                node.setFused(true);
+            }
+            if (options.containsKey("center")) {
+                node.setCenter(true);
+            }
+            if (options.containsKey("degreeBound")) {
+                node.setDegreeBound(Integer.parseInt(options.get("degreeBound")));
+            }
+            if (options.containsKey("route")) {
+                node.setRouting(options.get("route").isEmpty() ? Routing.TREE_MODE : options.get("route"));
+            }
+            if (options.containsKey("sync")) {
+                node.setSync(options.get("sync"), Integer.parseInt(options.getOrDefault("clusterDepth", "2")));
+            }
+            node.startReplay();
+            NetNode.registerAggregates(node);
+
+            Thread feeder = new Thread(() -> feed(node, journal));
+            feeder.setDaemon(true);
+            feeder.start();
+
+            long start = System.nanoTime();
+            NetNode.runPhases(node, "ALL");
+            long ms = (System.nanoTime() - start) / 1000000;
+            // late frames of the run, END and REPLY to the tree, still go through processMsg
+            feeder.join(STALL_MS * 10);
+            Logger.Info("[REPLAY] frames=%d recorded.ms=%d replayed.ms=%d", delivered, recordedNanos / 1000000, ms);
+            Logger.Info(node.getMetrics().dump());
+            node.getTracer().close();
+            System.exit(0);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+            System.exit(1);
+        }
+    }
+
+    private static void feed(Node node, Journal.Reader journal) {
+        try {
+            Journal.Record r = new Journal.Record();
+            MsgView view = new MsgView();
+            while (journal.next(r)) {
+                long waitStart = System.currentTimeMillis();
+                while (node.getPhaseNo() < r.phase || (node.getPhaseNo() == r.phase && node.getRound() < r.round)) {
+                    if (System.currentTimeMillis() - waitStart > STALL_MS) {
+                        Logger.Info("[REPLAY] Node waits in phase %d round %d for frame %d of phase %d round %d.",
+                                node.getPhaseNo(), node.getRound(), delivered, r.phase, r.round);
+                        break;
+                    }
+                    Thread.yield();
+                }
+                node.getMsgService().replay(view.wrap(ByteBuffer.wrap(r.frame), 0, r.length));
+                recordedNanos += r.nanos;
+                delivered++;
+            }
+            journal.close();
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+        }
+    }
+}
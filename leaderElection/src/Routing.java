@@ -0,0 +1,389 @@
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Unicast to any node (-route). Once the tree of a run is done the root labels it in DFS order:
+ * START goes down and fixes the parents, TREE comes back up with each subtree in pre-order (id:size
+ * per node, children by id), and the root sends every child its label and the node count (DIR). A
+ * node's label is its index in the list, and its subtree holds the labels [label, label + size),
+ * which a node works out for its children from their sizes. A hop compares the destination label
+ * with the intervals of its children and otherwise sends to the parent, so no hop keeps a table per
+ * destination. The setup costs 3(N - 1) messages and only the root keeps the list, as the
+ * directory of labels.
+ *
+ * A source that does not know the destination's label yet sends the packet to the root (label 0)
+ * with its own label; the root puts the destination label in, forwards it and tells the source
+ * (HIT), which keeps the label for the next packets. Labels carry the epoch of their tree, a hop
+ * with other labels uses the one it knows or asks the root the same way.
+ *
+ * -route=sp adds shortest paths over the same setup: with its label a node floods its edges
+ * (LSA), and with the edges of all N nodes it runs Dijkstra and keeps the first hop to each
+ * destination. That costs 2|E| messages per node and a table per destination.
+ *
+ * ROUTE content: START | TREE,list | DIR,label,count | LSA,origin,edges
+ *   | DATA,dst,epoch,label,hops,routeId,lookup,payload(base64) | HIT,src,epoch,label,hops,routeId,-1,dst:label
+ * list: id:size/...   edges: id:weight/...   lookup: label to send the HIT to, -1 once resolved
+ */
+public class Routing {
+    public static final String TREE_MODE = "tree";
+    public static final String SP_MODE = "sp";
+
+    private static final String START = "START";
+    private static final String TREE = "TREE";
+    private static final String DIR = "DIR";
+    private static final String LSA = "LSA";
+    private static final String DATA = "DATA";
+    private static final String HIT = "HIT";
+
+    // the routes of one tree
+    private static class Labels {
+        int epoch;
+        int label;
+        int count;
+        int parent;
+        List<int[]> children = new ArrayList<>();
+        // only at the root
+        HashMap<Integer, Integer> directory;
+        // labels learned from HITs
+        ConcurrentHashMap<Integer, Integer> cache = new ConcurrentHashMap<>();
+        HashMap<Integer, Integer> nextHop;
+    }
+
+    private Node node;
+    private String mode;
+    private List<DeliveryListener> listeners = new CopyOnWriteArrayList<>();
+    private AtomicInteger routeNo = new AtomicInteger();
+    private volatile Labels ready;
+
+    // setup of the tree of epoch
+    private int epoch = -1;
+    private boolean treeDone;
+    private boolean started;
+    private boolean startSent;
+    private int parent = -1;
+    private List<Integer> tree;
+    private HashMap<Integer, String> subtrees;
+    private HashMap<Integer, Integer> sizes;
+    private String list;
+    private Labels next;
+    private HashMap<Integer, String> lsas;
+
+    public Routing(Node node, String mode) throws Exception {
+        if (!mode.equals(TREE_MODE) && !mode.equals(SP_MODE)) {
+            throw new Exception(String.format("Unknown routing %s, use tree or sp.", mode));
+        }
+        this.node = node;
+        this.mode = mode;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void addListener(DeliveryListener listener) {
+        listeners.add(listener);
+    }
+
+    // called on every node once the tree of the run is done
+    public synchronized void treeDone() {
+        begin(node.getEpoch());
+        treeDone = true;
+        tree = node.getTreeNeighborIds();
+        if (node.getParent() == node.getId()) {
+            started = true;
+            parent = node.getId();
+        }
+        check();
+    }
+
+    public String send(int dst, byte[] data) throws Exception {
+        Labels l = ready;
+        if (l == null) {
+            throw new Exception("No routes yet, the tree is not labeled.");
+        }
+        // only the root knows every label, the others learn one with the first packet
+        Integer label = l.directory != null ? l.directory.get(dst) : l.cache.get(dst);
+        if (l.directory != null && label == null
+                || l.nextHop != null && dst != node.getId() && !l.nextHop.containsKey(dst)) {
+            throw new Exception(String.format("[ %d ] is not in the tree.", dst));
+        }
+        int lookup = label == null && l.nextHop == null ? l.label : -1;
+        String routeId = node.getId() + "." + routeNo.incrementAndGet();
+        Msg msg = MsgFactory.routeMsg(node, -1, join(DATA, dst, l.epoch, label == null ? 0 : label, 0, routeId, lookup,
+                Base64.getEncoder().encodeToString(data)));
+        route(msg);
+        return routeId;
+    }
+
+    public void process(Msg msg) {
+        String op = msg.getContent().split(",", 2)[0];
+        if (op.equals(DATA) || op.equals(HIT)) {
+            route(msg);
+            return;
+        }
+        String[] t = msg.getContent().split(",");
+        int from = msg.getFromId();
+        synchronized (this) {
+            begin(msg.getEpoch());
+            if (op.equals(START)) {
+                started = true;
+                parent = from;
+                check();
+            } else if (op.equals(TREE)) {
+                subtrees.put(from, t[1]);
+                check();
+            } else if (op.equals(DIR)) {
+                labeled(Integer.parseInt(t[1]), Integer.parseInt(t[2]));
+            } else if (op.equals(LSA)) {
+                int origin = Integer.parseInt(t[1]);
+                if (!lsas.containsKey(origin)) {
+                    lsas.put(origin, t.length > 2 ? t[2] : "");
+                    for (int nId : node.getNeighbors().keySet()) {
+                        if (nId != from) {
+                            send(nId, msg.getContent());
+                        }
+                    }
+                    checkLsas();
+                }
+            }
+        }
+    }
+
+    private void begin(int e) {
+        if (e <= epoch) {
+            return;
+        }
+        epoch = e;
+        treeDone = false;
+        started = false;
+        startSent = false;
+        parent = -1;
+        subtrees = new HashMap<>();
+        sizes = new HashMap<>();
+        list = null;
+        next = null;
+        lsas = new HashMap<>();
+    }
+
+    private void check() {
+        if (!treeDone || !started || subtrees == null) {
+            return;
+        }
+        List<Integer> children = children();
+        if (!startSent) {
+            startSent = true;
+            for (int c : children) {
+                send(c, START);
+            }
+        }
+        for (int c : children) {
+            if (!subtrees.containsKey(c)) {
+                return;
+            }
+        }
+        int size = 1;
+        StringBuilder sb = new StringBuilder();
+        for (int c : children) {
+            String s = subtrees.get(c);
+            int n = Integer.parseInt(s.split("/", 2)[0].split(":")[1]);
+            sizes.put(c, n);
+            size += n;
+            sb.append("/").append(s);
+        }
+        subtrees = null;
+        if (parent == node.getId()) {
+            list = node.getId() + ":" + size + sb;
+            labeled(0, size);
+        } else {
+            send(parent, join(TREE, node.getId() + ":" + size + sb));
+        }
+    }
+
+    private List<Integer> children() {
+        List<Integer> children = new ArrayList<>();
+        for (int nId : tree) {
+            if (nId != parent) {
+                children.add(nId);
+            }
+        }
+        children.sort(null);
+        return children;
+    }
+
+    private void labeled(int label, int count) {
+        Labels l = new Labels();
+        l.epoch = epoch;
+        l.parent = parent;
+        l.label = label;
+        l.count = count;
+        if (list != null) {
+            l.directory = new HashMap<>();
+            String[] entries = list.split("/");
+            for (int i = 0; i < entries.length; i++) {
+                l.directory.put(Integer.parseInt(entries[i].split(":")[0]), i);
+            }
+            list = null;
+        }
+        int lo = label + 1;
+        for (int c : children()) {
+            l.children.add(new int[] { c, lo, lo + sizes.get(c) });
+            send(c, join(DIR, lo, count));
+            lo += sizes.get(c);
+        }
+        if (mode.equals(TREE_MODE)) {
+            publish(l);
+            return;
+        }
+        next = l;
+        StringBuilder sb = new StringBuilder();
+        for (int nId : node.getNeighbors().keySet()) {
+            if (sb.length() > 0) sb.append("/");
+            sb.append(nId).append(":").append(weight(nId));
+        }
+        lsas.put(node.getId(), sb.toString());
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, join(LSA, node.getId(), sb));
+        }
+        checkLsas();
+    }
+
+    // Dijkstra over the flooded edges, the first hop of each shortest path is kept
+    private void checkLsas() {
+        if (next == null || lsas.size() < next.count) {
+            return;
+        }
+        HashMap<Integer, Long> dist = new HashMap<>();
+        HashMap<Integer, Integer> first = new HashMap<>();
+        PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                : Long.compare(a[1], b[1]));
+        dist.put(node.getId(), 0L);
+        queue.add(new long[] { 0, node.getId(), -1 });
+        while (!queue.isEmpty()) {
+            long[] q = queue.poll();
+            int u = (int) q[1];
+            if (first.containsKey(u) || q[0] > dist.get(u)) {
+                continue;
+            }
+            first.put(u, (int) q[2]);
+            String edges = lsas.get(u);
+            if (edges == null || edges.isEmpty()) {
+                continue;
+            }
+            for (String e : edges.split("/")) {
+                String[] kv = e.split(":");
+                int v = Integer.parseInt(kv[0]);
+                long d = q[0] + Long.parseLong(kv[1]);
+                if (!first.containsKey(v) && (!dist.containsKey(v) || d < dist.get(v))) {
+                    dist.put(v, d);
+                    queue.add(new long[] { d, v, u == node.getId() ? v : q[2] });
+                }
+            }
+        }
+        first.remove(node.getId());
+        next.nextHop = first;
+        publish(next);
+        next = null;
+    }
+
+    private void publish(Labels l) {
+        ready = l;
+        Logger.Info("[ROUTE] Epoch %d routes ready (%s): label %d of %d", l.epoch, mode, l.label, l.count);
+    }
+
+    private void route(Msg msg) {
+        String[] t = msg.getContent().split(",", 8);
+        boolean hit = t[0].equals(HIT);
+        int dst = Integer.parseInt(t[1]);
+        int labelEpoch = Integer.parseInt(t[2]);
+        int label = Integer.parseInt(t[3]);
+        int hops = Integer.parseInt(t[4]);
+        int lookup = Integer.parseInt(t[6]);
+        Labels l = ready;
+        if (hit && (l == null || l.epoch != labelEpoch)) {
+            return;
+        }
+        if (hit && label == l.label) {
+            String[] kv = t[7].split(":");
+            l.cache.put(Integer.parseInt(kv[0]), Integer.parseInt(kv[1]));
+            return;
+        }
+        if (!hit && dst == node.getId()) {
+            if (l != null && l.directory != null && lookup != -1) {
+                answer(l, msg.getSrcId(), lookup, t[5], dst, l.label);
+            }
+            byte[] data = Base64.getDecoder().decode(t[7]);
+            Logger.Debug("[ROUTE] %s from %d after %d hops", t[5], msg.getSrcId(), hops);
+            for (DeliveryListener listener : listeners) {
+                listener.onDeliver(msg.getSrcId(), t[5], data);
+            }
+            return;
+        }
+        if (l != null && l.epoch != labelEpoch) {
+            // labels of another tree, use the own or ask the root of this one
+            Integer known = l.directory != null ? l.directory.get(dst) : l.cache.get(dst);
+            labelEpoch = l.epoch;
+            label = known == null ? 0 : known;
+            lookup = known == null && l.nextHop == null ? l.label : -1;
+        }
+        if (l != null && l.directory != null && lookup != -1) {
+            Integer known = l.directory.get(dst);
+            if (known == null) {
+                Logger.Info("[ROUTE] Dropping %s from %d to %d, not in the tree", t[5], msg.getSrcId(), dst);
+                return;
+            }
+            answer(l, msg.getSrcId(), lookup, t[5], dst, known);
+            label = known;
+            lookup = -1;
+        }
+        int hop = l == null || hops > 2 * l.count ? -1 : nextHop(l, dst, label);
+        if (hop == -1) {
+            Logger.Info("[ROUTE] Dropping %s from %d to %d after %d hops, no route", t[5], msg.getSrcId(), dst, hops);
+            return;
+        }
+        msg.setContent(join(t[0], dst, labelEpoch, label, hops + 1, t[5], lookup, t[7]));
+        msg.setFromId(node.getId());
+        msg.setToId(hop);
+        msg.setEpoch(node.getEpoch());
+        node.getMsgService().sendMsg(msg);
+    }
+
+    // tells the node labeled lookup the label of dst, routed down the tree like any packet
+    private void answer(Labels l, int src, int lookup, String routeId, int dst, int label) {
+        route(MsgFactory.routeMsg(node, -1, join(HIT, src, l.epoch, lookup, 0, routeId, -1, dst + ":" + label)));
+    }
+
+    private int nextHop(Labels l, int dst, int label) {
+        if (l.nextHop != null) {
+            return l.nextHop.getOrDefault(dst, -1);
+        }
+        for (int[] c : l.children) {
+            if (label >= c[1] && label < c[2]) {
+                return c[0];
+            }
+        }
+        return l.parent == node.getId() ? -1 : l.parent;
+    }
+
+    private int weight(int nId) {
+        return 1;
+    }
+
+    private static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    private void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.routeMsg(node, toId, content));
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Every peer gets exactly one message per round, EMPTY if the algorithm had nothing for it, so a
+ * round is done once a message from every peer was processed. No SYNC messages.
+ */
+public class AlphaSynchronizer implements Synchronizer {
+    private Node node;
+    private int epoch;
+    private HashMap<Integer, Set<Integer>> sentTo = new HashMap<>();
+    private HashMap<Integer, Integer> expected = new HashMap<>();
+    private HashMap<Integer, Integer> received = new HashMap<>();
+
+    public AlphaSynchronizer(Node node) {
+        this.node = node;
+        this.epoch = node.getEpoch();
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public synchronized void sent(Msg msg, int round) {
+        sentTo.computeIfAbsent(round, r -> new HashSet<>()).add(msg.getToId());
+    }
+
+    @Override
+    public void endRound(int round, Collection<Integer> peers, Msg empty) {
+        Set<Integer> sent;
+        synchronized (this) {
+            sent = sentTo.remove(round);
+            expected.put(round, peers.size());
+        }
+        for (int nId : peers) {
+            if (sent == null || !sent.contains(nId)) {
+                empty.setToId(nId);
+                node.getMsgService().sendMsg(empty);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void received(Msg msg, int round) {
+        received.merge(round, 1, Integer::sum);
+    }
+
+    @Override
+    public synchronized boolean isRoundDone(int round) {
+        if (round < 1) {
+            return true;
+        }
+        Integer n = expected.get(round);
+        if (n == null || received.getOrDefault(round, 0) < n) {
+            return false;
+        }
+        expected.keySet().removeIf(r -> r < round);
+        received.keySet().removeIf(r -> r < round);
+        return true;
+    }
+
+    @Override
+    public void process(Msg msg) {
+    }
+
+    @Override
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String getName() {
+        return "alpha";
+    }
+}
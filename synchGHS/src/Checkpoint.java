@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * On-disk snapshot of the MST result of one node, checkpoint_<id>_e<epoch>.bin, written and read
+ * through a memory mapping.
+ *
+ * Header: magic(int) nodeId(int) epoch(int) length(int) topologyHash(long) timestamp(long)
+ * Body:   componentId(int) componentLevel(int) totalRounds(int) treeNeighborNo(int) (id(int) weight(int))...
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x43484b50;
+    private static final int HEADER_SIZE = 32;
+
+    private int nodeId;
+    private int epoch;
+    private long topologyHash;
+    private long timestamp;
+
+    private int componentId;
+    private int componentLevel;
+    private int totalRounds;
+    private List<Integer> treeNeighbors = new ArrayList<>();
+    private List<Integer> treeWeights = new ArrayList<>();
+
+    public static Checkpoint capture(Node node, long topologyHash) {
+        Checkpoint cp = new Checkpoint();
+        cp.nodeId = node.getId();
+        cp.epoch = node.getEpoch();
+        cp.topologyHash = topologyHash;
+        cp.timestamp = System.currentTimeMillis();
+        cp.componentId = node.getComponentId();
+        cp.componentLevel = node.getComponentLevel();
+        cp.totalRounds = node.getTotalRounds();
+        for (int nId : node.getTreeNeighbors().keySet()) {
+            cp.treeNeighbors.add(nId);
+            cp.treeWeights.add(node.getWeights().get(nId));
+        }
+        return cp;
+    }
+
+    public void save(String dir) throws IOException {
+        new File(dir).mkdirs();
+        File file = new File(dir, String.format("checkpoint_%d_e%d.bin", nodeId, epoch));
+        int length = 16 + 8 * treeNeighbors.size();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + length);
+            buf.putInt(MAGIC).putInt(nodeId).putInt(epoch).putInt(length);
+            buf.putLong(topologyHash).putLong(timestamp);
+            buf.putInt(componentId).putInt(componentLevel).putInt(totalRounds).putInt(treeNeighbors.size());
+            for (int i = 0; i < treeNeighbors.size(); i++) {
+                buf.putInt(treeNeighbors.get(i)).putInt(treeWeights.get(i));
+            }
+            buf.force();
+        }
+    }
+
+    public static Checkpoint load(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC) {
+                return null;
+            }
+            Checkpoint cp = new Checkpoint();
+            cp.nodeId = buf.getInt();
+            cp.epoch = buf.getInt();
+            int length = buf.getInt();
+            cp.topologyHash = buf.getLong();
+            cp.timestamp = buf.getLong();
+            if (ch.size() < HEADER_SIZE + length) {
+                return null;
+            }
+            cp.componentId = buf.getInt();
+            cp.componentLevel = buf.getInt();
+            cp.totalRounds = buf.getInt();
+            int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                cp.treeNeighbors.add(buf.getInt());
+                cp.treeWeights.add(buf.getInt());
+            }
+            return cp;
+        }
+    }
+
+    // newest checkpoint of the node that was taken on the same topology
+    public static Checkpoint loadLatest(String dir, int nodeId, long topologyHash) throws IOException {
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith("checkpoint_" + nodeId + "_e"));
+        Checkpoint latest = null;
+        if (files == null) {
+            return null;
+        }
+        for (File f : files) {
+            Checkpoint cp = load(f);
+            if (cp != null && cp.nodeId == nodeId && cp.topologyHash == topologyHash
+                    && (latest == null || cp.timestamp > latest.timestamp)) {
+                latest = cp;
+            }
+        }
+        return latest;
+    }
+
+    /*
+     * Hash of the whole config, not only of the own edges: a weight change anywhere in the network
+     * can change the tree.
+     */
+    public static long topologyHash(String configPath) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (BufferedReader br = new BufferedReader(new FileReader(configPath))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.split("#")[0].trim().toLowerCase().replaceAll("\\s+", " ");
+                if (!line.isEmpty()) {
+                    md.update(line.getBytes(StandardCharsets.UTF_8));
+                    md.update((byte) '\n');
+                }
+            }
+        }
+        byte[] digest = md.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    // checkpoints of different nodes belong together if they have the same key
+    public String key() {
+        return String.format("%d:%x:%d", epoch, topologyHash, componentId);
+    }
+
+    public List<Integer> getTreeNeighborIds() {
+        return new ArrayList<>(treeNeighbors);
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getComponentId() {
+        return componentId;
+    }
+
+    public int getComponentLevel() {
+        return componentLevel;
+    }
+
+    public int getTotalRounds() {
+        return totalRounds;
+    }
+
+    public List<Integer> getTreeWeights() {
+        return treeWeights;
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/*
+ * Heartbeat failure detector. Every interval a HEARTBEAT goes out on each live channel, and a
+ * neighbor is declared failed when nothing arrived from it for timeout ms. Any message counts as
+ * a sign of life, heartbeats only fill the gaps between rounds. A closed channel is reported by
+ * its reader right away, the timeout catches nodes that hang or are cut off without a FIN.
+ */
+public class FailureDetector {
+    private MsgService msgService;
+    private long interval;
+    private long timeout;
+    private volatile boolean stopped = false;
+
+    public FailureDetector(MsgService msgService, long interval, long timeout) {
+        this.msgService = msgService;
+        this.interval = interval;
+        this.timeout = timeout;
+    }
+
+    public void start() {
+        msgService.setFailureDetector(this);
+        for (MsgChannel ch : msgService.channels.values()) {
+            ch.touch();
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (!stopped) {
+                    long now = System.currentTimeMillis();
+                    for (MsgChannel ch : msgService.channels.values()) {
+                        if (ch.isFailed() || !ch.isConnecting()) {
+                            continue;
+                        }
+                        if (now - ch.getLastReceived() > timeout) {
+                            msgService.fail(ch.getNodeId(), String.format("no message for %d ms", now - ch.getLastReceived()));
+                        } else {
+                            msgService.sendMsg(MsgFactory.heartbeatMsg(ch.getNodeId()));
+                        }
+                    }
+                    Thread.sleep(interval);
+                }
+            } catch (Exception e) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                e.printStackTrace(pw);
+                Logger.Error(sw.toString());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Logger.Info("Failure detector started: heartbeat every %d ms, timeout %d ms.", interval, timeout);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,510 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * MST after Garay, Kutten and Peleg: fragments are grown locally until they hold sqrt(N) nodes,
+ * then the edges between them are pipelined to one root over a BFS tree, which picks the rest of
+ * the MST. Everything is driven by messages, no phase waits a fixed number of rounds.
+ *
+ * - BFS: every node floods SEARCH with its id and the largest id wins, its wave echoes back
+ *   (ECHO, T for a child). The winner is the root, the tree it got has about diameter depth.
+ * - Levels: the root broadcasts LEVEL,i over the tree. A node tells the neighbors outside its
+ *   fragment its fragment id and whether it is large (FRAG), the lightest edge to another fragment
+ *   and the fragment size are collected at the fragment root (MIN) and the decision goes back
+ *   (DECIDE). A fragment below sqrt(N) nodes joins over that edge if it leads into a large fragment,
+ *   which never joins anything, or else if its coin shows tail and the other fragment's head. The
+ *   endpoint asks the other fragment to adopt it (ADD, ADDED) and turns its old fragment towards
+ *   it (REROOT). A head may itself join a large fragment in the same level, so ADDED waits until
+ *   the adopting node is done with the level and carries its final fragment id; merges reach at
+ *   most two deep. DONE is collected over the tree and the root starts the next level, or the
+ *   pipeline once all fragments are large.
+ * - Pipeline: after one more FRAG exchange every edge between fragments goes up the tree (UP) in
+ *   weight order; a node passes an edge on once no child can still send a lighter one and drops
+ *   it if it closes a cycle of fragments with edges it already passed on. FIN ends a child's
+ *   stream. The edges reaching the root are the MST between the fragments, RESULT brings them down.
+ *
+ * The coin is a hash of fragment id and level, it replaces the deterministic matching of the
+ * paper. Edges found inside the own fragment get no FRAG again. The round field of GKP messages
+ * counts the longest chain of messages a node has seen, the run's time in synchronous rounds.
+ *
+ * GKP content: op,args...  edges are written a:b:w
+ */
+public class GkpMST {
+    private static final String SEARCH = "SEARCH";
+    private static final String ECHO = "ECHO";
+    private static final String LEVEL = "LEVEL";
+    private static final String PIPE = "PIPE";
+    private static final String FRAG = "FRAG";
+    private static final String MIN = "MIN";
+    private static final String DECIDE = "DECIDE";
+    private static final String ADD = "ADD";
+    private static final String ADDED = "ADDED";
+    private static final String REROOT = "REROOT";
+    private static final String DONE = "DONE";
+    private static final String UP = "UP";
+    private static final String FIN = "FIN";
+    private static final String RESULT = "RESULT";
+
+    private static class Level {
+        boolean started;
+        boolean pipe;
+        List<Integer> peers;
+        HashMap<Integer, Integer> frags = new HashMap<>();
+        Set<Integer> largeFrags = new HashSet<>();
+        boolean fragsDone;
+        int reported;
+        int size = 1;
+        Edge best;
+        int bestFid = -1;
+        boolean bestLarge;
+        boolean minSent;
+        List<Integer> adds = new ArrayList<>();
+        boolean addedSent;
+        boolean localDone;
+        int doneChildren;
+        boolean allLarge = true;
+        boolean doneSent;
+    }
+
+    private Node node;
+    private int epoch;
+    private int sqrtN;
+    private int maxLevels;
+    private volatile boolean finished;
+    // messages of faster neighbors wait until this node runs
+    private boolean started;
+    private List<Msg> early = new ArrayList<>();
+    private long startTime;
+    private int rounds;
+
+    private int root;
+    private int bfsParent = -1;
+    private Set<Integer> bfsChildren = new TreeSet<>();
+    private int pendingEchoes;
+
+    private int fid;
+    private boolean large;
+    private int fParent = -1;
+    private Set<Integer> fChildren = new TreeSet<>();
+    private Set<Integer> internal = new HashSet<>();
+    private HashMap<Integer, Level> levels = new HashMap<>();
+    private int level;
+
+    private TreeSet<Edge> pool = new TreeSet<>();
+    private HashMap<Edge, int[]> poolFids = new HashMap<>();
+    private HashMap<Integer, Edge> lastUp = new HashMap<>();
+    private Set<Integer> finChildren = new HashSet<>();
+    private HashMap<Integer, Integer> components = new HashMap<>();
+    private List<Edge> accepted = new ArrayList<>();
+    private boolean finSent;
+
+    public GkpMST(Node node) {
+        this.node = node;
+        this.epoch = node.getEpoch();
+        this.sqrtN = (int) Math.ceil(Math.sqrt(Math.max(1, node.getN())));
+        this.maxLevels = 4 * (32 - Integer.numberOfLeadingZeros(Math.max(1, node.getN()))) + 4;
+        this.root = node.getId();
+        this.fid = node.getId();
+        this.large = sqrtN <= 1;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getLevels() {
+        return level;
+    }
+
+    public synchronized int getRounds() {
+        return rounds;
+    }
+
+    // false if the run was given up
+    public boolean run() throws InterruptedException {
+        startTime = System.currentTimeMillis();
+        start();
+        while (!finished && !node.isRunAborted()) {
+            Thread.sleep(1);
+        }
+        return finished;
+    }
+
+    private synchronized void start() {
+        started = true;
+        bfsParent = node.getId();
+        pendingEchoes = node.getNeighbors().size();
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, join(SEARCH, root));
+        }
+        if (pendingEchoes == 0) {
+            treeBuilt();
+        }
+        for (Msg msg : early) {
+            process(msg);
+        }
+        early = null;
+    }
+
+    public synchronized void process(Msg msg) {
+        if (!started) {
+            early.add(msg);
+            return;
+        }
+        rounds = Math.max(rounds, msg.getRound());
+        String[] t = msg.getContent().split(",");
+        String op = t[0];
+        int from = msg.getFromId();
+        if (op.equals(SEARCH)) {
+            search(from, Integer.parseInt(t[1]));
+        } else if (op.equals(ECHO)) {
+            echo(from, Integer.parseInt(t[1]), t[2].equals("T"));
+        } else if (op.equals(LEVEL) || op.equals(PIPE)) {
+            int i = Integer.parseInt(t[1]);
+            broadcast(msg.getContent());
+            beginLevel(i, op.equals(PIPE));
+        } else if (op.equals(FRAG)) {
+            int i = Integer.parseInt(t[1]);
+            Level l = level(i);
+            l.frags.put(from, Integer.parseInt(t[2]));
+            if (t[3].equals("1")) {
+                l.largeFrags.add(from);
+            }
+            checkFrags(i);
+        } else if (op.equals(MIN)) {
+            int i = Integer.parseInt(t[1]);
+            Level l = level(i);
+            l.reported++;
+            l.size += Integer.parseInt(t[2]);
+            offer(l, t[3].equals("-") ? null : edge(t[3]), Integer.parseInt(t[4]), t[5].equals("1"));
+            checkMin(i);
+        } else if (op.equals(DECIDE)) {
+            decide(Integer.parseInt(t[1]), t[2].equals("1"), t[3].equals("1"), t[4].equals("-") ? null : edge(t[4]));
+        } else if (op.equals(ADD)) {
+            int i = Integer.parseInt(t[1]);
+            Level l = level(i);
+            l.adds.add(from);
+            if (l.addedSent) {
+                send(from, join(ADDED, i, fid, large ? 1 : 0));
+            }
+        } else if (op.equals(ADDED)) {
+            reroot(Integer.parseInt(t[1]), from, Integer.parseInt(t[2]), t[3].equals("1"), true);
+        } else if (op.equals(REROOT)) {
+            reroot(Integer.parseInt(t[1]), from, Integer.parseInt(t[2]), t[3].equals("1"), false);
+        } else if (op.equals(DONE)) {
+            int i = Integer.parseInt(t[1]);
+            Level l = level(i);
+            l.doneChildren++;
+            l.allLarge &= t[2].equals("1");
+            checkDone(i);
+        } else if (op.equals(UP)) {
+            Edge e = edge(t[1]);
+            pool.add(e);
+            poolFids.put(e, new int[] { Integer.parseInt(t[2]), Integer.parseInt(t[3]) });
+            lastUp.put(from, e);
+            pump();
+        } else if (op.equals(FIN)) {
+            finChildren.add(from);
+            pump();
+        } else if (op.equals(RESULT)) {
+            broadcast(msg.getContent());
+            applyResult(t.length > 1 ? t[1] : "");
+        }
+    }
+
+    private void search(int from, int r) {
+        if (r > root) {
+            root = r;
+            bfsParent = from;
+            bfsChildren.clear();
+            pendingEchoes = node.getNeighbors().size() - 1;
+            for (int nId : node.getNeighbors().keySet()) {
+                if (nId != from) {
+                    send(nId, join(SEARCH, r));
+                }
+            }
+            if (pendingEchoes == 0) {
+                send(bfsParent, join(ECHO, r, "T"));
+            }
+        } else if (r == root) {
+            send(from, join(ECHO, r, "N"));
+        }
+    }
+
+    private void echo(int from, int r, boolean child) {
+        if (r != root) {
+            return;
+        }
+        if (child) {
+            bfsChildren.add(from);
+        }
+        if (--pendingEchoes == 0) {
+            if (root == node.getId()) {
+                treeBuilt();
+            } else {
+                send(bfsParent, join(ECHO, r, "T"));
+            }
+        }
+    }
+
+    private void treeBuilt() {
+        Logger.Info("[GKP] BFS tree built in %d ms, starting fragment levels.", System.currentTimeMillis() - startTime);
+        broadcast(join(LEVEL, 1));
+        beginLevel(1, false);
+    }
+
+    private Level level(int i) {
+        return levels.computeIfAbsent(i, k -> new Level());
+    }
+
+    private void beginLevel(int i, boolean pipe) {
+        Level prev = levels.remove(i - 1);
+        if (prev != null) {
+            fChildren.addAll(prev.adds);
+        }
+        level = i;
+        Level l = level(i);
+        l.started = true;
+        l.pipe = pipe;
+        l.peers = new ArrayList<>();
+        for (int nId : node.getNeighbors().keySet()) {
+            if (nId != fParent && !fChildren.contains(nId) && !internal.contains(nId)) {
+                l.peers.add(nId);
+                send(nId, join(FRAG, i, fid, large ? 1 : 0));
+            }
+        }
+        checkFrags(i);
+    }
+
+    private void checkFrags(int i) {
+        Level l = level(i);
+        if (!l.started || l.fragsDone || !l.frags.keySet().containsAll(l.peers)) {
+            return;
+        }
+        l.fragsDone = true;
+        for (int nId : l.peers) {
+            int other = l.frags.get(nId);
+            Edge e = new Edge(node.getId(), nId, node.getWeights().get(nId));
+            if (other == fid) {
+                internal.add(nId);
+            } else if (!l.pipe) {
+                offer(l, e, other, l.largeFrags.contains(nId));
+            } else if (node.getId() < nId) {
+                pool.add(e);
+                poolFids.put(e, new int[] { fid, other });
+            }
+        }
+        if (l.pipe) {
+            pump();
+        } else {
+            checkMin(i);
+        }
+    }
+
+    private void offer(Level l, Edge e, int other, boolean otherLarge) {
+        if (e != null && e.compareTo(l.best) < 0) {
+            l.best = e;
+            l.bestFid = other;
+            l.bestLarge = otherLarge;
+        }
+    }
+
+    private void checkMin(int i) {
+        Level l = level(i);
+        if (!l.fragsDone || l.minSent || l.reported < fChildren.size()) {
+            return;
+        }
+        l.minSent = true;
+        if (fParent != -1) {
+            send(fParent, join(MIN, i, l.size, l.best == null ? "-" : encode(l.best), l.bestFid, l.bestLarge ? 1 : 0));
+            return;
+        }
+        boolean isLarge = l.size >= sqrtN;
+        // a large fragment stays where it is, joining it keeps the merge a star without the coin
+        boolean joins = !isLarge && l.best != null && (l.bestLarge || !coin(fid, i) && coin(l.bestFid, i));
+        decide(i, joins, isLarge, l.best);
+    }
+
+    private void decide(int i, boolean joins, boolean isLarge, Edge e) {
+        large = isLarge;
+        for (int c : fChildren) {
+            send(c, join(DECIDE, i, joins ? 1 : 0, isLarge ? 1 : 0, e == null ? "-" : encode(e)));
+        }
+        if (!joins) {
+            localDone(i);
+        } else if (e.endpoint1 == node.getId() || e.endpoint2 == node.getId()) {
+            send(e.endpoint1 + e.endpoint2 - node.getId(), join(ADD, i));
+        }
+    }
+
+    // the old fragment turns towards the endpoint of the edge it joined over
+    private void reroot(int i, int from, int newFid, boolean newLarge, boolean endpoint) {
+        List<Integer> old = new ArrayList<>(fChildren);
+        if (fParent != -1) {
+            old.add(fParent);
+        }
+        old.remove(Integer.valueOf(from));
+        fParent = from;
+        fChildren = new TreeSet<>(old);
+        fid = newFid;
+        large = newLarge;
+        for (int c : fChildren) {
+            send(c, join(REROOT, i, newFid, newLarge ? 1 : 0));
+        }
+        if (endpoint) {
+            Logger.Info("[GKP] level %d: joined fragment %d over (%d,%d)", i, newFid, node.getId(), from);
+        }
+        localDone(i);
+    }
+
+    private void localDone(int i) {
+        Level l = level(i);
+        l.localDone = true;
+        // the fragment id is final for this level now, the ones that asked to join get it
+        l.addedSent = true;
+        for (int a : l.adds) {
+            send(a, join(ADDED, i, fid, large ? 1 : 0));
+        }
+        checkDone(i);
+    }
+
+    private void checkDone(int i) {
+        Level l = level(i);
+        if (!l.localDone || l.doneSent || l.doneChildren < bfsChildren.size()) {
+            return;
+        }
+        l.doneSent = true;
+        boolean allLarge = l.allLarge && large;
+        if (root != node.getId()) {
+            send(bfsParent, join(DONE, i, allLarge ? 1 : 0));
+        } else if (allLarge || i >= maxLevels) {
+            Logger.Info("[GKP] %d levels in %d ms, pipelining the edges between fragments.", i,
+                    System.currentTimeMillis() - startTime);
+            broadcast(join(PIPE, i + 1));
+            beginLevel(i + 1, true);
+        } else {
+            broadcast(join(LEVEL, i + 1));
+            beginLevel(i + 1, false);
+        }
+    }
+
+    /*
+     * Children send in weight order, so an edge is safe to pass on once every child has finished
+     * or sent one at least as heavy. Dropped edges close a cycle of lighter ones.
+     */
+    private void pump() {
+        Level l = levels.get(level);
+        if (l == null || !l.pipe || !l.fragsDone || finSent) {
+            return;
+        }
+        while (!pool.isEmpty()) {
+            Edge e = pool.first();
+            for (int c : bfsChildren) {
+                Edge last = lastUp.get(c);
+                if (!finChildren.contains(c) && (last == null || last.compareTo(e) < 0)) {
+                    return;
+                }
+            }
+            pool.remove(e);
+            int[] f = poolFids.remove(e);
+            int a = find(f[0]);
+            int b = find(f[1]);
+            if (a == b) {
+                continue;
+            }
+            components.put(a, b);
+            if (root == node.getId()) {
+                accepted.add(e);
+            } else {
+                send(bfsParent, join(UP, encode(e), f[0], f[1]));
+            }
+        }
+        if (!finChildren.containsAll(bfsChildren)) {
+            return;
+        }
+        finSent = true;
+        if (root != node.getId()) {
+            send(bfsParent, FIN);
+            return;
+        }
+        Logger.Info("[GKP] %d edges between fragments after %d ms.", accepted.size(), System.currentTimeMillis() - startTime);
+        StringBuilder sb = new StringBuilder();
+        for (Edge e : accepted) {
+            if (sb.length() > 0) sb.append("/");
+            sb.append(encode(e));
+        }
+        String content = join(RESULT, sb);
+        broadcast(content);
+        applyResult(sb.toString());
+    }
+
+    private int find(int f) {
+        while (components.containsKey(f)) {
+            f = components.get(f);
+        }
+        return f;
+    }
+
+    private void applyResult(String edges) {
+        List<Integer> tree = new ArrayList<>(fChildren);
+        if (fParent != -1) {
+            tree.add(fParent);
+        }
+        for (String s : edges.split("/")) {
+            if (s.isEmpty()) continue;
+            Edge e = edge(s);
+            if (e.endpoint1 == node.getId() || e.endpoint2 == node.getId()) {
+                tree.add(e.endpoint1 + e.endpoint2 - node.getId());
+            }
+        }
+        for (int nId : tree) {
+            node.insertTreeEdge(nId);
+        }
+        node.setComponentId(root);
+        node.setNodeState(NodeState.TERMINATE);
+        finished = true;
+    }
+
+    private void broadcast(String content) {
+        for (int c : bfsChildren) {
+            send(c, content);
+        }
+    }
+
+    // fragments join on tail and are joined on head
+    private static boolean coin(int fragment, int level) {
+        int h = fragment * 0x9E3779B1 ^ level * 0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return (h & 1) == 1;
+    }
+
+    private static Edge edge(String s) {
+        String[] p = s.split(":");
+        return new Edge(Integer.parseInt(p[0]), Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+    }
+
+    private static String encode(Edge e) {
+        return e.endpoint1 + ":" + e.endpoint2 + ":" + e.weight;
+    }
+
+    private static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    private void send(int toId, String content) {
+        Msg msg = MsgFactory.gkpMsg(node, toId, content);
+        msg.setRound(rounds + 1);
+        node.getMsgService().sendMsg(msg);
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Log-linear histogram in the spirit of HdrHistogram: every power of two is split into
+ * SUB_BUCKETS linear buckets, so the relative error stays below 1 / SUB_BUCKETS.
+ * Recording only touches preallocated atomics and never allocates.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> magnitude) - SUB_BUCKETS;
+        return magnitude * SUB_BUCKETS + SUB_BUCKETS + sub;
+    }
+
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        // upper bound of the bucket
+        return ((long) (SUB_BUCKETS + sub + 1) << magnitude) - 1;
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = totalCount.get();
+        return c == 0 ? 0 : (double) totalSum.get() / c;
+    }
+
+    public long getPercentile(double p) {
+        long c = totalCount.get();
+        if (c == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(c * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public String summary(long unit) {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", getCount(), getMean() / unit,
+                getPercentile(50) / unit, getPercentile(90) / unit, getPercentile(99) / unit, getMax() / unit);
+    }
+}
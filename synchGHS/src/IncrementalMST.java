@@ -0,0 +1,468 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Keeps a finished MST up to date when the weight of one edge changes, instead of running GHS
+ * again from singleton components. The change is started at one endpoint of the edge.
+ *
+ * - tree edge lighter, non-tree edge heavier: the tree stays, only the other endpoint is told.
+ * - non-tree edge (u,v) lighter: a path query goes from u over the tree to v and carries the
+ *   heaviest edge seen. If (u,v) is lighter than that edge, v sends SWAP back along the path,
+ *   the endpoints of the heaviest edge drop it and u and v add (u,v).
+ * - tree edge (u,v) heavier: the fragment of u without (u,v) is labelled (LABEL, echo LABELED),
+ *   then searched for the lightest edge leaving it (CUT, CUTTEST/CUTREPLY, echo CUTECHO). If that
+ *   edge beats the new weight of (u,v), (u,v) is dropped and ADD follows the echo pointers to the
+ *   fragment endpoint of the replacement. RELEASE then goes down the fragment behind it and every
+ *   node forgets the label and the cut.
+ *
+ * A removed link is a link of weight Integer.MAX_VALUE and inserting it is a weight decrease, so
+ * insertions and deletions of configured links are handled by the same two cases. Updates must be
+ * issued one at a time.
+ *
+ * A failed node splits the tree into one fragment per tree neighbor. Each of them announces
+ * itself (ORPHAN, flooded) and, once the announcements had the failure timeout to arrive, they
+ * run the heavier-tree-edge cut one after the other in id order, every time joining the fragment
+ * to the rest over its lightest outgoing edge. DONE (flooded) passes the turn on. Once every
+ * fragment is joined the nodes forget the repair and only remember the failed id, so that late
+ * copies of its floods are dropped.
+ *
+ * UPDATE content: op,updateId,args...  edges are written a:b:w, paths a/b/c
+ */
+public class IncrementalMST {
+    public static final int INFINITE = Integer.MAX_VALUE;
+
+    private static final String WEIGHT = "WEIGHT";
+    private static final String PATH = "PATH";
+    private static final String SWAP = "SWAP";
+    private static final String LABEL = "LABEL";
+    private static final String LABELED = "LABELED";
+    private static final String CUT = "CUT";
+    private static final String CUTTEST = "CUTTEST";
+    private static final String CUTREPLY = "CUTREPLY";
+    private static final String CUTECHO = "CUTECHO";
+    private static final String ADD = "ADD";
+    private static final String TREEADD = "TREEADD";
+    private static final String DROP = "DROP";
+    private static final String ORPHAN = "ORPHAN";
+    private static final String DONE = "DONE";
+    private static final String RELEASE = "RELEASE";
+
+    private static class Cut {
+        int parent;
+        List<Integer> children = new ArrayList<>();
+        int excluded;
+        Edge candidate;
+        int pendingLabels;
+        int pendingEchoes;
+        int pendingReplies;
+        Edge best;
+        int bestVia = -1;
+    }
+
+    private Node node;
+    private AtomicInteger updateNo = new AtomicInteger();
+    private HashSet<String> labels = new HashSet<>();
+    private HashMap<String, Cut> cuts = new HashMap<>();
+    private HashSet<String> flooded = new HashSet<>();
+    private HashMap<Integer, TreeSet<Integer>> orphans = new HashMap<>();
+    private HashMap<Integer, HashSet<Integer>> reconnected = new HashMap<>();
+    private HashSet<Integer> settled = new HashSet<>();
+    private HashSet<Integer> repaired = new HashSet<>();
+    private ScheduledExecutorService timer;
+
+    public IncrementalMST(Node node) {
+        this.node = node;
+    }
+
+    public synchronized void update(int nId, int weight) throws Exception {
+        if (!node.getNeighbors().containsKey(nId)) {
+            throw new Exception(String.format("[ %d ] is not a neighbor of %d.", nId, node.getId()));
+        }
+        if (node.getNodeState() != NodeState.TERMINATE) {
+            throw new Exception("MST is not built.");
+        }
+        String k = node.getId() + "." + updateNo.incrementAndGet();
+        int old = node.getWeights().get(nId);
+        boolean tree = node.getTreeNeighbors().containsKey(nId);
+        node.setEdgeWeight(nId, weight);
+        Logger.Info("[UPDATE] %s: (%d,%d) %s -> %s, %s edge", k, node.getId(), nId, format(old), format(weight),
+                tree ? "tree" : "non-tree");
+
+        if (tree && weight > old) {
+            startCut(k, nId, weight);
+        } else if (!tree && weight < old) {
+            String content = join(PATH, k, node.getId(), nId, weight, "-", node.getId());
+            for (int t : node.getTreeNeighborIds()) {
+                send(t, content);
+            }
+        } else {
+            send(nId, join(WEIGHT, k, weight));
+        }
+    }
+
+    // called on every tree neighbor of a failed node
+    public synchronized void neighborFailed(int failed, long settle) {
+        Logger.Info("[UPDATE] tree neighbor %d failed, waiting for the other fragments", failed);
+        orphans.computeIfAbsent(failed, f -> new TreeSet<>()).add(node.getId());
+        flood(-1, join(ORPHAN, repairKey(failed, node.getId()), failed, node.getId()));
+        timer().schedule(() -> {
+            synchronized (this) {
+                if (!repaired.contains(failed)) {
+                    settled.add(failed);
+                    turn(failed);
+                }
+            }
+        }, settle, TimeUnit.MILLISECONDS);
+    }
+
+    // one thread for all repairs, started with the first one
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    public synchronized void process(Msg msg) {
+        String[] t = msg.getContent().split(",");
+        String op = t[0];
+        String k = t[1];
+        int from = msg.getFromId();
+
+        if (op.equals(WEIGHT)) {
+            node.setEdgeWeight(from, Integer.parseInt(t[2]));
+        } else if (op.equals(PATH)) {
+            processPath(k, from, Integer.parseInt(t[2]), Integer.parseInt(t[3]), Integer.parseInt(t[4]),
+                    max(parseEdge(t[5]), new Edge(from, node.getId(), node.getWeights().get(from))), t[6]);
+        } else if (op.equals(SWAP)) {
+            processSwap(k, Integer.parseInt(t[2]), Integer.parseInt(t[3]), parseEdge(t[5]), t[6]);
+        } else if (op.equals(LABEL)) {
+            labels.add(k);
+            Cut c = new Cut();
+            c.parent = from;
+            for (int n : node.getTreeNeighborIds()) {
+                if (n != from) c.children.add(n);
+            }
+            cuts.put(k, c);
+            label(k, c);
+        } else if (op.equals(LABELED)) {
+            Cut c = cuts.get(k);
+            c.pendingLabels--;
+            labeled(k, c);
+        } else if (op.equals(CUT)) {
+            search(k, cuts.get(k));
+        } else if (op.equals(CUTTEST)) {
+            send(from, join(CUTREPLY, k, labels.contains(k) ? 1 : 0));
+        } else if (op.equals(CUTREPLY)) {
+            Cut c = cuts.get(k);
+            if (t[2].equals("0") && node.getWeights().get(from) != INFINITE) {
+                offer(c, new Edge(node.getId(), from, node.getWeights().get(from)), -1);
+            }
+            c.pendingReplies--;
+            searched(k, c);
+        } else if (op.equals(CUTECHO)) {
+            Cut c = cuts.get(k);
+            offer(c, parseEdge(t[2]), from);
+            c.pendingEchoes--;
+            searched(k, c);
+        } else if (op.equals(ADD)) {
+            add(k, cuts.get(k));
+        } else if (op.equals(TREEADD)) {
+            node.insertTreeEdge(from);
+            Logger.Info("[UPDATE] %s: tree edge (%d,%d) added", k, node.getId(), from);
+            if (repairFailed(k) != -1) {
+                reconnected(k);
+            }
+        } else if (op.equals(ORPHAN)) {
+            if (flood(from, msg.getContent())) {
+                orphans.computeIfAbsent(Integer.parseInt(t[2]), f -> new TreeSet<>()).add(Integer.parseInt(t[3]));
+            }
+        } else if (op.equals(DONE)) {
+            if (flood(from, msg.getContent())) {
+                int failed = Integer.parseInt(t[2]);
+                reconnected.computeIfAbsent(failed, f -> new HashSet<>()).add(Integer.parseInt(t[3]));
+                turn(failed);
+            }
+        } else if (op.equals(DROP)) {
+            node.setEdgeWeight(from, Integer.parseInt(t[2]));
+            node.deleteTreeEdge(from);
+            Logger.Info("[UPDATE] %s: tree edge (%d,%d) dropped", k, node.getId(), from);
+        } else if (op.equals(RELEASE)) {
+            release(k, cuts.get(k));
+        }
+    }
+
+    private void processPath(String k, int from, int u, int v, int weight, Edge max, String path) {
+        if (node.getId() != v) {
+            for (int t : node.getTreeNeighborIds()) {
+                if (t != from) {
+                    send(t, join(PATH, k, u, v, weight, format(max), path + "/" + node.getId()));
+                }
+            }
+            return;
+        }
+        node.setEdgeWeight(u, weight);
+        if (new Edge(u, v, weight).compareTo(max) >= 0) {
+            Logger.Info("[UPDATE] %s: (%d,%d) is not lighter than %s, tree unchanged", k, u, v, format(max));
+            return;
+        }
+        node.insertTreeEdge(u);
+        drop(k, max);
+        Logger.Info("[UPDATE] %s: tree edge (%d,%d) added, replaces %s", k, u, v, format(max));
+        processSwap(k, u, v, max, path + "/" + node.getId());
+    }
+
+    // path ends with this node, the message goes on to the node before it
+    private void processSwap(String k, int u, int v, Edge max, String path) {
+        List<String> ids = new ArrayList<>(Arrays.asList(path.split("/")));
+        ids.remove(ids.size() - 1);
+        if (node.getId() != v) {
+            drop(k, max);
+        }
+        if (node.getId() == u) {
+            node.insertTreeEdge(v);
+            Logger.Info("[UPDATE] %s: tree edge (%d,%d) added", k, u, v);
+            return;
+        }
+        int prev = Integer.parseInt(ids.get(ids.size() - 1));
+        send(prev, join(SWAP, k, u, v, 0, format(max), String.join("/", ids)));
+    }
+
+    private void drop(String k, Edge e) {
+        if (node.getId() == e.endpoint1 || node.getId() == e.endpoint2) {
+            int other = node.getId() == e.endpoint1 ? e.endpoint2 : e.endpoint1;
+            node.deleteTreeEdge(other);
+            Logger.Info("[UPDATE] %s: tree edge (%d,%d) dropped", k, node.getId(), other);
+        }
+    }
+
+    private void startCut(String k, int excluded, int weight) {
+        labels.add(k);
+        Cut c = new Cut();
+        c.parent = -1;
+        c.excluded = excluded;
+        c.candidate = new Edge(node.getId(), excluded, weight);
+        for (int n : node.getTreeNeighborIds()) {
+            if (n != excluded) c.children.add(n);
+        }
+        cuts.put(k, c);
+        label(k, c);
+    }
+
+    private void turn(int failed) {
+        TreeSet<Integer> roots = orphans.get(failed);
+        HashSet<Integer> done = reconnected.computeIfAbsent(failed, f -> new HashSet<>());
+        if (roots != null && done.containsAll(roots)) {
+            finish(failed);
+            return;
+        }
+        if (!settled.contains(failed)) {
+            return;
+        }
+        for (int root : roots) {
+            if (done.contains(root)) {
+                continue;
+            }
+            String k = repairKey(failed, root);
+            if (root == node.getId() && !labels.contains(k)) {
+                // the failed node is gone, so the cut has no candidate to beat
+                Logger.Info("[UPDATE] %s: reconnecting the fragment", k);
+                labels.add(k);
+                Cut c = new Cut();
+                c.parent = -1;
+                c.excluded = failed;
+                c.children.addAll(node.getTreeNeighborIds());
+                cuts.put(k, c);
+                label(k, c);
+            }
+            return;
+        }
+    }
+
+    // every fragment of the failed node is joined
+    private void finish(int failed) {
+        repaired.add(failed);
+        orphans.remove(failed);
+        reconnected.remove(failed);
+        settled.remove(failed);
+        flooded.removeIf(f -> repairFailed(f.substring(f.indexOf(',') + 1)) == failed);
+        Logger.Info("[UPDATE] repair of %d finished", failed);
+    }
+
+    // the fragment of the key's root is joined (or has nothing left to join), the next one goes
+    private void reconnected(String k) {
+        int failed = repairFailed(k);
+        int root = Integer.parseInt(k.substring(k.indexOf('.') + 1));
+        flood(-1, join(DONE, k, failed, root));
+        reconnected.computeIfAbsent(failed, f -> new HashSet<>()).add(root);
+        turn(failed);
+    }
+
+    // sends a flooded message on, false if it was seen before
+    private boolean flood(int from, String content) {
+        String[] t = content.split(",", 3);
+        if (repaired.contains(repairFailed(t[1])) || !flooded.add(t[0] + "," + t[1])) {
+            return false;
+        }
+        for (int n : node.getNeighbors().keySet()) {
+            if (n != from) {
+                send(n, content);
+            }
+        }
+        return true;
+    }
+
+    private static String repairKey(int failed, int root) {
+        return "r" + failed + "." + root;
+    }
+
+    private static int repairFailed(String k) {
+        return k.startsWith("r") ? Integer.parseInt(k.substring(1, k.indexOf('.'))) : -1;
+    }
+
+    private void label(String k, Cut c) {
+        c.pendingLabels = c.children.size();
+        for (int child : c.children) {
+            send(child, join(LABEL, k));
+        }
+        labeled(k, c);
+    }
+
+    private void labeled(String k, Cut c) {
+        if (c.pendingLabels > 0) {
+            return;
+        }
+        if (c.parent == -1) {
+            search(k, c);
+        } else {
+            send(c.parent, join(LABELED, k));
+        }
+    }
+
+    private void search(String k, Cut c) {
+        c.pendingEchoes = c.children.size();
+        for (int child : c.children) {
+            send(child, join(CUT, k));
+        }
+        List<Integer> others = new ArrayList<>();
+        for (int n : node.getNeighbors().keySet()) {
+            if (!node.getTreeNeighbors().containsKey(n) && n != c.excluded) {
+                others.add(n);
+            }
+        }
+        c.pendingReplies = others.size();
+        for (int n : others) {
+            send(n, join(CUTTEST, k));
+        }
+        searched(k, c);
+    }
+
+    private void searched(String k, Cut c) {
+        if (c.pendingEchoes > 0 || c.pendingReplies > 0) {
+            return;
+        }
+        if (c.parent != -1) {
+            send(c.parent, join(CUTECHO, k, format(c.best)));
+            return;
+        }
+        resolve(k, c);
+        release(k, c);
+    }
+
+    private void resolve(String k, Cut c) {
+        if (c.candidate == null) {
+            if (c.best == null) {
+                Logger.Info("[UPDATE] %s: no link out of the fragment left", k);
+                reconnected(k);
+            } else {
+                Logger.Info("[UPDATE] %s: fragment reconnected over %s", k, format(c.best));
+                // the root has no label left to tell that its turn is taken until DONE comes back
+                reconnected.computeIfAbsent(repairFailed(k), f -> new HashSet<>()).add(node.getId());
+                add(k, c);
+            }
+            return;
+        }
+        int other = c.excluded;
+        if (c.best == null || c.best.compareTo(c.candidate) >= 0) {
+            Logger.Info("[UPDATE] %s: no lighter edge across the cut, tree unchanged", k);
+            send(other, join(WEIGHT, k, c.candidate.weight));
+            return;
+        }
+        node.deleteTreeEdge(other);
+        send(other, join(DROP, k, c.candidate.weight));
+        Logger.Info("[UPDATE] %s: tree edge (%d,%d) dropped, replaced by %s", k, node.getId(), other, format(c.best));
+        add(k, c);
+    }
+
+    // sent after ADD on the same links, so the fragment forgets the cut once it was used
+    private void release(String k, Cut c) {
+        cuts.remove(k);
+        labels.remove(k);
+        for (int child : c.children) {
+            send(child, join(RELEASE, k));
+        }
+    }
+
+    private void add(String k, Cut c) {
+        if (c.bestVia != -1) {
+            send(c.bestVia, join(ADD, k));
+            return;
+        }
+        int other = c.best.endpoint1 == node.getId() ? c.best.endpoint2 : c.best.endpoint1;
+        node.insertTreeEdge(other);
+        send(other, join(TREEADD, k));
+        Logger.Info("[UPDATE] %s: tree edge (%d,%d) added", k, node.getId(), other);
+    }
+
+    private static void offer(Cut c, Edge e, int via) {
+        if (e != null && (c.best == null || e.compareTo(c.best) < 0)) {
+            c.best = e;
+            c.bestVia = via;
+        }
+    }
+
+    private static Edge max(Edge a, Edge b) {
+        return a == null || b.compareTo(a) > 0 ? b : a;
+    }
+
+    private static Edge parseEdge(String s) {
+        if (s.equals("-")) {
+            return null;
+        }
+        String[] t = s.split(":");
+        return new Edge(Integer.parseInt(t[0]), Integer.parseInt(t[1]), Integer.parseInt(t[2]));
+    }
+
+    private static String format(Edge e) {
+        return e == null ? "-" : e.endpoint1 + ":" + e.endpoint2 + ":" + e.weight;
+    }
+
+    private static String format(int weight) {
+        return weight == INFINITE ? "inf" : String.valueOf(weight);
+    }
+
+    private static String join(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+
+    private void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.updateMsg(node, toId, content));
+    }
+}
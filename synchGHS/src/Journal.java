@@ -0,0 +1,163 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+/*
+ * Binary journal of the messages a node received, in the order they were handed to the node.
+ *
+ * header:  "DAJ1" <node id: int>
+ * record:  <phase> <round> <level> <ns since previous record> <length> <frame bytes>
+ *
+ * All numbers of a record are varints, round and level zigzag encoded. Phase and round are where
+ * the node was when the frame arrived, phase counts the round resets (election, BFS, every GHS
+ * level). Replay hands a frame over once the node got as far, so the frames meet the node in the
+ * same phase and round as when they were recorded. Heartbeats are not recorded.
+ */
+public class Journal {
+    private static final int MAGIC = 0x44414a31;
+
+    private DataOutputStream out;
+    private long lastTime = System.nanoTime();
+    private long recordNo;
+
+    public Journal(String dir, int nodeId) throws IOException {
+        File d = new File(dir);
+        d.mkdirs();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(d, "journal_" + nodeId + ".bin"))));
+        out.writeInt(MAGIC);
+        out.writeInt(nodeId);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public synchronized void record(MsgView view, int phase, int round, int level) {
+        if (out == null) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            writeVar(phase);
+            writeVar(zigzag(round));
+            writeVar(zigzag(level));
+            writeVar(now - lastTime);
+            writeVar(view.getLength());
+            ByteBuffer buf = view.getBuffer();
+            for (int i = 0; i < view.getLength(); i++) {
+                out.write(buf.get(view.getOffset() + i));
+            }
+            lastTime = now;
+            recordNo++;
+        } catch (IOException e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+            out = null;
+        }
+    }
+
+    public synchronized void flush() {
+        try {
+            if (out != null) out.flush();
+        } catch (IOException e) {
+            Logger.Error("Flushing journal: %s", e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (out != null) {
+                out.close();
+                Logger.Info("Journal closed after %d messages.", recordNo);
+            }
+            out = null;
+        } catch (IOException e) {
+            Logger.Error("Closing journal: %s", e.getMessage());
+        }
+    }
+
+    private void writeVar(long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long zigzag(int v) {
+        return ((long) v << 1) ^ ((long) v >> 63);
+    }
+
+    // one record read back, the frame array is reused
+    public static class Record {
+        int phase;
+        int round;
+        int level;
+        long nanos;
+        int length;
+        byte[] frame = new byte[256];
+    }
+
+    public static class Reader {
+        private DataInputStream in;
+        private int nodeId;
+
+        public Reader(String path) throws Exception {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+            if (in.readInt() != MAGIC) {
+                throw new Exception(String.format("Not a journal: %s", path));
+            }
+            nodeId = in.readInt();
+        }
+
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        // false at the end of the journal
+        public boolean next(Record r) throws IOException {
+            try {
+                r.phase = (int) readVar();
+            } catch (EOFException e) {
+                return false;
+            }
+            r.round = unzigzag(readVar());
+            r.level = unzigzag(readVar());
+            r.nanos = readVar();
+            r.length = (int) readVar();
+            if (r.frame.length < r.length) {
+                r.frame = new byte[r.length];
+            }
+            in.readFully(r.frame, 0, r.length);
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private long readVar() throws IOException {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        private static int unzigzag(long v) {
+            return (int) (v >>> 1) ^ -(int) (v & 1);
+        }
+    }
+}
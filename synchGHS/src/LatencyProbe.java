@@ -0,0 +1,133 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+/*
+ * Measured edge weights (-rtt). Every interval a PING with the sender's clock goes out on each live
+ * channel and the PONG brings it back, the channel keeps a smoothed RTT (srtt += (rtt - srtt) / 8,
+ * as TCP does). The first samples go out 10 ms apart so that the bootstrap does not wait long, and
+ * the smallest of them starts the estimate.
+ *
+ * The two ends of an edge measure different values, but GHS needs one weight on both sides. Before
+ * each run every node sends its estimate to each neighbor (EST,epoch,us) and both ends use the
+ * mean: weight = mix * mean + (1 - mix) * static weight, rounded. RTT content: PING,t | PONG,t |
+ * EST,epoch,us
+ */
+public class LatencyProbe {
+    private static final String PING = "PING";
+    private static final String PONG = "PONG";
+    private static final String EST = "EST";
+    private static final int FAST_INTERVAL = 10;
+
+    private Node node;
+    private MsgService msgService;
+    private long interval;
+    private int samples;
+    private double mix;
+    private HashMap<Integer, Integer> staticWeights;
+    private HashMap<String, Long> estimates = new HashMap<>();
+    private volatile boolean stopped = false;
+
+    public LatencyProbe(Node node, long interval, int samples, double mix) throws Exception {
+        if (mix < 0 || mix > 1) {
+            throw new Exception(String.format("RTT mix %s is not between 0 and 1.", mix));
+        }
+        this.node = node;
+        this.msgService = node.getMsgService();
+        this.interval = interval;
+        this.samples = samples;
+        this.mix = mix;
+        this.staticWeights = new HashMap<>(node.getWeights());
+    }
+
+    public void start() {
+        msgService.setLatencyProbe(this);
+        Thread thread = new Thread(() -> {
+            try {
+                int sent = 0;
+                while (!stopped) {
+                    for (MsgChannel ch : msgService.channels.values()) {
+                        if (!ch.isFailed() && ch.isConnecting()) {
+                            send(ch.getNodeId(), PING + "," + System.nanoTime());
+                        }
+                    }
+                    sent++;
+                    Thread.sleep(sent < samples ? FAST_INTERVAL : interval);
+                }
+            } catch (Exception e) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                e.printStackTrace(pw);
+                Logger.Error(sw.toString());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Logger.Info("Latency probe started: %d samples, then a ping every %d ms, weight = %s * rtt(us) + %s * static.",
+                samples, interval, mix, 1 - mix);
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    // called by the channel reader, PINGs are answered right there
+    public void process(MsgChannel ch, Msg msg) {
+        String[] t = msg.getContent().split(",");
+        if (t[0].equals(PING)) {
+            send(ch.getNodeId(), PONG + "," + t[1]);
+        } else if (t[0].equals(PONG)) {
+            ch.addRttSample((System.nanoTime() - Long.parseLong(t[1])) / 1000, ch.getRttSamples() < samples);
+        } else if (t[0].equals(EST)) {
+            synchronized (this) {
+                estimates.put(ch.getNodeId() + "." + t[1], Long.parseLong(t[2]));
+                notifyAll();
+            }
+        }
+    }
+
+    // weights from a reloaded config, measured ones are mixed into them from the next run on
+    public synchronized void setStaticWeights(HashMap<Integer, Integer> w) {
+        staticWeights.putAll(w);
+    }
+
+    /*
+     * Agrees with the neighbors on the weights of the run in epoch. Waits for the bootstrap samples
+     * and for the estimate of each neighbor whose channel is still alive.
+     */
+    public void apply(int epoch) throws InterruptedException {
+        HashMap<Integer, Long> own = new HashMap<>();
+        for (int nId : node.getNeighbors().keySet()) {
+            MsgChannel ch = msgService.channels.get(nId);
+            while (ch.getRttSamples() < samples && !ch.isFailed()) {
+                Thread.sleep(FAST_INTERVAL);
+            }
+            own.put(nId, ch.getRtt());
+            send(nId, EST + "," + epoch + "," + ch.getRtt());
+        }
+        HashMap<Integer, Integer> w = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            for (int nId : own.keySet()) {
+                MsgChannel ch = msgService.channels.get(nId);
+                String key = nId + "." + epoch;
+                while (!ch.isFailed() && !estimates.containsKey(key)) {
+                    wait(100);
+                }
+                if (ch.isFailed()) {
+                    continue;
+                }
+                long mean = (own.get(nId) + estimates.remove(key)) / 2;
+                int weight = (int) Math.round(mix * mean + (1 - mix) * staticWeights.get(nId));
+                w.put(nId, weight);
+                sb.append(String.format(" (%d,%d) %d", Math.min(node.getId(), nId), Math.max(node.getId(), nId), weight));
+            }
+        }
+        node.updateWeights(w);
+        Logger.Info("[RTT] Epoch %d weights:%s", epoch, sb);
+    }
+
+    private void send(int toId, String content) {
+        msgService.sendMsg(MsgFactory.rttMsg(toId, content));
+    }
+}
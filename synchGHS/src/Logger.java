@@ -13,6 +13,10 @@ public class Logger {
         isDebugging = d;
     }
 
+    public static boolean isDebugging() {
+        return isDebugging;
+    }
+
     public static PrintStream outputStream = null;
 
     public static void Init(String path) {
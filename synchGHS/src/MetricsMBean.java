@@ -0,0 +1,29 @@
+public interface MetricsMBean {
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    String[] getMessagesSentByAction();
+
+    String[] getMessagesReceivedByAction();
+
+    String[] getBytesByChannel();
+
+    long getRoundCount();
+
+    double getRoundMeanMicros();
+
+    long getRoundP50Micros();
+
+    long getRoundP99Micros();
+
+    long getRoundMaxMicros();
+
+    int getBufferedMsgDepth();
+
+    int getMaxBufferedMsgDepth();
+
+    String[] getPhaseDurations();
+
+    String dump();
+}
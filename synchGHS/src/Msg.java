@@ -5,6 +5,8 @@ public class Msg {
     private int toId;
     private int round;
     private int componentLevel;
+    private int epoch;
+    private int session;
     private String content = "";
 
     public Msg(String str) {
@@ -15,7 +17,9 @@ public class Msg {
         this.toId = Integer.parseInt(token[3]);
         this.round = Integer.parseInt(token[4]);
         this.componentLevel = Integer.parseInt(token[5]);
-        this.content = token.length < 7 ? "" : token[6];
+        this.epoch = Integer.parseInt(token[6]);
+        this.session = Integer.parseInt(token[7]);
+        this.content = token.length < 9 ? "" : token[8];
     }
 
     public Msg() {
@@ -69,6 +73,22 @@ public class Msg {
         componentLevel = c;
     }
 
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(int e) {
+        epoch = e;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    public void setSession(int s) {
+        session = s;
+    }
+
     public String getContent() {
         return content;
     }
@@ -79,12 +99,12 @@ public class Msg {
 
     @Override
     public String toString() {
-        return String.format("%s|%d|%d|%d|%d|%d|%s", this.action, this.srcId, this.fromId, this.toId, this.round,
-                this.componentLevel, this.content);
+        return String.format("%s|%d|%d|%d|%d|%d|%d|%d|%s", this.action, this.srcId, this.fromId, this.toId, this.round,
+                this.componentLevel, this.epoch, this.session, this.content);
     }
 
     public String printFormat() {
-        return String.format("%s | s: %d, f: %d, t: %d, r: %d, cl: %d, c: %s", this.action, this.srcId, this.fromId,
-                this.toId, this.round, this.componentLevel, this.content);
+        return String.format("%s | s: %d, f: %d, t: %d, r: %d, cl: %d, e: %d, ss: %d, c: %s", this.action, this.srcId,
+                this.fromId, this.toId, this.round, this.componentLevel, this.epoch, this.session, this.content);
     }
 }
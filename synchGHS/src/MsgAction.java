@@ -8,4 +8,13 @@ public class MsgAction {
     public static final String MERGE = "MERGE";
     public static final String JOIN = "JOIN";
     public static final String TERMINATE = "TERMINATE";
+    public static final String RUN = "RUN";
+    public static final String DISSEMINATE = "DISSEMINATE";
+    public static final String RESTORE = "RESTORE";
+    public static final String UPDATE = "UPDATE";
+    public static final String HEARTBEAT = "HEARTBEAT";
+    public static final String SYNC = "SYNC";
+    public static final String GKP = "GKP";
+    public static final String RTT = "RTT";
+    public static final String ROUTE = "ROUTE";
 }
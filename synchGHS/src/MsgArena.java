@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The buffered frames of one (epoch, level, round), copied off-heap into direct chunks as
+ * <length><seq><bytes>. Nothing on the heap refers to a frame until it is read back, and the
+ * chunks go back to the inbox pool together once the round has been drained.
+ */
+public class MsgArena {
+    private List<ByteBuffer> chunks = new ArrayList<>();
+    private int frameNo;
+
+    // read position, frames come back in the order they were appended
+    private int chunk;
+    private int pos;
+
+    void append(ByteBuffer src, int off, int len, int seq, MsgInbox pool) {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last == null || last.remaining() < len + 8) {
+            last = pool.allocate(len + 8);
+            chunks.add(last);
+        }
+        last.putInt(len);
+        last.putInt(seq);
+        if (src.hasArray()) {
+            last.put(src.array(), src.arrayOffset() + off, len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                last.put(src.get(off + i));
+            }
+        }
+        frameNo++;
+    }
+
+    int getFrameNo() {
+        return frameNo;
+    }
+
+    List<ByteBuffer> getChunks() {
+        return chunks;
+    }
+
+    // seq of the next frame, -1 once all were read
+    int peek() {
+        while (chunk < chunks.size() && pos >= chunks.get(chunk).position()) {
+            chunk++;
+            pos = 0;
+        }
+        return chunk < chunks.size() ? chunks.get(chunk).getInt(pos + 4) : -1;
+    }
+
+    MsgView next(MsgView view) {
+        ByteBuffer c = chunks.get(chunk);
+        int len = c.getInt(pos);
+        view.wrap(c, pos + 8, len);
+        pos += len + 8;
+        return view;
+    }
+
+    void rewind() {
+        chunk = 0;
+        pos = 0;
+    }
+}
@@ -1,11 +1,39 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MsgChannel {
+    private static class Pending {
+        final String line;
+        final int round;
+
+        Pending(String line, int round) {
+            this.line = line;
+            this.round = round;
+        }
+    }
+
+    private static final Pending FLUSH = new Pending(null, -1);
+    private static final Pending CLOSE = new Pending(null, -1);
+
     private boolean isConnecting = false;
+    private volatile boolean failed = false;
+    private volatile long lastReceived = System.currentTimeMillis();
 
-    private BufferedReader in = null;
+    private FrameReader in = null;
     private PrintStream out = null;
+    private FlushPolicy policy;
+    private MsgService service;
+    private ChannelCodec encoder;
+    private int pendingBytes;
+    private long pendingSince;
+    // -sendQueue: lines wait for the writer thread of the channel, a full socket holds up only this
+    // channel, and a queue past the cap fails it
+    private LinkedBlockingQueue<Pending> queue;
+    private volatile int maxQueued;
 
     private int nodeId;
     private String host;
@@ -13,17 +41,33 @@ public class MsgChannel {
     private Socket clientSocket;
     private Socket serverSocket;
 
-    public MsgChannel(int id, String h, int p) throws IOException {
+    // smoothed RTT in microseconds, -rtt only
+    private volatile long rtt;
+    private volatile int rttSamples;
+
+    private AtomicLong sentBytes = new AtomicLong();
+    private AtomicLong receivedBytes = new AtomicLong();
+
+    public MsgChannel(int id, String h, int p, FlushPolicy policy, MsgService service) throws IOException {
         nodeId = id;
         host = h;
         port = p;
+        this.policy = policy;
+        this.service = service;
+        if (policy.isQueued()) {
+            queue = new LinkedBlockingQueue<>();
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
     }
 
     public boolean isConnecting() {
         return isConnecting;
     }
 
-    public BufferedReader getInChannel() {
+    public FrameReader getInChannel() {
         return in;
     }
 
@@ -31,11 +75,64 @@ public class MsgChannel {
         return out;
     }
 
+    public void setEncoder(ChannelCodec codec) {
+        encoder = codec;
+    }
+
+    /*
+     * Buffers one line and writes the channel out if the policy says so, returns the bytes on the
+     * wire. A queued line is counted by the writer thread once it is written and returns 0, a line
+     * that finds the queue at its cap is dropped and returns -1.
+     */
+    public synchronized int write(String line, int round) {
+        if (encoder != null) {
+            line = encoder.encode(line);
+        }
+        if (queue != null) {
+            if (queue.size() >= policy.getQueueCap()) {
+                return -1;
+            }
+            queue.add(new Pending(line, round));
+            maxQueued = Math.max(maxQueued, queue.size());
+            return 0;
+        }
+        out.println(line);
+        if (pendingBytes == 0) {
+            pendingSince = System.currentTimeMillis();
+        }
+        pendingBytes += line.length() + 1;
+        if (policy.flushNow(round, pendingBytes)) {
+            flush();
+        }
+        return line.length() + 1;
+    }
+
+    public synchronized void flush() {
+        if (queue != null) {
+            queue.add(FLUSH);
+            return;
+        }
+        flushOut();
+    }
+
+    private void flushOut() {
+        if (pendingBytes > 0) {
+            out.flush();
+            pendingBytes = 0;
+        }
+    }
+
+    public synchronized void flushOlderThan(long now, long delay) {
+        if (pendingBytes > 0 && now - pendingSince >= delay) {
+            flush();
+        }
+    }
+
     public boolean hasInChannel() {
         return in == null ? false : true;
     }
 
-    public void assignInChannel(Socket st, BufferedReader in) {
+    public void assignInChannel(Socket st, FrameReader in) {
         this.serverSocket = st;
         this.in = in;
     }
@@ -47,9 +144,19 @@ public class MsgChannel {
     public boolean connectOutChannel() {
 
         try {
-            clientSocket = new Socket(host, port);
-            out = new PrintStream(clientSocket.getOutputStream());
+            clientSocket = new Socket();
+            clientSocket.setTcpNoDelay(policy.isNoDelay());
+            if (policy.getSendBuffer() > 0) {
+                clientSocket.setSendBufferSize(policy.getSendBuffer());
+            }
+            clientSocket.connect(new InetSocketAddress(host, port));
+            out = new PrintStream(new BufferedOutputStream(clientSocket.getOutputStream(),
+                    Math.max(policy.getMaxBytes(), 8192)), false);
             out.println(MsgFactory.connectMsg(nodeId));
+            out.flush();
+            if (queue != null) {
+                startWriter();
+            }
             return true;
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
@@ -60,6 +167,67 @@ public class MsgChannel {
         }
     }
 
+    /*
+     * Writes the queued lines on a thread of its own. In message mode the stream is flushed once the
+     * queue runs empty, so a burst leaves in one write; round and batch flush as without the queue,
+     * and nothing stays buffered longer than maxDelay. The thread sleeps in take() while nothing is
+     * buffered and polls only until the buffered bytes are due.
+     */
+    private void startWriter() {
+        Thread thread = new Thread(() -> {
+            try {
+                long delay = Math.max(1, policy.getMaxDelay());
+                while (!failed) {
+                    Pending p = pendingBytes == 0 ? queue.take()
+                            : queue.poll(Math.max(1, pendingSince + delay - System.currentTimeMillis()),
+                                    TimeUnit.MILLISECONDS);
+                    if (p == null || p == FLUSH) {
+                        flushOut();
+                        continue;
+                    }
+                    if (p == CLOSE) {
+                        if (!failed) {
+                            out.println(MsgFactory.disconnectMsg(nodeId));
+                        }
+                        out.close();
+                        clientSocket.close();
+                        return;
+                    }
+                    out.println(p.line);
+                    service.addSentBytes(this, p.line.length() + 1);
+                    long now = System.currentTimeMillis();
+                    if (pendingBytes == 0) {
+                        pendingSince = now;
+                    }
+                    pendingBytes += p.line.length() + 1;
+                    if (policy.isPerMessage() ? queue.isEmpty()
+                            : (policy.flushNow(p.round, pendingBytes) || now - pendingSince >= delay)) {
+                        flushOut();
+                    }
+                }
+            } catch (Exception e) {
+                if (!failed) {
+                    StringWriter sw = new StringWriter();
+                    PrintWriter pw = new PrintWriter(sw);
+                    e.printStackTrace(pw);
+                    Logger.Error(sw.toString());
+                }
+            } finally {
+                queue.clear();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isQueued() {
+        return queue != null;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
     public void shutdownInChannel() {
         try {
             if (!this.serverSocket.isClosed()) {
@@ -79,11 +247,82 @@ public class MsgChannel {
         isConnecting = true;
     }
 
-    public void disconnect() throws IOException {
+    public synchronized void disconnect() throws IOException {
         isConnecting = false;
+        if (queue != null) {
+            // the writer sends DISCONNECT after what is still queued
+            queue.add(CLOSE);
+            return;
+        }
         out.println(MsgFactory.disconnectMsg(nodeId));
         out.close();
         clientSocket.close();
     }
 
+    public void touch() {
+        lastReceived = System.currentTimeMillis();
+    }
+
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    // true only for the caller that marks the channel first
+    public synchronized boolean markFailed() {
+        if (failed) {
+            return false;
+        }
+        failed = true;
+        isConnecting = false;
+        if (queue != null) {
+            // nothing queued is written any more, CLOSE wakes a writer waiting in take()
+            queue.clear();
+            queue.add(CLOSE);
+        }
+        try {
+            if (clientSocket != null) clientSocket.close();
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            Logger.Debug("Closing channel to %d: %s", nodeId, e.getMessage());
+        }
+        return true;
+    }
+
+    // the warmup keeps the smallest sample, the first ones queue behind the connection setup
+    public synchronized void addRttSample(long us, boolean warmup) {
+        if (rttSamples == 0) {
+            rtt = us;
+        } else {
+            rtt = warmup ? Math.min(rtt, us) : rtt + (us - rtt) / 8;
+        }
+        rttSamples++;
+    }
+
+    public long getRtt() {
+        return rtt;
+    }
+
+    public int getRttSamples() {
+        return rttSamples;
+    }
+
+    public void addSentBytes(long n) {
+        sentBytes.addAndGet(n);
+    }
+
+    public void addReceivedBytes(long n) {
+        receivedBytes.addAndGet(n);
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
 }
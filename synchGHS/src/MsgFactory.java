@@ -27,6 +27,29 @@ public class MsgFactory {
         return msg;
     }
 
+    public static Msg heartbeatMsg(int toId) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.HEARTBEAT);
+        msg.setSrcId(localNodeId);
+        msg.setFromId(localNodeId);
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(-1);
+        return msg;
+    }
+
+    public static Msg rttMsg(int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.RTT);
+        msg.setSrcId(localNodeId);
+        msg.setFromId(localNodeId);
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(-1);
+        msg.setContent(content);
+        return msg;
+    }
+
     public static Msg searchMsg(Node node, String content) {
         Msg msg = new Msg();
         msg.setAction(MsgAction.SEARCH);
@@ -35,10 +58,12 @@ public class MsgFactory {
         msg.setFromId(node.getId());
         msg.setRound(node.getRound() + 1);
         msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
-    public static Msg testMsg(int toId, String content, int componentLevel) {
+    public static Msg testMsg(Node node, int toId, String content) {
         Msg msg = new Msg();
         msg.setAction(MsgAction.TEST);
         msg.setContent(content);
@@ -46,11 +71,13 @@ public class MsgFactory {
         msg.setFromId(localNodeId);
         msg.setToId(toId);
         msg.setRound(-1);
-        msg.setComponentLevel(componentLevel);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
-    public static Msg replyMsg(int toId, String content, int componentLevel) {
+    public static Msg replyMsg(Node node, int toId, String content) {
         Msg msg = new Msg();
         msg.setAction(MsgAction.REPLY);
         msg.setContent(content);
@@ -58,7 +85,9 @@ public class MsgFactory {
         msg.setFromId(localNodeId);
         msg.setToId(toId);
         msg.setRound(-1);
-        msg.setComponentLevel(componentLevel);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -71,6 +100,8 @@ public class MsgFactory {
         msg.setToId(toId);
         msg.setRound(node.getRound() + 1);
         msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -82,6 +113,8 @@ public class MsgFactory {
         msg.setFromId(node.getId());
         msg.setRound(node.getRound() + 1);
         msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -94,6 +127,8 @@ public class MsgFactory {
         msg.setToId(toId);
         msg.setRound(node.getRound() + 1);
         msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 
@@ -104,6 +139,104 @@ public class MsgFactory {
         msg.setFromId(node.getId());
         msg.setRound(node.getRound() + 1);
         msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg runMsg(Node node, int epoch, String command) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.RUN);
+        msg.setContent(command);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setRound(-1);
+        msg.setComponentLevel(-1);
+        msg.setEpoch(epoch);
+        return msg;
+    }
+
+    public static Msg disseminateMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.DISSEMINATE);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg routeMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.ROUTE);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg syncMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.SYNC);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg restoreMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.RESTORE);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg updateMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.UPDATE);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
+        return msg;
+    }
+
+    public static Msg gkpMsg(Node node, int toId, String content) {
+        Msg msg = new Msg();
+        msg.setAction(MsgAction.GKP);
+        msg.setContent(content);
+        msg.setSrcId(node.getId());
+        msg.setFromId(node.getId());
+        msg.setToId(toId);
+        msg.setRound(-1);
+        msg.setComponentLevel(node.getComponentLevel());
+        msg.setEpoch(node.getEpoch());
+        msg.setSession(node.getSession());
         return msg;
     }
 }
@@ -1,9 +1,14 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MsgService {
     HashMap<Integer, MsgChannel> channels = new HashMap<>();
@@ -14,6 +19,20 @@ public class MsgService {
 
     private List<MsgEventListener> listeners;
 
+    // session 0 goes to the listeners above, other sessions to their own listener
+    private HashMap<Integer, MsgEventListener> sessionListeners = new HashMap<>();
+    private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Msg>> pendingSessionMsgs = new ConcurrentHashMap<>();
+    private Set<Integer> closedSessions = ConcurrentHashMap.newKeySet();
+
+    private FailureDetector failureDetector;
+    private volatile LatencyProbe latencyProbe;
+    private Journal journal;
+
+    private AtomicLong sentMsgNo = new AtomicLong();
+    private AtomicLong sentBytes = new AtomicLong();
+    private AtomicLong receivedMsgNo = new AtomicLong();
+    private AtomicLong receivedBytes = new AtomicLong();
+
     public MsgService(Node node) {
         nodeInfo = node;
     }
@@ -32,12 +51,25 @@ public class MsgService {
     public void startServer() throws Exception {
         String host = nodeInfo.getHost();
         int port = nodeInfo.getPort();
-        serverSocket = new ServerSocket(port);
+        FlushPolicy policy = nodeInfo.getFlushPolicy();
+        serverSocket = new ServerSocket();
+        if (policy.getReceiveBuffer() > 0) {
+            // set before bind so larger windows can be negotiated
+            serverSocket.setReceiveBufferSize(policy.getReceiveBuffer());
+        }
+        serverSocket.bind(new InetSocketAddress(port));
 
         for (Node node : nodeInfo.getNeighbors().values()) {
-            MsgChannel ch = new MsgChannel(node.getId(), node.getHost(), node.getPort());
+            MsgChannel ch = new MsgChannel(node.getId(), node.getHost(), node.getPort(), policy, this);
+            if (nodeInfo.getCompressMin() >= 0) {
+                ch.setEncoder(new ChannelCodec(nodeInfo.getCompressMin()));
+            }
             channels.put(node.getId(), ch);
         }
+        if (!policy.isPerMessage() && !policy.isQueued()) {
+            // queued channels flush on their writer threads
+            startFlusher(policy.getMaxDelay());
+        }
 
         (new Thread() {
             @Override
@@ -61,13 +93,11 @@ public class MsgService {
         while (count < channels.size()) {
 
             Socket socket = serverSocket.accept();
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String inputLine = in.readLine();
-            //Logger.Debug(inputLine);
-            Msg msg = new Msg(inputLine);
+            FrameReader in = new FrameReader(socket.getInputStream());
+            MsgView view = in.read();
 
-            if (msg.getAction().equals(MsgAction.CONNECT)) {
-                MsgChannel ch = channels.getOrDefault(msg.getSrcId(), null);
+            if (view != null && view.getAction().equals(MsgAction.CONNECT)) {
+                MsgChannel ch = channels.getOrDefault(view.getSrcId(), null);
                 if (ch != null && !ch.hasInChannel()) {
                     ch.assignInChannel(socket, in);
                     count++;
@@ -97,6 +127,36 @@ public class MsgService {
         outChannelsReady = true;
     }
 
+    // writes out what the round and batch policies held back for longer than delay ms
+    private void startFlusher(long delay) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(Math.max(1, delay));
+                    long now = System.currentTimeMillis();
+                    for (MsgChannel ch : channels.values()) {
+                        if (ch.hasOutChannel() && !ch.isFailed()) {
+                            ch.flushOlderThan(now, delay);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Logger.Debug("Flusher stopped.");
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // called when the node ends a round, the round policy sends the round's messages now
+    public void flush() {
+        for (MsgChannel ch : channels.values()) {
+            if (ch.hasOutChannel() && !ch.isFailed()) {
+                ch.flush();
+            }
+        }
+    }
+
     public void registerEventListenser(MsgEventListener listener) {
         if (listeners == null) {
             listeners = new ArrayList<>();
@@ -104,6 +164,30 @@ public class MsgService {
         listeners.add(listener);
     }
 
+    /*
+     * A neighbor may start a session before this node has opened it, those messages are kept
+     * until the session registers and are then delivered in arrival order.
+     */
+    public void registerSession(int session, MsgEventListener listener) {
+        synchronized (sessionListeners) {
+            sessionListeners.put(session, listener);
+            ConcurrentLinkedQueue<Msg> pending = pendingSessionMsgs.remove(session);
+            if (pending != null) {
+                for (Msg msg : pending) {
+                    listener.onReceiveMsg(msg);
+                }
+            }
+        }
+    }
+
+    public void unregisterSession(int session) {
+        synchronized (sessionListeners) {
+            closedSessions.add(session);
+            sessionListeners.remove(session);
+            pendingSessionMsgs.remove(session);
+        }
+    }
+
     public void listenToChannels() {
         for (MsgChannel ch : channels.values()) {
             if (!ch.isConnecting())
@@ -111,29 +195,105 @@ public class MsgService {
             (new Thread() {
                 @Override
                 public void run() {
-                    try (BufferedReader in = ch.getInChannel()) {
+                    try (FrameReader in = ch.getInChannel()) {
                         while (ch.isConnecting()) {
-                            String inputLine;
-                            while ((inputLine = ch.getInChannel().readLine()) != null) {
-                                Msg msg = new Msg(inputLine);
-                                Logger.Debug(String.format("[RECEIVED] %s | s: %d, f: %d, t: %d, r: %d, cl: %d, c: %s",
-                                        msg.getAction(), msg.getSrcId(), msg.getFromId(), msg.getToId(), msg.getRound(),
-                                        msg.getComponentLevel(), msg.getContent()));
-                                onReceiveMsg(msg);
+                            MsgView view;
+                            while ((view = in.read()) != null) {
+                                int bytes = in.getWireLength() + 1;
+                                receivedMsgNo.incrementAndGet();
+                                receivedBytes.addAndGet(bytes);
+                                String action = view.getAction();
+                                ch.touch();
+                                nodeInfo.getMetrics().onReceive(action, ch, bytes);
+                                if (nodeInfo.getTracer().isEnabled()) {
+                                    nodeInfo.getTracer().receive(view.toMsg());
+                                }
+                                if (action.equals(MsgAction.HEARTBEAT)) {
+                                    continue;
+                                }
+                                if (action.equals(MsgAction.RTT)) {
+                                    if (latencyProbe != null) {
+                                        latencyProbe.process(ch, view.toMsg());
+                                    }
+                                    continue;
+                                }
+                                if (journal != null) {
+                                    journal.record(view, nodeInfo.getPhaseNo(), nodeInfo.getRound(), nodeInfo.getComponentLevel());
+                                }
+                                if (Logger.isDebugging()) {
+                                    Logger.Debug("[RECEIVED] %s | s: %d, f: %d, t: %d, r: %d, cl: %d, c: %s", action,
+                                            view.getSrcId(), view.getFromId(), view.getToId(), view.getRound(),
+                                            view.getComponentLevel(), view.getContent());
+                                }
+                                onReceiveFrame(view);
+                            }
+                            if (ch.isConnecting()) {
+                                fail(ch.getNodeId(), "channel closed");
                             }
                         }
                         ch.shutdownInChannel();
                     } catch (IOException e) {
-                        StringWriter sw = new StringWriter();
-                        PrintWriter pw = new PrintWriter(sw);
-                        e.printStackTrace(pw);
-                        Logger.Error(sw.toString());
+                        // closing a failed channel ends its reader with an exception as well
+                        if (!ch.isFailed()) {
+                            fail(ch.getNodeId(), e.getMessage());
+                        }
                     }
                 }
             }).start();
         }
     }
 
+    public void setJournal(Journal j) {
+        journal = j;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    // hands a journaled frame to the node as if it had arrived on a channel
+    public void replay(MsgView view) {
+        receivedMsgNo.incrementAndGet();
+        receivedBytes.addAndGet(view.getLength() + 1);
+        // counted like a received frame, a replay has no channels so only the per-action counts move
+        nodeInfo.getMetrics().onReceive(view.getAction(), channels.get(view.getFromId()), view.getLength() + 1);
+        if (nodeInfo.getTracer().isEnabled()) {
+            nodeInfo.getTracer().receive(view.toMsg());
+        }
+        onReceiveFrame(view);
+    }
+
+    public void setLatencyProbe(LatencyProbe probe) {
+        latencyProbe = probe;
+    }
+
+    public LatencyProbe getLatencyProbe() {
+        return latencyProbe;
+    }
+
+    public void setFailureDetector(FailureDetector detector) {
+        failureDetector = detector;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    /*
+     * Declares a neighbor failed, at most once per channel. Messages to it are dropped from now
+     * on. Without a failure detector the channel is only closed, recovery needs its timeouts.
+     */
+    public void fail(int targetId, String reason) {
+        MsgChannel ch = channels.get(targetId);
+        if (ch == null || !ch.markFailed()) {
+            return;
+        }
+        Logger.Info("[FAILURE] Neighbor %d failed: %s", targetId, reason);
+        if (failureDetector != null) {
+            nodeInfo.neighborFailed(targetId);
+        }
+    }
+
     public void disconnect(int targetId) throws IOException {
         if (!channels.containsKey(targetId))
             return;
@@ -141,20 +301,75 @@ public class MsgService {
         channels.get(targetId).disconnect();
     }
 
-    private void onReceiveMsg(Msg msg) {
+    /*
+     * Frames are handed over as a view into the reader's buffer, only a session that is not open
+     * yet needs its own copy.
+     */
+    private void onReceiveFrame(MsgView view) {
+        int session = view.getSession();
+        if (session != 0) {
+            MsgEventListener listener;
+            synchronized (sessionListeners) {
+                if (closedSessions.contains(session))
+                    return;
+                listener = sessionListeners.get(session);
+                if (listener == null) {
+                    pendingSessionMsgs.computeIfAbsent(session, k -> new ConcurrentLinkedQueue<>()).add(view.toMsg());
+                    return;
+                }
+            }
+            listener.onReceiveFrame(view);
+            return;
+        }
+
         if (listeners.isEmpty())
             return;
 
         for (MsgEventListener listener : listeners) {
-            listener.onReceiveMsg(msg);
+            listener.onReceiveFrame(view);
         }
     }
 
     public void sendMsg(Msg msg) {
-        Logger.Debug(
-                String.format("[SEND] %s | s: %d, f: %d, t: %d, r: %d, cl: %d, c: %s", msg.getAction(), msg.getSrcId(),
-                        msg.getFromId(), msg.getToId(), msg.getRound(), msg.getComponentLevel(), msg.getContent()));
+        if (Logger.isDebugging()) {
+            Logger.Debug("[SEND] %s | s: %d, f: %d, t: %d, r: %d, cl: %d, c: %s", msg.getAction(), msg.getSrcId(),
+                    msg.getFromId(), msg.getToId(), msg.getRound(), msg.getComponentLevel(), msg.getContent());
+        }
         MsgChannel ch = channels.get(msg.getToId());
-        ch.getOutChannel().println(msg.toString());
+        if (ch == null || ch.isFailed()) {
+            return;
+        }
+        int bytes = ch.write(msg.toString(), msg.getRound());
+        if (bytes < 0) {
+            // the neighbor has not read this many lines, it is taken as gone
+            fail(ch.getNodeId(), String.format("send queue over %d lines", nodeInfo.getFlushPolicy().getQueueCap()));
+            return;
+        }
+        sentMsgNo.incrementAndGet();
+        sentBytes.addAndGet(bytes);
+        nodeInfo.getMetrics().onSend(msg.getAction(), ch, bytes);
+        nodeInfo.getTracer().send(msg);
+    }
+
+    // a queued line is counted here once its writer thread wrote it
+    void addSentBytes(MsgChannel ch, int bytes) {
+        sentBytes.addAndGet(bytes);
+        ch.addSentBytes(bytes);
+    }
+
+    public long getSentMsgNo() {
+        return sentMsgNo.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getReceivedMsgNo() {
+        return receivedMsgNo.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
     }
 }
@@ -1,10 +1,8 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-enum NodeState {
-    STARTPHASE, IDLE, SEARCH, TEST, CONVERGE, MERGE, JOIN, ENDPHASE, TERMINATE
-}
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Node {
     private int N;
@@ -12,13 +10,44 @@ public class Node {
     private String host;
     private int port;
     private HashMap<Integer, Node> neighbors = new HashMap<>();
+    private HashMap<Integer, Integer> weights = new HashMap<>();
     private PriorityQueue<Edge> edges = new PriorityQueue<>();
 
     private MsgService msgService;
-    private ConcurrentLinkedQueue<Msg> bufferedMsg = new ConcurrentLinkedQueue<>();
+    private Metrics metrics;
+    private Tracer tracer = Tracer.DISABLED;
+    private FlushPolicy flushPolicy = FlushPolicy.perMessage();
+    private Journal journal;
+    // contents of at least this many bytes are deflated, -1 sends frames as they are
+    private int compressMin = -1;
+    private Dissemination dissemination = new Dissemination(this);
+    // unicast over the MST, null unless -route
+    private Routing routing;
+    private Restore restore;
+    private IncrementalMST incrementalMST = new IncrementalMST(this);
+    private String checkpointDir;
+    private long topologyHash;
+    private MsgInbox bufferedMsg = new MsgInbox();
+
+    // session 0 owns the connections, every other session is a Node sharing them
+    private int session;
+    private HashMap<Integer, Node> sessions = new HashMap<>();
+    private Node owner;
+    private volatile boolean closed = false;
 
     private NodeState nodeState;
     private int round;
+    // round resets since the node started, (phaseNo, round) never goes back
+    private volatile int phaseNo;
+    private int totalRounds;
+    private volatile int epoch;
+    private int highestRunEpoch;
+    private LinkedBlockingQueue<Msg> runCommands = new LinkedBlockingQueue<>();
+    // bumped by every processed message, round and run command; the synchronizer setup waits on
+    // it instead of spinning, at most PROGRESS_WAIT_MS in case a change is not signalled
+    private static final long PROGRESS_WAIT_MS = 100;
+    private final Object progressLock = new Object();
+    private long progress;
     private int processedMsgNo;
 
     private int componentId;
@@ -28,13 +57,28 @@ public class Node {
     private HashMap<Integer, Node> treeNeighbors = new HashMap<>();
     private List<Edge> newTreeEdges = new LinkedList<>();
     private HashMap<Integer, Node> newTreeNeighbors = new HashMap<>();
+    // non-tree neighbors seen in the own component, they stay inside it and get no TEST or JOIN again
+    private Set<Integer> internalNeighbors = new HashSet<>();
+    // testers answered ACCEPT in this level and the ones whose JOIN or EMPTY came, see mergeMWOE
+    private Set<Integer> joinExpected = new HashSet<>();
+    private Set<Integer> joinReceived = new HashSet<>();
+    private int joinedLevel;
+    private boolean localLate;
     private Edge MWOE;
     private Edge localMWOE;
     private int childrenMsgNo;
-    private int joinMsgNo;
     private int componentLevel;
     private Node parent;
     private boolean hasGlobalMWOE;
+    private int treeEpoch = -1;
+
+    // the JOIN round of each level, beta and gamma reuse the MST of the previous run
+    private String syncMode = "alpha";
+    private int clusterDepth = 2;
+    private Synchronizer synchronizer;
+    // ghs runs the levels above, gkp the fragment growth and pipeline of GkpMST
+    private String mstEngine = "ghs";
+    private GkpMST gkp;
 
     public Node(int id, String host, int port) {
         this.id = id;
@@ -44,7 +88,10 @@ public class Node {
 
     public void startMsgService() throws Exception {
         MsgFactory.setLocalNodeId(id);
+        metrics = new Metrics(this);
+        metrics.register();
         msgService = new MsgService(this);
+        msgService.setJournal(journal);
         msgService.startServer();
         Logger.Info("Msg Service started......");
 
@@ -74,6 +121,15 @@ public class Node {
         Logger.Info("Ready for messaging....");
     }
 
+    // no sockets, messages come from a journal through MsgService.replay
+    public void startReplay() {
+        MsgFactory.setLocalNodeId(id);
+        metrics = new Metrics(this);
+        msgService = new MsgService(this);
+        checkBuffer();
+        waitForMessage();
+    }
+
     public void connectNeighbors() throws IOException {
         msgService.startOutChannels();
     }
@@ -88,23 +144,25 @@ public class Node {
             public void onReceiveMsg(Msg msg) {
                 processMsg(msg);
             }
+
+            @Override
+            public void onReceiveFrame(MsgView view) {
+                processFrame(view);
+            }
         });
         msgService.listenToChannels();
     }
 
     public void checkBuffer() {
         Runnable task = () -> {
-            while (true) {
-                while (!bufferedMsg.isEmpty()) {
-                    synchronized (bufferedMsg) {
-                        for (Msg m : bufferedMsg) {
-                            if (this.getComponentLevel() == m.getComponentLevel()
-                                && (this.round == m.getRound() || m.getRound() == -1)) {
-                                    processMsg(m);
-                                    bufferedMsg.remove(m);
-                                    break;
-                                }
-                        }
+            MsgView view = new MsgView();
+            while (!closed) {
+                while (!closed && !bufferedMsg.isEmpty()) {
+                    int level = getComponentLevel();
+                    int n = bufferedMsg.drain(getEpoch(), MsgInbox.key(level, round), MsgInbox.key(level, -1),
+                            view, v -> processMsg(v.toMsg()));
+                    for (int i = 0; i < n; i++) {
+                        metrics.onUnbuffer();
                     }
                 }
             }
@@ -113,26 +171,111 @@ public class Node {
     }
 
     public void addMsgToBuffer(Msg msg) {
-        synchronized (bufferedMsg) {
-            bufferedMsg.add(msg);
+        tracer.buffer(msg);
+        byte[] frame = msg.toString().getBytes(StandardCharsets.UTF_8);
+        bufferedMsg.add(msg.getEpoch(), MsgInbox.key(msg.getComponentLevel(), msg.getRound()), ByteBuffer.wrap(frame), 0,
+                frame.length);
+        metrics.onBuffer();
+    }
+
+    private void addFrameToBuffer(MsgView view) {
+        if (tracer.isEnabled()) {
+            tracer.buffer(view.toMsg());
         }
+        bufferedMsg.add(view.getEpoch(), MsgInbox.key(view.getComponentLevel(), view.getRound()), view.getBuffer(),
+                view.getOffset(), view.getLength());
+        metrics.onBuffer();
+    }
+
+    // messages of a later epoch, level or round wait in the buffer, the others are handled before the level
+    private boolean isDeferred(String action, int epoch, int level, int round) {
+        if (epoch > this.getEpoch()) {
+            return true;
+        }
+        if (action.equals(MsgAction.DISSEMINATE) || action.equals(MsgAction.UPDATE) || action.equals(MsgAction.SYNC)
+                || action.equals(MsgAction.RESTORE) || action.equals(MsgAction.GKP) || action.equals(MsgAction.ROUTE)) {
+            return false;
+        }
+        return level > this.getComponentLevel() || (round != this.round && round != -1);
+    }
+
+    /*
+     * Gates a received frame on its header. Frames that wait are copied into the buffer as they
+     * are, only a frame processed now becomes a Msg.
+     */
+    private void processFrame(MsgView view) {
+        String action = view.getAction();
+        if (!action.equals(MsgAction.RUN) && !action.equals(MsgAction.DISCONNECT)) {
+            int e = view.getEpoch();
+            if (e < this.getEpoch()) {
+                return;
+            }
+            if (isDeferred(action, e, view.getComponentLevel(), view.getRound())) {
+                addFrameToBuffer(view);
+                return;
+            }
+        }
+        processMsg(view.toMsg());
     }
 
     private void processMsg(Msg msg) {
         try {
-            if (msg.getComponentLevel() > this.getComponentLevel()) {
-                addMsgToBuffer(msg);
+            processAction(msg);
+        } finally {
+            signalProgress();
+        }
+    }
+
+    private void processAction(Msg msg) {
+        try {
+            if (msg.getAction().equals(MsgAction.RUN)) {
+                processRunMsg(msg);
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.DISCONNECT)) {
+                msgService.disconnect(msg.getFromId());
+                return;
+            }
+            if (msg.getEpoch() < this.getEpoch()) {
                 return;
             }
-            if (msg.getRound() != this.round && msg.getRound() != -1) {
+            if (isDeferred(msg.getAction(), msg.getEpoch(), msg.getComponentLevel(), msg.getRound())) {
                 addMsgToBuffer(msg);
                 return;
             }
+            if (msg.getAction().equals(MsgAction.DISSEMINATE)) {
+                dissemination.process(msg);
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.ROUTE)) {
+                if (routing != null) {
+                    routing.process(msg);
+                }
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.UPDATE)) {
+                incrementalMST.process(msg);
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.SYNC)) {
+                getSynchronizer().process(msg);
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.GKP)) {
+                getGkp().process(msg);
+                return;
+            }
+            if (msg.getAction().equals(MsgAction.RESTORE)) {
+                if (restore != null) {
+                    restore.process(msg);
+                } else if (!msg.getContent().equals("FAIL")) {
+                    msgService.sendMsg(MsgFactory.restoreMsg(this, msg.getFromId(), "FAIL"));
+                }
+                return;
+            }
 
             Logger.Debug("Processing messege: %s", msg.toString());
-            if (msg.getAction().equals(MsgAction.DISCONNECT)) {
-                msgService.disconnect(msg.getFromId());
-            } else if (msg.getAction().equals(MsgAction.SEARCH)) {
+            if (msg.getAction().equals(MsgAction.SEARCH)) {
                 String content = msg.getContent();
                 if (content.equals("SEARCH")) {
                     int fromId = msg.getFromId();
@@ -143,7 +286,7 @@ public class Node {
             } else if (msg.getAction().equals(MsgAction.TEST)) {
                 int fromId = msg.getFromId();
                 int receivedId = Integer.parseInt(msg.getContent());
-                processTestMsg(fromId, receivedId);
+                processTestMsg(fromId, receivedId, msg.getComponentLevel());
             } else if (msg.getAction().equals(MsgAction.REPLY)) {
                 String content = msg.getContent();
                 processReplyMsg(content);
@@ -170,7 +313,11 @@ public class Node {
                 if (!content.equals("EMPTY")) {
                     processJoinMsg(fromId, content);
                 }
-                updateJoinMsgNo();
+                addJoinReceived(fromId);
+                Synchronizer sync = getSynchronizer();
+                if (!sync.getName().equals("alpha")) {
+                    sync.received(msg, msg.getComponentLevel());
+                }
             } else if (msg.getAction().equals(MsgAction.TERMINATE)) {
                 int fromId = msg.getFromId();
                 int srcId = msg.getSrcId();
@@ -187,6 +334,223 @@ public class Node {
         }
     }
 
+    /*
+     * Opens an independent MST instance over the same connections. overlay restricts the instance
+     * to a subset of the neighbors with its own weights, null keeps all neighbors and their weights.
+     */
+    public synchronized Node openSession(int sessionId, Node overlay) throws Exception {
+        Node s = sessions.get(sessionId);
+        if (s != null) {
+            return s;
+        }
+        if (sessionId == 0) {
+            throw new Exception("Session 0 is reserved.");
+        }
+        s = new Node(id, host, port);
+        s.session = sessionId;
+        s.owner = this;
+        s.N = N;
+        s.msgService = msgService;
+        s.metrics = metrics;
+        s.tracer = tracer;
+        s.syncMode = syncMode;
+        s.clusterDepth = clusterDepth;
+        s.mstEngine = mstEngine;
+        if (routing != null) {
+            s.routing = new Routing(s, routing.getMode());
+        }
+        if (overlay == null) {
+            s.neighbors = neighbors;
+            s.weights = new HashMap<>(weights);
+        } else {
+            for (int nId : overlay.getNeighbors().keySet()) {
+                if (!neighbors.containsKey(nId)) {
+                    throw new Exception(String.format("Session %d: [ %d ] is not a neighbor of %d.", sessionId, nId, id));
+                }
+            }
+            s.neighbors = overlay.getNeighbors();
+            s.weights = overlay.getWeights();
+        }
+        sessions.put(sessionId, s);
+
+        s.checkBuffer();
+        Node target = s;
+        msgService.registerSession(sessionId, new MsgEventListener() {
+            @Override
+            public void onReceiveMsg(Msg msg) {
+                target.processMsg(msg);
+            }
+
+            @Override
+            public void onReceiveFrame(MsgView view) {
+                target.processFrame(view);
+            }
+        });
+        return s;
+    }
+
+    /*
+     * Called once per failed neighbor. A run in progress cannot finish without it and is started
+     * again on the remaining nodes, a finished MST is reconnected around the failed node.
+     */
+    public void neighborFailed(int nId) {
+        List<Node> open;
+        synchronized (this) {
+            open = new ArrayList<>(sessions.values());
+        }
+        for (Node s : open) {
+            s.neighborFailed(nId);
+        }
+        if (!neighbors.containsKey(nId)) {
+            return;
+        }
+        boolean wasTreeNeighbor;
+        synchronized (this) {
+            // copies, other threads may be iterating over the old maps
+            HashMap<Integer, Node> n = new HashMap<>(neighbors);
+            n.remove(nId);
+            neighbors = n;
+            HashMap<Integer, Integer> w = new HashMap<>(weights);
+            w.remove(nId);
+            weights = w;
+            wasTreeNeighbor = treeNeighbors.containsKey(nId);
+            deleteTreeEdge(nId);
+            if (wasTreeNeighbor) {
+                // reconnected or not, only a new MST is known to be the same on all nodes
+                treeEpoch = -1;
+            }
+        }
+        signalProgress();
+
+        if (isRunAborted()) {
+            // the next run is already queued and will not include the failed node
+            return;
+        }
+        if (getNodeState() != NodeState.TERMINATE) {
+            Logger.Info("[FAILURE] Run in progress, starting it again without %d", nId);
+            requestRecoveryRun();
+        } else if (wasTreeNeighbor) {
+            incrementalMST.neighborFailed(nId, msgService.getFailureDetector().getTimeout());
+        }
+    }
+
+    public void requestRecoveryRun() {
+        if (session == 0) {
+            requestRun("MST");
+        } else {
+            owner.requestRun("SESSION " + session + " MST");
+        }
+    }
+
+    // a newer command is waiting, the run in progress is given up
+    public boolean isRunAborted() {
+        for (Msg m : runCommands) {
+            if (!m.getContent().startsWith("SESSION ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void closeSession(int sessionId) {
+        Node s = sessions.remove(sessionId);
+        if (s != null) {
+            msgService.unregisterSession(sessionId);
+            s.closed = true;
+        }
+    }
+
+    public synchronized Node getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    private synchronized void processRunMsg(Msg msg) {
+        if (msg.getEpoch() <= highestRunEpoch) {
+            return;
+        }
+        highestRunEpoch = msg.getEpoch();
+        int from = msg.getFromId();
+        for (int toId : neighbors.keySet()) {
+            if (toId == from) continue;
+            msg.setFromId(id);
+            msg.setToId(toId);
+            msgService.sendMsg(msg);
+        }
+        runCommands.add(msg);
+        signalProgress();
+    }
+
+    public synchronized void requestRun(String command) {
+        Msg run = MsgFactory.runMsg(this, Math.max(highestRunEpoch, getEpoch()) + 1, command);
+        processRunMsg(run);
+    }
+
+    public Msg takeRunCommand() throws InterruptedException {
+        return runCommands.take();
+    }
+
+    public void addRunCommand(Msg msg) {
+        runCommands.add(msg);
+    }
+
+    public void startEpoch(int e) {
+        int dropped = bufferedMsg.releaseBefore(e);
+        for (int i = 0; i < dropped; i++) {
+            metrics.onUnbuffer();
+        }
+        synchronized (this) {
+            this.round = 0;
+            this.phaseNo = this.phaseNo + 1;
+            this.componentLevel = 0;
+            this.processedMsgNo = 0;
+        }
+        this.epoch = e;
+        signalProgress();
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setCheckpoint(String dir, long hash) throws IOException {
+        checkpointDir = dir;
+        topologyHash = hash;
+        restore = new Restore(this, Checkpoint.loadLatest(dir, id, hash));
+    }
+
+    public void setTopologyHash(long hash) {
+        topologyHash = hash;
+    }
+
+    public Restore getRestore() {
+        return restore;
+    }
+
+    public void saveCheckpoint() throws IOException {
+        if (checkpointDir != null) {
+            Checkpoint.capture(this, topologyHash).save(checkpointDir);
+        }
+    }
+
+    public void restoreFrom(Checkpoint cp) {
+        initBuildMST();
+        this.componentId = cp.getComponentId();
+        this.componentLevel = cp.getComponentLevel();
+        this.totalRounds = cp.getTotalRounds();
+        this.isLeader = componentId == id;
+        List<Integer> ids = cp.getTreeNeighborIds();
+        for (int i = 0; i < ids.size(); i++) {
+            treeNeighbors.put(ids.get(i), neighbors.get(ids.get(i)));
+            treeEdges.add(new Edge(id, ids.get(i), cp.getTreeWeights().get(i)));
+        }
+        this.treeEpoch = cp.getEpoch();
+        this.nodeState = NodeState.TERMINATE;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
     private synchronized void processSearchMsg(int fromId, int srcId) {
         if (parent == null && srcId != id) {
             setParent(fromId);
@@ -209,20 +573,16 @@ public class Node {
         this.childrenMsgNo = this.childrenMsgNo + 1;
     }
 
-    private synchronized void updateJoinMsgNo() {
-        this.joinMsgNo = this.joinMsgNo + 1;
-        checkReceivedJoinMsgNo();
-    }
-
-    private synchronized int getJoinMsgNo() {
-        return this.joinMsgNo;
-    }
-
-    private synchronized void processTestMsg(int fromId, int receivedId) {
-        if (receivedId != this.getComponentId()) {
-            sendReplyMsg(fromId, "ACCEPT");
+    private synchronized void processTestMsg(int fromId, int receivedId, int level) {
+        if (receivedId == this.getComponentId()) {
+            addInternalNeighbor(fromId);
+            sendReplyMsg(fromId, "REJECT", level);
+        } else if (level <= joinedLevel) {
+            // the JOINs of that level are taken, the tester's fragment tries the edge again next level
+            sendReplyMsg(fromId, "LATE", level);
         } else {
-            sendReplyMsg(fromId, "REJECT");
+            joinExpected.add(fromId);
+            sendReplyMsg(fromId, "ACCEPT", level);
         }
     }
 
@@ -232,7 +592,12 @@ public class Node {
             setMWOE(mwoe);
             this.localMWOE = mwoe;
         } else if (content.equals("REJECT")) {
+            addInternalNeighbor(mwoe.endpoint1 + mwoe.endpoint2 - id);
             setNodeState(NodeState.TEST);
+        } else if (content.equals("LATE")) {
+            setMWOE(mwoe);
+            this.localMWOE = mwoe;
+            this.localLate = true;
         }
     }
 
@@ -293,10 +658,31 @@ public class Node {
         }
     }
 
-    private synchronized void checkReceivedJoinMsgNo() {
-        if (this.joinMsgNo == this.neighbors.size() - this.treeNeighbors.size()) {
-            setNodeState(NodeState.ENDPHASE);
+    private synchronized void addInternalNeighbor(int nId) {
+        internalNeighbors.add(nId);
+    }
+
+    private synchronized boolean isInternalNeighbor(int nId) {
+        return internalNeighbors.contains(nId);
+    }
+
+    private synchronized void addJoinReceived(int nId) {
+        joinReceived.add(nId);
+    }
+
+    // every tester answered ACCEPT in this level sent its JOIN or EMPTY, later tests of it are LATE
+    private synchronized boolean isJoinDone(int level) {
+        if (!joinReceived.containsAll(joinExpected)) {
+            return false;
         }
+        endJoin(level);
+        return true;
+    }
+
+    private synchronized void endJoin(int level) {
+        joinedLevel = level;
+        joinExpected.clear();
+        joinReceived.clear();
     }
 
     public synchronized void updateTreeNeighbors(int id, Edge edge) {
@@ -317,6 +703,50 @@ public class Node {
         this.N = n;
     }
 
+    public int getN() {
+        return N;
+    }
+
+    public MsgService getMsgService() {
+        return msgService;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy p) {
+        flushPolicy = p;
+    }
+
+    public void setJournal(Journal j) {
+        journal = j;
+    }
+
+    public int getCompressMin() {
+        return compressMin;
+    }
+
+    public void setCompressMin(int n) {
+        compressMin = n;
+    }
+
+    public int getPhaseNo() {
+        return phaseNo;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public void setTracer(Tracer t) {
+        tracer = t;
+    }
+
     public int getId() {
         return id;
     }
@@ -339,15 +769,113 @@ public class Node {
 
     public void addNeighbor(int id, String host, int port, int weight) {
         this.neighbors.put(id, new Node(id, host, port));
+        this.weights.put(id, weight);
         this.edges.offer(new Edge(this.id, id, weight));
     }
 
+    public HashMap<Integer, Integer> getWeights() {
+        return weights;
+    }
+
+    public void updateWeights(HashMap<Integer, Integer> w) {
+        for (int nId : w.keySet()) {
+            if (neighbors.containsKey(nId)) {
+                weights.put(nId, w.get(nId));
+            }
+        }
+    }
+
     public int getRound() {
         return round;
     }
 
     public void updateRound() {
+        // the round's messages are all sent by now
+        msgService.flush();
         this.round = this.round + 1;
+        this.totalRounds = this.totalRounds + 1;
+        metrics.onRoundAdvance();
+        tracer.round(this.round, this.componentLevel);
+        signalProgress();
+    }
+
+    public long getProgress() {
+        synchronized (progressLock) {
+            return progress;
+        }
+    }
+
+    public void signalProgress() {
+        synchronized (progressLock) {
+            progress++;
+            progressLock.notifyAll();
+        }
+    }
+
+    // blocks until something happened since seen was read
+    public void awaitProgress(long seen) throws InterruptedException {
+        synchronized (progressLock) {
+            if (progress == seen) {
+                progressLock.wait(PROGRESS_WAIT_MS);
+            }
+        }
+    }
+
+    public void setSync(String mode, int depth) throws Exception {
+        if (!mode.equals("alpha") && !mode.equals("beta") && !mode.equals("gamma")) {
+            throw new Exception(String.format("Unknown synchronizer: %s", mode));
+        }
+        syncMode = mode;
+        clusterDepth = depth;
+    }
+
+    /*
+     * One synchronizer per epoch. It is made on first use, by buildMST or by a SYNC message of a
+     * faster neighbor, both before this run clears the previous MST. The first run has no MST
+     * anywhere and always uses alpha.
+     */
+    public synchronized Synchronizer getSynchronizer() {
+        if (synchronizer == null || synchronizer.getEpoch() != getEpoch()) {
+            if (getEpoch() == 0 || syncMode.equals("alpha")) {
+                synchronizer = new AlphaSynchronizer(this);
+            } else if (syncMode.equals("beta")) {
+                synchronizer = new BetaSynchronizer(this);
+            } else {
+                synchronizer = new GammaSynchronizer(this, clusterDepth);
+            }
+        }
+        return synchronizer;
+    }
+
+    public void setMstEngine(String engine) throws Exception {
+        if (!engine.equals("ghs") && !engine.equals("gkp")) {
+            throw new Exception(String.format("Unknown MST engine: %s", engine));
+        }
+        mstEngine = engine;
+    }
+
+    public String getMstEngine() {
+        return mstEngine;
+    }
+
+    // one per epoch like the synchronizer, messages of faster neighbors may make it first
+    public synchronized GkpMST getGkp() {
+        if (gkp == null || gkp.getEpoch() != getEpoch()) {
+            gkp = new GkpMST(this);
+        }
+        return gkp;
+    }
+
+    public int getTreeEpoch() {
+        return treeEpoch;
+    }
+
+    public void setTreeEpoch(int e) {
+        treeEpoch = e;
+    }
+
+    public int getTotalRounds() {
+        return totalRounds;
     }
 
     public synchronized NodeState getNodeState() {
@@ -356,6 +884,7 @@ public class Node {
 
     public synchronized void setNodeState(NodeState s) {
         Logger.Info("Round %s : %s ----> %s", getRound(), this.nodeState, s);
+        tracer.state(Tracer.NODE_STATE, getRound(), this.nodeState, s);
         this.nodeState = s;
     }
 
@@ -396,6 +925,47 @@ public class Node {
         return this.treeNeighbors;
     }
 
+    public synchronized List<Integer> getTreeNeighborIds() {
+        return new ArrayList<>(this.treeNeighbors.keySet());
+    }
+
+    public synchronized void setEdgeWeight(int nId, int w) {
+        weights.put(nId, w);
+        for (Edge e : treeEdges) {
+            if (e.endpoint1 == nId || e.endpoint2 == nId) {
+                e.weight = w;
+            }
+        }
+    }
+
+    public synchronized void insertTreeEdge(int nId) {
+        if (!treeNeighbors.containsKey(nId)) {
+            treeNeighbors.put(nId, neighbors.get(nId));
+            treeEdges.add(new Edge(id, nId, weights.get(nId)));
+        }
+    }
+
+    public synchronized void deleteTreeEdge(int nId) {
+        treeNeighbors.remove(nId);
+        treeEdges.removeIf(e -> e.endpoint1 == nId || e.endpoint2 == nId);
+    }
+
+    public IncrementalMST getIncrementalMST() {
+        return incrementalMST;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String mode) throws Exception {
+        routing = new Routing(this, mode);
+    }
+
+    public Dissemination getDissemination() {
+        return dissemination;
+    }
+
     public void addTreeNeighbors(int id) {
         Node treeNeighbor = neighbors.get(id);
         this.treeNeighbors.put(id, treeNeighbor);
@@ -419,9 +989,26 @@ public class Node {
     }
 
     public void initBuildMST() {
+        this.treeEpoch = -1;
         this.componentId = this.id;
         this.componentLevel = 0;
         this.isLeader = true;
+        this.nodeState = NodeState.STARTPHASE;
+        this.totalRounds = 0;
+        this.treeEdges = new LinkedList<>();
+        this.treeNeighbors = new HashMap<>();
+        this.newTreeEdges = new LinkedList<>();
+        this.newTreeNeighbors = new HashMap<>();
+        this.internalNeighbors = new HashSet<>();
+        synchronized (this) {
+            this.joinExpected.clear();
+            this.joinReceived.clear();
+            this.joinedLevel = 0;
+        }
+        this.edges = new PriorityQueue<>();
+        for (Map.Entry<Integer, Integer> w : weights.entrySet()) {
+            this.edges.offer(new Edge(this.id, w.getKey(), w.getValue()));
+        }
     }
 
     public void searchMWOE() {
@@ -429,7 +1016,7 @@ public class Node {
         checkComponentLeader(NodeState.SEARCH);
 
         int roundMsgNumber = this.treeEdges.size();
-        while (this.round < N) {
+        while (this.round < N && !isRunAborted()) {
             if (this.getProcessedMsgNo() == roundMsgNumber * this.getRound()) {
                 if (this.nodeState == NodeState.SEARCH) {
                     sendSearchMsg("SEARCH");
@@ -443,14 +1030,16 @@ public class Node {
     }
 
     public void initSearchState() {
+        metrics.resetRoundClock();
         this.round = 0;
+        this.phaseNo = this.phaseNo + 1;
         this.parent = null;
         this.setNodeState(NodeState.STARTPHASE);
         this.hasGlobalMWOE = false;
         this.MWOE = null;
         this.localMWOE = null;
+        this.localLate = false;
         this.processedMsgNo = 0;
-        this.joinMsgNo = 0;
     }
 
     public void checkComponentLeader(NodeState ns) {
@@ -463,10 +1052,14 @@ public class Node {
         if (this.nodeState == NodeState.TERMINATE) return;
         initTestState();
 
-        while (!this.edges.isEmpty() && MWOE == null) {
+        while (!this.edges.isEmpty() && MWOE == null && !isRunAborted()) {
             if (getNodeState() == NodeState.TEST) {
                 if (this.edges.isEmpty()) break;
                 Edge mwoe = edges.peek();
+                if (isInternalNeighbor(mwoe.endpoint1 + mwoe.endpoint2 - id)) {
+                    edges.poll();
+                    continue;
+                }
                 setNodeState(NodeState.IDLE);
                 sendTestMsg(mwoe);
             }
@@ -483,7 +1076,7 @@ public class Node {
 
         int roundMsgNumber = this.treeNeighbors.size() + (componentId == id ? 0 : -1);
         int prevMsg = this.treeEdges.size() * N;
-        while (this.round < N * 2) {
+        while (this.round < N * 2 && !isRunAborted()) {
             if (this.getProcessedMsgNo() == prevMsg + roundMsgNumber * (this.round - N)) {
                 if (this.nodeState == NodeState.CONVERGE) {
                     sendConvergeMsg("CONVERGE");
@@ -497,6 +1090,7 @@ public class Node {
     }
 
     public void initConvergeState() {
+        metrics.resetRoundClock();
         this.childrenMsgNo = 0;
     }
 
@@ -516,7 +1110,7 @@ public class Node {
 
         int roundMsgNumber = this.treeEdges.size();
         int prevMsg = (this.treeEdges.size() + this.treeNeighbors.size() + (componentId == id ? 0 : -1)) * N;
-        while (this.round < N * 3) {
+        while (this.round < N * 3 && !isRunAborted()) {
             if (this.getProcessedMsgNo() == prevMsg + roundMsgNumber * (round - N * 2)) {
                 if (this.nodeState == NodeState.TERMINATE) {
                     sendTerminationMsg();
@@ -547,33 +1141,58 @@ public class Node {
         return false;
     }
 
+    /*
+     * A single JOIN round per level. Under alpha it is not padded: every node whose TEST was
+     * answered ACCEPT sends one message back over that edge, JOIN if it is the fragment's MWOE and
+     * EMPTY otherwise, and a node waits for the testers it accepted only. A fragment may so run
+     * ahead of a slower neighbor, a TEST of a level whose JOINs are taken is answered LATE and
+     * the tester's fragment, if that edge is its MWOE, joins nothing this level and tries again
+     * in the next. A fragment ahead waits in its own tests for the slower one to catch up, so
+     * the cost per level is the TEST/REPLY traffic plus at most one message per node. Beta and
+     * gamma synchronize the round and acknowledge the real JOINs only.
+     */
     public void mergeMWOE() {
         initJoinState();
         updateEdges();
 
-        int roundMsgNumber = this.neighbors.size() - this.treeNeighbors.size();
-        while (getNodeState() != NodeState.ENDPHASE) {
-            if (this.processedMsgNo == (this.treeEdges.size() * 2 + this.treeNeighbors.size() + (componentId == id ? 0 : -1)) * N
-                && this.getJoinMsgNo() == (this.round - N * 3) * roundMsgNumber) {
-                if (roundMsgNumber == 0) setNodeState(NodeState.ENDPHASE);
-                if (getNodeState() != NodeState.ENDPHASE) {
-                    sendJoinMsg();
+        Synchronizer sync = getSynchronizer();
+        int level = getComponentLevel();
+        int prevMsg = (this.treeEdges.size() * 2 + this.treeNeighbors.size() + (componentId == id ? 0 : -1)) * N;
+        while (this.getProcessedMsgNo() != prevMsg && !isRunAborted()) {
+        }
+        if (sync.getName().equals("alpha")) {
+            sendJoinMsg();
+            updateRound();
+            while (!isJoinDone(level) && !isRunAborted()) {
+            }
+        } else {
+            List<Integer> peers = new ArrayList<>();
+            for (int nId : neighbors.keySet()) {
+                if (!treeNeighbors.containsKey(nId) && !isInternalNeighbor(nId)) {
+                    peers.add(nId);
                 }
-                updateRound();
             }
+            sendJoinMsg(sync);
+            sync.endRound(level, peers, MsgFactory.joinMsg(this, -1, "EMPTY"));
+            updateRound();
+            while (!sync.isRoundDone(level) && !isRunAborted()) {
+            }
+            endJoin(level);
         }
+        setNodeState(NodeState.ENDPHASE);
 
         updateTree();
     }
 
     private void initJoinState() {
+        metrics.resetRoundClock();
         this.setNodeState(NodeState.JOIN);
         this.isLeader = false;
     }
 
     private void updateEdges() {
         int res = compare(this.MWOE, this.localMWOE);
-        if (this.localMWOE != null && res != 0) {
+        if (this.localMWOE != null && (res != 0 || localLate)) {
             this.edges.add(this.localMWOE);
         }
     }
@@ -614,12 +1233,14 @@ public class Node {
 
     public void sendTestMsg(Edge edge) {
         int toId = edge.endpoint1 + edge.endpoint2 - this.id;
-        Msg test = MsgFactory.testMsg(toId, componentId + "", this.componentLevel);
+        Msg test = MsgFactory.testMsg(this, toId, componentId + "");
         msgService.sendMsg(test);
     }
 
-    public void sendReplyMsg(int toId, String content) {
-        Msg reply = MsgFactory.replyMsg(toId, content, this.componentLevel);
+    // the reply carries the level of the test, the tester may be behind
+    public void sendReplyMsg(int toId, String content, int level) {
+        Msg reply = MsgFactory.replyMsg(this, toId, content);
+        reply.setComponentLevel(level);
         msgService.sendMsg(reply);
     }
 
@@ -652,25 +1273,41 @@ public class Node {
     }
 
     private void sendJoinMsg() {
-        Msg join;
-        for (int toId : neighbors.keySet()) {
-            if (treeNeighbors.containsKey(toId))
-                continue;
-            if (hasGlobalMWOE && toId == MWOE.endpoint1 + MWOE.endpoint2 - id) {
-                join = MsgFactory.joinMsg(this, toId, MWOE.toString());
-                updateTreeNeighbors(toId, MWOE);
-            } else {
-                join = MsgFactory.joinMsg(this, toId, "EMPTY");
+        if (localMWOE == null) {
+            return;
+        }
+        if (localLate) {
+            if (hasGlobalMWOE) {
+                // the fragment stays as it is, this node leads it into the next level
+                Logger.Info("MWOE %s is late, joining again next level", MWOE);
+                setNewComponentId(id);
             }
-            msgService.sendMsg(join);
+            return;
+        }
+        int toId = localMWOE.endpoint1 + localMWOE.endpoint2 - id;
+        if (!hasGlobalMWOE) {
+            msgService.sendMsg(MsgFactory.joinMsg(this, toId, "EMPTY"));
+            return;
         }
+        updateTreeNeighbors(toId, MWOE);
+        msgService.sendMsg(MsgFactory.joinMsg(this, toId, MWOE.toString()));
     }
 
-    public void printMsgInBuffer() {
-        synchronized (bufferedMsg) {
-            for (Msg m : bufferedMsg) {
-                Logger.Info("Buffered Msg: %s", m.toString());
-            }
+    private void sendJoinMsg(Synchronizer sync) {
+        if (!hasGlobalMWOE) {
+            return;
+        }
+        int toId = MWOE.endpoint1 + MWOE.endpoint2 - id;
+        if (treeNeighbors.containsKey(toId)) {
+            return;
         }
+        Msg join = MsgFactory.joinMsg(this, toId, MWOE.toString());
+        updateTreeNeighbors(toId, MWOE);
+        msgService.sendMsg(join);
+        sync.sent(join, getComponentLevel());
+    }
+
+    public void printMsgInBuffer() {
+        bufferedMsg.forEach(new MsgView(), v -> Logger.Info("Buffered Msg: %s", v.toString()));
     }
 }
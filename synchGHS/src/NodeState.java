@@ -0,0 +1,3 @@
+public enum NodeState {
+    STARTPHASE, IDLE, SEARCH, TEST, CONVERGE, MERGE, JOIN, ENDPHASE, TERMINATE
+}
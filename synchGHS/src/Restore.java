@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Decides whether every node can load its checkpoint instead of running the algorithm. All nodes
+ * must hold checkpoints with the same key, a node that sees a missing or different one floods
+ * FAIL. Otherwise OKs are collected over the checkpointed tree by saturation: a node reports to
+ * its last unreported tree neighbor once all others reported, and where the reports meet COMMIT
+ * is sent back over the tree. Costs 2|E| + 2(N - 1) messages and O(depth) time.
+ *
+ * RESTORE content: HELLO,<key or NONE> | OK | FAIL | COMMIT
+ */
+public class Restore {
+    private static final String HELLO = "HELLO";
+    private static final String OK = "OK";
+    private static final String FAIL = "FAIL";
+    private static final String COMMIT = "COMMIT";
+
+    private Node node;
+    private Checkpoint checkpoint;
+    private List<Integer> treeNeighbors;
+    private Set<Integer> reported = new HashSet<>();
+    private int helloNo;
+    private boolean started;
+    private boolean sentOk;
+    private volatile Boolean decision;
+
+    public Restore(Node node, Checkpoint checkpoint) {
+        this.node = node;
+        this.checkpoint = checkpoint;
+        this.treeNeighbors = checkpoint == null ? new ArrayList<>() : checkpoint.getTreeNeighborIds();
+    }
+
+    // blocks until all nodes agreed, true if the checkpoint can be used
+    public boolean run() throws InterruptedException {
+        synchronized (this) {
+            started = true;
+            String hello = HELLO + "," + (checkpoint == null ? "NONE" : checkpoint.key());
+            for (int nId : node.getNeighbors().keySet()) {
+                send(nId, hello);
+            }
+            if (checkpoint == null) {
+                fail();
+            } else {
+                check();
+            }
+        }
+        while (decision == null) {
+            Thread.sleep(1);
+        }
+        return decision;
+    }
+
+    public synchronized void process(Msg msg) {
+        String[] t = msg.getContent().split(",", 2);
+        if (t[0].equals(HELLO)) {
+            helloNo++;
+            if (checkpoint == null || !t[1].equals(checkpoint.key())) {
+                fail();
+            } else {
+                check();
+            }
+        } else if (t[0].equals(OK)) {
+            reported.add(msg.getFromId());
+            check();
+        } else if (t[0].equals(FAIL)) {
+            fail();
+        } else if (t[0].equals(COMMIT)) {
+            commit(msg.getFromId());
+        }
+    }
+
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    private void check() {
+        if (!started || decision != null || helloNo < node.getNeighbors().size()) {
+            return;
+        }
+        List<Integer> waiting = new ArrayList<>();
+        for (int nId : treeNeighbors) {
+            if (!reported.contains(nId)) {
+                waiting.add(nId);
+            }
+        }
+        if (waiting.isEmpty()) {
+            commit(-1);
+        } else if (waiting.size() == 1 && !sentOk) {
+            sentOk = true;
+            send(waiting.get(0), OK);
+        }
+    }
+
+    private void fail() {
+        if (decision != null) {
+            return;
+        }
+        decision = false;
+        for (int nId : node.getNeighbors().keySet()) {
+            send(nId, FAIL);
+        }
+    }
+
+    private void commit(int from) {
+        if (decision != null) {
+            return;
+        }
+        decision = true;
+        for (int nId : treeNeighbors) {
+            if (nId != from) {
+                send(nId, COMMIT);
+            }
+        }
+    }
+
+    private void send(int toId, String content) {
+        node.getMsgService().sendMsg(MsgFactory.restoreMsg(node, toId, content));
+    }
+}
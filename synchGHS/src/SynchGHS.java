@@ -1,5 +1,9 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.zip.CRC32;
 
 public class SynchGHS {
 
@@ -7,13 +11,59 @@ public class SynchGHS {
         try {
             String configPath = args.length > 0 ? args[0] : "../config.txt";
             String nodeId = args.length > 1 ? args[1] : "-1";
-            boolean debugMode = args.length > 2 ? args[2].equals("-d") : false;
+            HashMap<String, String> options = parseOptions(args, 2);
+            boolean debugMode = options.containsKey("d");
             Logger.setDebugMode(debugMode);
             Logger.setLocalNodeId(Integer.parseInt(nodeId));
             Logger.Info("Init node......");
 
             Node node = initNode(configPath, nodeId);
+            if (options.containsKey("trace")) {
+                int capacity = Integer.parseInt(options.getOrDefault("traceCapacity", "65536"));
+                node.setTracer(new Tracer(options.get("trace"), node.getId(), capacity));
+            }
+            if (options.containsKey("checkpoint")) {
+                node.setCheckpoint(options.get("checkpoint"), Checkpoint.topologyHash(configPath));
+            }
+            if (options.containsKey("mst")) {
+                node.setMstEngine(options.get("mst"));
+            }
+            if (options.containsKey("route")) {
+                node.setRouting(options.get("route").isEmpty() ? Routing.TREE_MODE : options.get("route"));
+            }
+            if (options.containsKey("sync")) {
+                node.setSync(options.get("sync"), Integer.parseInt(options.getOrDefault("clusterDepth", "2")));
+            }
+            if (options.containsKey("flush") || options.containsKey("sndBuf") || options.containsKey("rcvBuf")
+                    || options.containsKey("noDelay") || options.containsKey("sendQueue")) {
+                node.setFlushPolicy(new FlushPolicy(options.getOrDefault("flush", FlushPolicy.MESSAGE),
+                        Integer.parseInt(options.getOrDefault("flushBytes", "8192")),
+                        Long.parseLong(options.getOrDefault("flushMs", "5")),
+                        !options.getOrDefault("noDelay", "true").equals("false"),
+                        Integer.parseInt(options.getOrDefault("sndBuf", "0")),
+                        Integer.parseInt(options.getOrDefault("rcvBuf", "0")),
+                        !options.containsKey("sendQueue") ? 0 : options.get("sendQueue").isEmpty() ? FlushPolicy.QUEUE_CAP
+                                : Integer.parseInt(options.get("sendQueue"))));
+                Logger.Info("Flush policy: %s", node.getFlushPolicy());
+            }
+            if (options.containsKey("journal")) {
+                node.setJournal(new Journal(options.get("journal"), node.getId()));
+            }
+            if (options.containsKey("compress")) {
+                node.setCompressMin(options.get("compress").isEmpty() ? 64 : Integer.parseInt(options.get("compress")));
+            }
             node.startMsgService();
+            if (options.containsKey("heartbeat")) {
+                long interval = options.get("heartbeat").isEmpty() ? 500 : Long.parseLong(options.get("heartbeat"));
+                long timeout = Long.parseLong(options.getOrDefault("failTimeout", String.valueOf(interval * 6)));
+                new FailureDetector(node.getMsgService(), interval, timeout).start();
+            }
+            if (options.containsKey("rtt")) {
+                long interval = options.get("rtt").isEmpty() ? 1000 : Long.parseLong(options.get("rtt"));
+                new LatencyProbe(node, interval, Integer.parseInt(options.getOrDefault("rttSamples", "10")),
+                        Double.parseDouble(options.getOrDefault("rttMix", "1"))).start();
+            }
+            logDeliveries(node);
 
             StringBuilder tmp = new StringBuilder();
             for (int nId : node.getNeighbors().keySet()) {
@@ -21,7 +71,21 @@ public class SynchGHS {
             }
             Logger.Info("Connecting Node: %s", tmp);
             testMode(node);
-            buildMST(node);
+            measureWeights(node);
+            if (!restore(node) && buildMST(node)) {
+                node.saveCheckpoint();
+            }
+            node.getTracer().close();
+            if (node.getMsgService().getJournal() != null) {
+                node.getMsgService().getJournal().flush();
+            }
+
+            if (options.containsKey("daemon")) {
+                runDaemon(node);
+            } else if (options.containsKey("heartbeat")) {
+                // failures are recovered through new runs
+                runCommands(node);
+            }
         } catch (Exception e) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
@@ -30,6 +94,15 @@ public class SynchGHS {
         }
     }
 
+    public static HashMap<String, String> parseOptions(String[] args, int from) {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String[] kv = args[i].replaceFirst("^-", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        return options;
+    }
+
     public static Node initNode(String configs, String nodeId) throws Exception {
         Node node = null;
         HashMap<String, String> nodes = new HashMap<>();
@@ -87,22 +160,213 @@ public class SynchGHS {
         return line.length() > 0 && (Character.isDigit(line.charAt(0)) || line.charAt(0) == '(');
     }
 
-    public static void buildMST(Node node) {
+    // sessions keep the weights of their overlay config
+    private static void measureWeights(Node node) throws InterruptedException {
+        LatencyProbe probe = node.getMsgService().getLatencyProbe();
+        if (probe != null) {
+            probe.apply(node.getEpoch());
+        }
+    }
+
+    public static boolean restore(Node node) throws InterruptedException {
+        if (node.getRestore() == null) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        boolean restored = node.getRestore().run();
+        if (restored) {
+            node.restoreFrom(node.getRestore().getCheckpoint());
+            Logger.Info("Restored MST from the epoch %d checkpoint.", node.getRestore().getCheckpoint().getEpoch());
+            Logger.Info("[RESULT] Final component ID is %s", node.getComponentId());
+            printInfo(node);
+            labelTree(node);
+        } else {
+            Logger.Info("No usable checkpoint on all nodes, recomputing.");
+        }
+        node.getMetrics().recordPhase("restore", System.currentTimeMillis() - startTime);
+        Logger.Info("[STATS] restore.ok=%d restore.msgs=%d restore.ms=%d", restored ? 1 : 0,
+                node.getMsgService().getSentMsgNo() - msgNo, node.getMetrics().getPhaseDuration("restore"));
+        return restored;
+    }
+
+    // false if a newer command arrived and the run was given up
+    public static boolean buildMST(Node node) throws InterruptedException {
+        if (node.getMstEngine().equals("gkp")) {
+            return buildGkpMST(node);
+        }
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        long bytes = node.getMsgService().getSentBytes();
+        // taken before initBuildMST clears the MST it may run over
+        Synchronizer sync = node.getSynchronizer();
         node.initBuildMST();
+        sync.start();
 
-        while (node.getNodeState() != NodeState.TERMINATE) {
+        Metrics metrics = node.getMetrics();
+        while (node.getNodeState() != NodeState.TERMINATE && !node.isRunAborted()) {
             node.updateComponentLevel();
+            String level = "L" + node.getComponentLevel();
+            long phaseStart = System.currentTimeMillis();
             node.searchMWOE();
+            metrics.recordPhase(phaseName(node, level + ".search"), System.currentTimeMillis() - phaseStart);
+            phaseStart = System.currentTimeMillis();
             node.selectLocalMWOE();
+            metrics.recordPhase(phaseName(node, level + ".test"), System.currentTimeMillis() - phaseStart);
+            phaseStart = System.currentTimeMillis();
             node.convergeLocalMWOE();
+            metrics.recordPhase(phaseName(node, level + ".converge"), System.currentTimeMillis() - phaseStart);
+            phaseStart = System.currentTimeMillis();
             node.sendMerge();
+            metrics.recordPhase(phaseName(node, level + ".merge"), System.currentTimeMillis() - phaseStart);
             if (node.getNodeState() == NodeState.TERMINATE) break;
+            phaseStart = System.currentTimeMillis();
             node.mergeMWOE();
+            metrics.recordPhase(phaseName(node, level + ".join"), System.currentTimeMillis() - phaseStart);
+        }
+        if (node.isRunAborted()) {
+            Logger.Info("Run given up for a newer command.");
+            return false;
+        }
+        metrics.recordPhase(phaseName(node, "mst"), System.currentTimeMillis() - startTime);
+        node.setTreeEpoch(node.getEpoch());
+
+        Logger.Info("MST Created!");
+        Logger.Info("[RESULT] Final component ID is %s", node.getComponentId());
+        printInfo(node);
+        Logger.Info("[STATS] mst.sync=%s mst.levels=%d mst.rounds=%d mst.msgs=%d mst.bytes=%d mst.ms=%d",
+                sync.getName(), node.getComponentLevel(),
+                node.getTotalRounds(), node.getMsgService().getSentMsgNo() - msgNo,
+                node.getMsgService().getSentBytes() - bytes, metrics.getPhaseDuration(phaseName(node, "mst")));
+        Logger.Info(metrics.dump());
+        labelTree(node);
+        return true;
+    }
+
+    private static boolean buildGkpMST(Node node) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long msgNo = node.getMsgService().getSentMsgNo();
+        long bytes = node.getMsgService().getSentBytes();
+        GkpMST gkp = node.getGkp();
+        node.initBuildMST();
+        if (!gkp.run()) {
+            Logger.Info("Run given up for a newer command.");
+            return false;
         }
+        Metrics metrics = node.getMetrics();
+        metrics.recordPhase(phaseName(node, "mst"), System.currentTimeMillis() - startTime);
+        node.setTreeEpoch(node.getEpoch());
 
         Logger.Info("MST Created!");
         Logger.Info("[RESULT] Final component ID is %s", node.getComponentId());
         printInfo(node);
+        Logger.Info("[STATS] mst.sync=gkp mst.levels=%d mst.rounds=%d mst.msgs=%d mst.bytes=%d mst.ms=%d",
+                gkp.getLevels(), gkp.getRounds(), node.getMsgService().getSentMsgNo() - msgNo,
+                node.getMsgService().getSentBytes() - bytes,
+                metrics.getPhaseDuration(phaseName(node, "mst")));
+        Logger.Info(metrics.dump());
+        labelTree(node);
+        return true;
+    }
+
+    private static void labelTree(Node node) {
+        if (node.getRouting() != null) {
+            node.getRouting().treeDone();
+        }
+    }
+
+    private static String phaseName(Node node, String phase) {
+        String name = node.getEpoch() == 0 ? phase : phase + ".e" + node.getEpoch();
+        return node.getSession() == 0 ? name : name + ".s" + node.getSession();
+    }
+
+    public static void runDaemon(Node node) throws Exception {
+        Logger.Info("Daemon mode. Commands: [MST] rebuild MST, [MST <config>] rebuild MST with weights from config, "
+                + "[SESSION <id> MST [config]|CLOSE] run in a concurrent session.");
+        runCommands(node);
+    }
+
+    private static void runCommands(Node node) throws Exception {
+        while (true) {
+            Msg run = node.takeRunCommand();
+            if (run.getContent().startsWith("SESSION ")) {
+                dispatchSession(node, run);
+                continue;
+            }
+            if (run.getContent().equals("CLOSE")) {
+                Logger.Info("Session %d closed.", node.getSession());
+                return;
+            }
+            String[] command = run.getContent().split("\\s+", 2);
+            if (command.length > 1) {
+                Node updated = initNode(command[1], String.valueOf(node.getId()));
+                node.updateWeights(updated.getWeights());
+                node.setTopologyHash(Checkpoint.topologyHash(command[1]));
+                if (node.getSession() == 0 && node.getMsgService().getLatencyProbe() != null) {
+                    node.getMsgService().getLatencyProbe().setStaticWeights(updated.getWeights());
+                }
+            }
+            node.startEpoch(run.getEpoch());
+            if (node.getSession() == 0) {
+                measureWeights(node);
+            }
+            Logger.Info("Epoch %d: %s requested by %d%s", run.getEpoch(), run.getContent(), run.getSrcId(),
+                    node.getSession() == 0 ? "" : " in session " + node.getSession());
+            if (buildMST(node)) {
+                node.saveCheckpoint();
+            }
+        }
+    }
+
+    /*
+     * SESSION <id> MST [config] | SESSION <id> CLOSE: every session gets its own Node and run loop,
+     * so MSTs over different overlays or weight functions overlap. The config of the first command
+     * of a session defines its overlay, later ones only reload weights like MST <config>.
+     */
+    private static void dispatchSession(Node node, Msg run) {
+        try {
+            String[] t = run.getContent().split("\\s+", 3);
+            int sessionId = Integer.parseInt(t[1]);
+            Node session = node.getSession(sessionId);
+            String command = t[2];
+            if (session == null) {
+                if (command.equals("CLOSE")) return;
+                Node overlay = null;
+                String[] c = command.split("\\s+", 2);
+                if (c.length > 1) {
+                    overlay = initNode(c[1], String.valueOf(node.getId()));
+                    if (overlay == null || overlay.getNeighbors().isEmpty()) {
+                        Logger.Info("Not a member of session %d.", sessionId);
+                        return;
+                    }
+                    command = c[0];
+                }
+                session = node.openSession(sessionId, overlay);
+                logDeliveries(session);
+                Node s = session;
+                new Thread(() -> {
+                    try {
+                        runCommands(s);
+                    } catch (Exception e) {
+                        StringWriter sw = new StringWriter();
+                        PrintWriter pw = new PrintWriter(sw);
+                        e.printStackTrace(pw);
+                        Logger.Error(sw.toString());
+                    }
+                }).start();
+            }
+            if (command.equals("CLOSE")) {
+                node.closeSession(sessionId);
+            }
+            Msg sessionRun = new Msg(run.toString());
+            sessionRun.setContent(command);
+            session.addRunCommand(sessionRun);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            Logger.Error(sw.toString());
+        }
     }
 
         public static void testMode(Node node) {
@@ -110,10 +374,13 @@ public class SynchGHS {
 
         Runnable task = ()->{
             try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
                 while (true) {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
                     String msg = reader.readLine();
-                    if (msg == null || msg.isEmpty()) {
+                    if (msg == null) {
+                        break;
+                    }
+                    if (msg.isEmpty()) {
                         continue;
                     }
                     if (msg.equalsIgnoreCase("D")) {
@@ -127,6 +394,35 @@ public class SynchGHS {
                         Logger.Info("MsfNo: %s, R: %s, CLevel:  %s", node.getProcessedMsgNo(), node.getRound(), node.getComponentLevel());
                     } else if (msg.equalsIgnoreCase("RESULT")){
                         printInfo(node);
+                    } else if (msg.toUpperCase().startsWith("MST")) {
+                        node.requestRun(msg.trim().replaceFirst("(?i)^MST", "MST"));
+                    } else if (msg.trim().matches("(?i)SESSION\\s+[1-9][0-9]*\\s+(MST(\\s+\\S+)?|CLOSE)")) {
+                        String[] t = msg.trim().split("\\s+");
+                        node.requestRun("SESSION " + t[1] + " " + t[2].toUpperCase() + (t.length > 3 ? " " + t[3] : ""));
+                    } else if (msg.trim().matches("(?i)EDGE\\s+\\d+\\s+(\\d+|INF)")) {
+                        String[] t = msg.trim().split("\\s+");
+                        int weight = t[2].equalsIgnoreCase("INF") ? IncrementalMST.INFINITE : Integer.parseInt(t[2]);
+                        node.getIncrementalMST().update(Integer.parseInt(t[1]), weight);
+                    } else if (msg.toUpperCase().startsWith("CASTFILE ")) {
+                        byte[] data = Files.readAllBytes(Paths.get(msg.trim().split("\\s+", 2)[1]));
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().broadcast(data), data.length);
+                    } else if (msg.toUpperCase().startsWith("CAST ")) {
+                        byte[] data = msg.trim().split("\\s+", 2)[1].getBytes(StandardCharsets.UTF_8);
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().broadcast(data), data.length);
+                    } else if (msg.toUpperCase().matches("CASTVIA\\s+\\d+\\s+.*")) {
+                        String[] t = msg.trim().split("\\s+", 3);
+                        byte[] data = t[2].getBytes(StandardCharsets.UTF_8);
+                        Logger.Info("[CAST] stream %s: %d bytes", node.getDissemination().multicast(data,
+                                Collections.singletonList(Integer.parseInt(t[1]))), data.length);
+                    } else if (msg.toUpperCase().matches("SEND\\s+\\d+\\s+.*") && node.getRouting() != null) {
+                        String[] t = msg.trim().split("\\s+", 3);
+                        byte[] data = t[2].getBytes(StandardCharsets.UTF_8);
+                        try {
+                            Logger.Info("[ROUTE] %s to %s: %d bytes", node.getRouting().send(Integer.parseInt(t[1]), data),
+                                    t[1], data.length);
+                        } catch (Exception e) {
+                            Logger.Error("[ROUTE] SEND failed: %s", e.getMessage());
+                        }
                     } else {
                         Logger.Info("Not Supported");
                     }
@@ -141,6 +437,27 @@ public class SynchGHS {
         new Thread(task).start();
     }
 
+    public static void logDeliveries(Node node) {
+        node.getDissemination().addListener(new DeliveryListener() {
+            @Override
+            public void onDeliver(int srcId, String streamId, byte[] data) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                Logger.Info("[CAST] stream %s from %d: %d bytes, crc32 %08x%s", streamId, srcId, data.length,
+                        crc.getValue(), data.length <= 256 ? ": " + new String(data, StandardCharsets.UTF_8) : "");
+            }
+        });
+        if (node.getRouting() != null) {
+            node.getRouting().addListener(new DeliveryListener() {
+                @Override
+                public void onDeliver(int srcId, String routeId, byte[] data) {
+                    Logger.Info("[ROUTE] %s from %d: %d bytes%s", routeId, srcId, data.length,
+                            data.length <= 256 ? ": " + new String(data, StandardCharsets.UTF_8) : "");
+                }
+            });
+        }
+    }
+
     private static void printInfo(Node node) {
         StringBuilder sb = new StringBuilder();
         for (Edge e: node.getTreeEdges()) {
@@ -151,6 +468,7 @@ public class SynchGHS {
             sb.append(end);
             sb.append(" - (" + e.weight + ")");
         }
-        Logger.Info("[RESULT] Tree Edges %s : {%s}", node.getId(), sb.toString());
+        Logger.Info("[RESULT]%s Tree Edges %s : {%s}", node.getSession() == 0 ? "" : " [S" + node.getSession() + "]",
+                node.getId(), sb.toString());
     }
 }
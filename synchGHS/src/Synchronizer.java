@@ -0,0 +1,39 @@
+import java.util.Collection;
+
+/*
+ * Decides when a node may start its next round while the links are asynchronous. A round is done
+ * once every message sent in it was processed by its receiver.
+ *
+ * - alpha pads every peer that got no message with an EMPTY one and waits for one message per
+ *   peer, the way the rounds always worked. Costs one message per edge and round.
+ * - beta acknowledges the real messages only. SAFE is collected over a spanning tree and PULSE
+ *   sent back, 2(N - 1) messages per round plus the acks.
+ * - gamma runs beta inside clusters of the tree and alpha between neighboring clusters over one
+ *   preferred edge each. More messages than beta, but a round waits for the cluster and its
+ *   neighbors instead of the whole tree.
+ * Beta and gamma run over the tree of the previous run. All nodes first agree that they hold the
+ * same one, otherwise every node falls back to alpha.
+ */
+public interface Synchronizer {
+    // blocks until all nodes agreed on how rounds are synchronized
+    void start() throws InterruptedException;
+
+    // a real message of round went out
+    void sent(Msg msg, int round);
+
+    // everything for round was sent, peers that got nothing are padded with empty if needed
+    void endRound(int round, Collection<Integer> peers, Msg empty);
+
+    // a message of round was processed
+    void received(Msg msg, int round);
+
+    // every message sent in round was processed
+    boolean isRoundDone(int round);
+
+    // SYNC messages
+    void process(Msg msg);
+
+    int getEpoch();
+
+    String getName();
+}
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Binary event tracer. Every event is a fixed RECORD_SIZE record written into a memory-mapped
+ * ring file (trace_<id>.bin), so tracing costs a few absolute puts and no formatting.
+ * The file is decoded offline by tools/TraceTimeline.
+ *
+ * Header: magic(int) recordSize(int) capacity(int) nodeId(int) written(long) names(utf-8, zero terminated)
+ *         names lists the action codes ("A:TEST") and the state enums ("S1:STARTPHASE,IDLE,SEARCH,...")
+ * Record: time(long) event(byte) action(byte) reserved(short) round(int) peer(int) arg1(int) arg2(int) pad(int)
+ */
+public class Tracer {
+    public static final int MAGIC = 0x54524345;
+    public static final int HEADER_SIZE = 1024;
+    public static final int RECORD_SIZE = 32;
+
+    public static final byte SEND = 1;
+    public static final byte RECEIVE = 2;
+    public static final byte BUFFER = 3;
+    public static final byte ROUND = 4;
+    public static final byte STATE = 5;
+
+    public static final int NODE_STATE = 1;
+
+    static final String[] ACTIONS = { MsgAction.CONNECT, MsgAction.DISCONNECT, MsgAction.SEARCH,
+            MsgAction.TEST, MsgAction.REPLY, MsgAction.CONVERGE, MsgAction.MERGE, MsgAction.JOIN,
+            MsgAction.TERMINATE, MsgAction.RUN, MsgAction.DISSEMINATE,
+            MsgAction.RESTORE, MsgAction.UPDATE, MsgAction.HEARTBEAT, MsgAction.SYNC,
+            MsgAction.GKP, MsgAction.RTT, MsgAction.ROUTE };
+
+    public static final Tracer DISABLED = new Tracer();
+
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private long timeOffset;
+    private AtomicLong written = new AtomicLong();
+
+    private Tracer() {
+    }
+
+    public Tracer(String dir, int nodeId, int capacity) throws IOException {
+        new File(dir).mkdirs();
+        File file = new File(dir, String.format("trace_%d.bin", nodeId));
+        this.capacity = capacity;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, RECORD_SIZE);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, nodeId);
+        buffer.putLong(16, 0);
+        byte[] names = names().getBytes("UTF-8");
+        for (int i = 0; i < names.length && i < HEADER_SIZE - 25; i++) {
+            buffer.put(24 + i, names[i]);
+        }
+        // nanoTime is only monotonic per JVM, anchor it to the wall clock so traces from different nodes merge
+        timeOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    public void send(Msg msg) {
+        if (buffer == null) return;
+        record(SEND, actionCode(msg.getAction()), msg.getRound(), msg.getToId(), msg.getComponentLevel(),
+                msg.getContent().length());
+    }
+
+    public void receive(Msg msg) {
+        if (buffer == null) return;
+        record(RECEIVE, actionCode(msg.getAction()), msg.getRound(), msg.getFromId(), msg.getComponentLevel(),
+                msg.getContent().length());
+    }
+
+    public void buffer(Msg msg) {
+        if (buffer == null) return;
+        record(BUFFER, actionCode(msg.getAction()), msg.getRound(), msg.getFromId(), msg.getComponentLevel(), 0);
+    }
+
+    public void round(int round, int phase) {
+        if (buffer == null) return;
+        record(ROUND, (byte) 0, round, -1, phase, 0);
+    }
+
+    public void state(int kind, int round, Enum<?> from, Enum<?> to) {
+        if (buffer == null) return;
+        record(STATE, (byte) kind, round, -1, from == null ? -1 : from.ordinal(), to == null ? -1 : to.ordinal());
+    }
+
+    private void record(byte event, byte action, int round, int peer, int arg1, int arg2) {
+        long index = written.getAndIncrement();
+        int pos = HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+        buffer.putLong(pos, System.nanoTime() + timeOffset);
+        buffer.put(pos + 8, event);
+        buffer.put(pos + 9, action);
+        buffer.putShort(pos + 10, (short) 0);
+        buffer.putInt(pos + 12, round);
+        buffer.putInt(pos + 16, peer);
+        buffer.putInt(pos + 20, arg1);
+        buffer.putInt(pos + 24, arg2);
+        buffer.putInt(pos + 28, 0);
+        buffer.putLong(16, index + 1);
+    }
+
+    private static String names() {
+        StringBuilder sb = new StringBuilder();
+        for (String action : ACTIONS) {
+            sb.append("A:").append(action).append("\n");
+        }
+        sb.append("S").append(NODE_STATE).append(":").append(enumNames(NodeState.values())).append("\n");
+        return sb.toString();
+    }
+
+    private static String enumNames(Enum<?>[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (Enum<?> v : values) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(v.name());
+        }
+        return sb.toString();
+    }
+
+    private static byte actionCode(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action)) {
+                return (byte) (i + 1);
+            }
+        }
+        return 0;
+    }
+
+    public void close() {
+        if (buffer != null) {
+            // concurrent recorders may have left a smaller count in the header last
+            buffer.putLong(16, written.get());
+            buffer.force();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class Benchmark {
+
+    private static final Pattern STATS = Pattern.compile("\\[STATS\\] (.*)$");
+
+    private String leClasspath;
+    private String ghsClasspath;
+    private String topology = "ring";
+    private List<Integer> sizes = new ArrayList<>();
+    private List<String> algorithms = new ArrayList<>(Arrays.asList("le", "ghs"));
+    private int degree = 4;
+    private String weights = "distinct";
+    private long seed = 1;
+    private int timeout = 120;
+    private int port = 9000;
+    private File dir = new File("bench");
+    // options every node is started with, e.g. -fused or -mst=gkp
+    private List<String> nodeArgs = new ArrayList<>();
+
+    public static void main(String[] args) {
+        try {
+            Benchmark bench = new Benchmark();
+            for (String arg : args) {
+                String[] kv = arg.replaceFirst("^-", "").split("=", 2);
+                String value = kv.length > 1 ? kv[1] : "";
+                if (kv[0].equals("le")) {
+                    bench.leClasspath = value;
+                } else if (kv[0].equals("ghs")) {
+                    bench.ghsClasspath = value;
+                } else if (kv[0].equals("topology")) {
+                    bench.topology = value;
+                } else if (kv[0].equals("sizes")) {
+                    for (String s : value.split(",")) {
+                        bench.sizes.add(Integer.parseInt(s.trim()));
+                    }
+                } else if (kv[0].equals("algorithms")) {
+                    bench.algorithms = Arrays.asList(value.split(","));
+                } else if (kv[0].equals("degree")) {
+                    bench.degree = Integer.parseInt(value);
+                } else if (kv[0].equals("weights")) {
+                    bench.weights = value;
+                } else if (kv[0].equals("seed")) {
+                    bench.seed = Long.parseLong(value);
+                } else if (kv[0].equals("timeout")) {
+                    bench.timeout = Integer.parseInt(value);
+                } else if (kv[0].equals("port")) {
+                    bench.port = Integer.parseInt(value);
+                } else if (kv[0].equals("dir")) {
+                    bench.dir = new File(value);
+                } else if (kv[0].equals("args")) {
+                    bench.nodeArgs = Arrays.asList(value.trim().split("\\s+"));
+                } else {
+                    throw new Exception(String.format("Unknown option: %s", arg));
+                }
+            }
+            if (bench.sizes.isEmpty()) {
+                System.out.println("Usage: Benchmark -le=<leaderElection classes> -ghs=<synchGHS classes> -sizes=5,10,20 "
+                        + "[-topology=ring] [-algorithms=le,ghs] [-degree=d] [-weights=distinct] [-seed=s] "
+                        + "[-timeout=sec] [-port=p] [-dir=path] [-args=\"<node options>\"]");
+                return;
+            }
+            bench.run();
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            System.out.println(sw.toString());
+        }
+    }
+
+    public void run() throws Exception {
+        dir.mkdirs();
+        System.out.println(String.format("%-10s %6s %6s %-6s %8s %10s %12s %10s %10s", "topology", "nodes", "edges",
+                "phase", "rounds", "messages", "bytes", "algo_ms", "wall_ms"));
+
+        for (int n : sizes) {
+            for (String algorithm : algorithms) {
+                TopologyGen gen = new TopologyGen(topology, n);
+                gen.setDegree(degree);
+                gen.setWeights(weights);
+                gen.setSeed(seed);
+                gen.setPort(port);
+                gen.generate();
+                port += n + 1;
+
+                File config = new File(dir, String.format("%s_%s_%d.txt", topology, algorithm, n));
+                try (PrintStream ps = new PrintStream(new FileOutputStream(config))) {
+                    gen.write(algorithm, ps);
+                }
+
+                List<String> phases = algorithm.equals("le") ? Arrays.asList("elect", "bfs") : Arrays.asList("mst");
+                Map<String, long[]> result = runOnce(algorithm, config, n, phases);
+                for (String phase : phases) {
+                    long[] r = result.get(phase);
+                    if (r == null) {
+                        System.out.println(String.format("%-10s %6d %6d %-6s %8s", topology, n, gen.getEdgeNo(), phase,
+                                "TIMEOUT"));
+                        continue;
+                    }
+                    System.out.println(String.format("%-10s %6d %6d %-6s %8d %10d %12d %10d %10d", topology, n,
+                            gen.getEdgeNo(), phase, r[0], r[1], r[2], r[3], r[4]));
+                }
+            }
+        }
+    }
+
+    private Map<String, long[]> runOnce(String algorithm, File config, int n, List<String> phases) throws Exception {
+        String classpath = algorithm.equals("le") ? leClasspath : ghsClasspath;
+        String mainClass = algorithm.equals("le") ? "NetNode" : "SynchGHS";
+        if (classpath == null) {
+            throw new Exception(String.format("Missing classpath for %s", algorithm));
+        }
+
+        // phase -> {rounds(max), messages(sum), bytes(sum), algorithm ms(max), wall ms(max)}
+        Map<String, long[]> result = new HashMap<>();
+        Map<String, Integer> reported = new HashMap<>();
+        List<Process> processes = new ArrayList<>();
+        String lastPhase = phases.get(phases.size() - 1);
+        long startTime = System.currentTimeMillis();
+
+        for (int id = 1; id <= n; id++) {
+            List<String> command = new ArrayList<>(Arrays.asList("java", "-cp", classpath, mainClass,
+                    config.getAbsolutePath(), String.valueOf(id)));
+            command.addAll(nodeArgs);
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            pb.directory(dir);
+            Process p = pb.start();
+            processes.add(p);
+
+            (new Thread() {
+                @Override
+                public void run() {
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            Matcher m = STATS.matcher(line);
+                            if (!m.find()) continue;
+                            synchronized (result) {
+                                collect(m.group(1), result, reported, System.currentTimeMillis() - startTime);
+                                result.notifyAll();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // process destroyed
+                    }
+                }
+            }).start();
+        }
+
+        long deadline = startTime + TimeUnit.SECONDS.toMillis(timeout);
+        synchronized (result) {
+            while (reported.getOrDefault(lastPhase, 0) < n && System.currentTimeMillis() < deadline) {
+                result.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+
+        for (Process p : processes) {
+            p.destroyForcibly();
+        }
+        for (Process p : processes) {
+            p.waitFor();
+        }
+
+        Map<String, long[]> complete = new HashMap<>();
+        for (String phase : phases) {
+            if (reported.getOrDefault(phase, 0) == n) {
+                complete.put(phase, result.get(phase));
+            }
+        }
+        return complete;
+    }
+
+    private static void collect(String stats, Map<String, long[]> result, Map<String, Integer> reported, long wallTime) {
+        String phase = null;
+        long[] values = new long[5];
+        for (String kv : stats.trim().split("\\s+")) {
+            String[] t = kv.split("=");
+            String[] name = t[0].split("\\.");
+            phase = name[0];
+            if (!t[1].matches("-?\\d+")) {
+                // the synchronizer name and the like, nothing to add up
+                continue;
+            }
+            long v = Long.parseLong(t[1]);
+            if (name[1].equals("rounds")) {
+                values[0] = v;
+            } else if (name[1].equals("msgs")) {
+                values[1] = v;
+            } else if (name[1].equals("bytes")) {
+                values[2] = v;
+            } else if (name[1].equals("ms")) {
+                values[3] = v;
+            }
+        }
+        if (phase == null) return;
+
+        long[] r = result.computeIfAbsent(phase, k -> new long[5]);
+        r[0] = Math.max(r[0], values[0]);
+        r[1] += values[1];
+        r[2] += values[2];
+        r[3] = Math.max(r[3], values[3]);
+        r[4] = Math.max(r[4], wallTime);
+        reported.put(phase, reported.getOrDefault(phase, 0) + 1);
+    }
+}
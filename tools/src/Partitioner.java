@@ -0,0 +1,426 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Splits the nodes of a config (le or ghs format) into k parts of about equal size with few edges
+ * between them, the placement for k Host processes. Multilevel: matching along the heaviest edges
+ * halves the graph until it is small, the smallest graph is grown into k parts from several seeds,
+ * and going back up every level is refined by moving boundary nodes to the part they have more
+ * edges to (Kernighan-Lin / Fiduccia-Mattheyses moves, only gains and balance fixes). Edges count
+ * once each, every cut edge is a TCP channel in every round, whatever its MST weight.
+ *
+ * The placement has one line per process, "<process> <ids>" with the ids as Host takes them, and
+ * lists the cut edges as comments.
+ */
+public class Partitioner {
+
+    static class Graph {
+        int[] weights;
+        List<HashMap<Integer, Integer>> adj = new ArrayList<>();
+        // node of the coarser graph each node went into
+        int[] coarse;
+
+        Graph(int n) {
+            weights = new int[n];
+            for (int i = 0; i < n; i++) {
+                adj.add(new HashMap<>());
+            }
+        }
+
+        int size() {
+            return weights.length;
+        }
+
+        void addEdge(int u, int v, int w) {
+            if (u == v) return;
+            adj.get(u).merge(v, w, Integer::sum);
+            adj.get(v).merge(u, w, Integer::sum);
+        }
+    }
+
+    private int k;
+    private double imbalance = 0.03;
+    private Random random = new Random(1);
+    private int tries = 8;
+
+    private List<Integer> ids = new ArrayList<>();
+    private Graph graph;
+    private int maxPart;
+
+    public Partitioner(int k) {
+        this.k = k;
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 2) {
+                System.out.println("Usage: Partitioner <config> <k> [-imbalance=0.03] [-tries=8] [-seed=s] [-out=path]");
+                return;
+            }
+
+            Partitioner partitioner = new Partitioner(Integer.parseInt(args[1]));
+            String out = null;
+            for (int i = 2; i < args.length; i++) {
+                String[] kv = args[i].replaceFirst("^-", "").split("=", 2);
+                String value = kv.length > 1 ? kv[1] : "";
+                if (kv[0].equals("imbalance")) {
+                    partitioner.setImbalance(Double.parseDouble(value));
+                } else if (kv[0].equals("tries")) {
+                    partitioner.setTries(Integer.parseInt(value));
+                } else if (kv[0].equals("seed")) {
+                    partitioner.setSeed(Long.parseLong(value));
+                } else if (kv[0].equals("out")) {
+                    out = value;
+                } else {
+                    throw new Exception(String.format("Unknown option: %s", args[i]));
+                }
+            }
+
+            partitioner.read(args[0]);
+            int[] parts = partitioner.partition();
+            if (out == null) {
+                partitioner.write(parts, System.out);
+            } else {
+                try (PrintStream ps = new PrintStream(new FileOutputStream(out))) {
+                    partitioner.write(parts, ps);
+                }
+                partitioner.summary(parts, System.out);
+            }
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            System.out.println(sw.toString());
+        }
+    }
+
+    public void setImbalance(double i) {
+        imbalance = i;
+    }
+
+    public void setTries(int t) {
+        tries = Math.max(1, t);
+    }
+
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    // both formats: node count, "id host port" lines, then "id neighbors..." or "(u,v) weight" lines
+    public void read(String config) throws Exception {
+        List<int[]> edges = new ArrayList<>();
+        HashMap<Integer, Integer> index = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(config))) {
+            String line;
+            int lineNum = 0;
+            int nodeNum = -1;
+            while ((line = br.readLine()) != null) {
+                line = line.split("#")[0].trim();
+                if (line.isEmpty() || (!Character.isDigit(line.charAt(0)) && line.charAt(0) != '(')) {
+                    continue;
+                }
+                lineNum++;
+                String[] t = line.split("\\s+");
+                if (nodeNum == -1) {
+                    nodeNum = Integer.parseInt(line);
+                    lineNum = 0;
+                } else if (lineNum <= nodeNum) {
+                    if (t.length != 3) {
+                        throw new Exception(String.format("Invalid configs at line %d", lineNum));
+                    }
+                    index.put(Integer.parseInt(t[0]), ids.size());
+                    ids.add(Integer.parseInt(t[0]));
+                } else if (t[0].startsWith("(")) {
+                    String[] points = line.substring(1, line.indexOf(')')).split(",");
+                    edges.add(new int[] { Integer.parseInt(points[0].trim()), Integer.parseInt(points[1].trim()) });
+                } else {
+                    for (int i = 1; i < t.length; i++) {
+                        edges.add(new int[] { Integer.parseInt(t[0]), Integer.parseInt(t[i]) });
+                    }
+                }
+            }
+        }
+
+        graph = new Graph(ids.size());
+        Arrays.fill(graph.weights, 1);
+        for (int[] e : edges) {
+            Integer u = index.get(e[0]);
+            Integer v = index.get(e[1]);
+            if (u == null || v == null) {
+                throw new Exception(String.format("Can not find edge (%d,%d) in nodeList.", e[0], e[1]));
+            }
+            // adjacency lists give every edge twice
+            if (u != v && !graph.adj.get(u).containsKey(v)) {
+                graph.addEdge(u, v, 1);
+            }
+        }
+    }
+
+    public int[] partition() throws Exception {
+        int n = graph.size();
+        if (k < 1 || k > n) {
+            throw new Exception(String.format("Can not split %d nodes into %d parts", n, k));
+        }
+        maxPart = (int) Math.max(Math.ceil((double) n / k), Math.floor((double) n / k * (1 + imbalance)));
+
+        List<Graph> levels = new ArrayList<>();
+        levels.add(graph);
+        Graph g = graph;
+        while (g.size() > 15 * k) {
+            Graph c = coarsen(g);
+            if (c.size() > 0.9 * g.size()) {
+                break;
+            }
+            levels.add(c);
+            g = c;
+        }
+
+        int[] best = null;
+        long bestCut = Long.MAX_VALUE;
+        for (int i = 0; i < tries; i++) {
+            int[] parts = grow(g);
+            refine(g, parts);
+            long cut = cut(g, parts);
+            if (cut < bestCut) {
+                best = parts;
+                bestCut = cut;
+            }
+        }
+
+        int[] parts = best;
+        for (int l = levels.size() - 2; l >= 0; l--) {
+            Graph fine = levels.get(l);
+            int[] p = new int[fine.size()];
+            for (int u = 0; u < p.length; u++) {
+                p[u] = parts[fine.coarse[u]];
+            }
+            refine(fine, p);
+            parts = p;
+        }
+        return parts;
+    }
+
+    // heavy-edge matching, a node joins its unmatched neighbor with the most edges between them
+    private Graph coarsen(Graph g) {
+        int n = g.size();
+        int limit = Math.max(1, maxPart / 2);
+        g.coarse = new int[n];
+        Arrays.fill(g.coarse, -1);
+        int next = 0;
+        for (int u : shuffled(n)) {
+            if (g.coarse[u] != -1) continue;
+            int match = -1;
+            for (Map.Entry<Integer, Integer> e : g.adj.get(u).entrySet()) {
+                int v = e.getKey();
+                if (g.coarse[v] != -1 || g.weights[u] + g.weights[v] > limit) continue;
+                if (match == -1 || e.getValue() > g.adj.get(u).get(match)
+                        || (e.getValue().equals(g.adj.get(u).get(match)) && g.weights[v] < g.weights[match])) {
+                    match = v;
+                }
+            }
+            g.coarse[u] = next;
+            if (match != -1) {
+                g.coarse[match] = next;
+            }
+            next++;
+        }
+
+        Graph c = new Graph(next);
+        for (int u = 0; u < n; u++) {
+            c.weights[g.coarse[u]] += g.weights[u];
+            for (Map.Entry<Integer, Integer> e : g.adj.get(u).entrySet()) {
+                if (u < e.getKey()) {
+                    c.addEdge(g.coarse[u], g.coarse[e.getKey()], e.getValue());
+                }
+            }
+        }
+        return c;
+    }
+
+    // greedy graph growing: each part takes the node most connected to it until it is full
+    private int[] grow(Graph g) {
+        int n = g.size();
+        int[] parts = new int[n];
+        Arrays.fill(parts, -1);
+        int total = 0;
+        for (int w : g.weights) {
+            total += w;
+        }
+        List<Integer> order = shuffled(n);
+        int left = total;
+        for (int p = 0; p < k - 1; p++) {
+            int target = left / (k - p);
+            int weight = 0;
+            HashMap<Integer, Integer> gain = new HashMap<>();
+            while (weight < target) {
+                int u = -1;
+                for (Map.Entry<Integer, Integer> e : gain.entrySet()) {
+                    if (u == -1 || e.getValue() > gain.get(u)) {
+                        u = e.getKey();
+                    }
+                }
+                if (u == -1) {
+                    // a new seed, the part may span components
+                    for (int v : order) {
+                        if (parts[v] == -1) {
+                            u = v;
+                            break;
+                        }
+                    }
+                }
+                if (weight > 0 && weight + g.weights[u] > maxPart) {
+                    gain.remove(u);
+                    if (gain.isEmpty()) break;
+                    continue;
+                }
+                parts[u] = p;
+                weight += g.weights[u];
+                gain.remove(u);
+                for (Map.Entry<Integer, Integer> e : g.adj.get(u).entrySet()) {
+                    if (parts[e.getKey()] == -1) {
+                        gain.merge(e.getKey(), e.getValue(), Integer::sum);
+                    }
+                }
+            }
+            left -= weight;
+        }
+        for (int u = 0; u < n; u++) {
+            if (parts[u] == -1) {
+                parts[u] = k - 1;
+            }
+        }
+        return parts;
+    }
+
+    /*
+     * Moves nodes on the boundary to the part they have the most edges to while that cuts fewer
+     * edges, or as many and evens out the sizes. Parts above maxPart first give away the nodes that
+     * cost the least.
+     */
+    private void refine(Graph g, int[] parts) {
+        int n = g.size();
+        int[] sizes = new int[k];
+        for (int u = 0; u < n; u++) {
+            sizes[parts[u]] += g.weights[u];
+        }
+        for (int pass = 0; pass < 20; pass++) {
+            boolean moved = false;
+            for (int u : shuffled(n)) {
+                int p = parts[u];
+                int[] conn = new int[k];
+                for (Map.Entry<Integer, Integer> e : g.adj.get(u).entrySet()) {
+                    conn[parts[e.getKey()]] += e.getValue();
+                }
+                int best = -1;
+                for (int q = 0; q < k; q++) {
+                    if (q == p || sizes[p] - g.weights[u] < 1) continue;
+                    boolean fits = sizes[q] + g.weights[u] <= maxPart;
+                    boolean over = sizes[p] > maxPart && sizes[q] + g.weights[u] < sizes[p];
+                    if (!fits && !over) continue;
+                    int gain = conn[q] - conn[p];
+                    if (!over && (gain < 0 || (gain == 0 && sizes[q] + g.weights[u] >= sizes[p]))) continue;
+                    if (best == -1 || conn[q] > conn[best] || (conn[q] == conn[best] && sizes[q] < sizes[best])) {
+                        best = q;
+                    }
+                }
+                if (best != -1) {
+                    sizes[p] -= g.weights[u];
+                    sizes[best] += g.weights[u];
+                    parts[u] = best;
+                    moved = true;
+                }
+            }
+            if (!moved) break;
+        }
+    }
+
+    private static long cut(Graph g, int[] parts) {
+        long cut = 0;
+        for (int u = 0; u < g.size(); u++) {
+            for (Map.Entry<Integer, Integer> e : g.adj.get(u).entrySet()) {
+                if (u < e.getKey() && parts[u] != parts[e.getKey()]) {
+                    cut += e.getValue();
+                }
+            }
+        }
+        return cut;
+    }
+
+    private List<Integer> shuffled(int n) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        return order;
+    }
+
+    public void write(int[] parts, PrintStream out) {
+        List<String> cutEdges = new ArrayList<>();
+        for (int u = 0; u < graph.size(); u++) {
+            for (int v : new TreeSet<>(graph.adj.get(u).keySet())) {
+                if (u < v && parts[u] != parts[v]) {
+                    cutEdges.add(String.format("(%d,%d) %d-%d", Math.min(ids.get(u), ids.get(v)),
+                            Math.max(ids.get(u), ids.get(v)), parts[u], parts[v]));
+                }
+            }
+        }
+        Collections.sort(cutEdges);
+
+        out.println(String.format("# Placement of %d nodes on %d processes, %d of %d edges cut", graph.size(), k,
+                cutEdges.size(), edgeNo()));
+        out.println("# Process  Nodes");
+        for (int p = 0; p < k; p++) {
+            out.println(String.format("%d %s", p, ranges(parts, p)));
+        }
+        out.println();
+        out.println("# Cut edges (TCP in every round) and the processes they connect");
+        for (String e : cutEdges) {
+            out.println("# " + e);
+        }
+    }
+
+    public void summary(int[] parts, PrintStream out) {
+        int[] sizes = new int[k];
+        for (int p : parts) {
+            sizes[p]++;
+        }
+        long cut = cut(graph, parts);
+        out.println(String.format("%d nodes, %d edges, %d parts of %s nodes (max %d), %d edges cut (%.1f%%)",
+                graph.size(), edgeNo(), k, Arrays.toString(sizes), maxPart, cut,
+                edgeNo() == 0 ? 0.0 : 100.0 * cut / edgeNo()));
+    }
+
+    private long edgeNo() {
+        long m = 0;
+        for (HashMap<Integer, Integer> a : graph.adj) {
+            m += a.size();
+        }
+        return m / 2;
+    }
+
+    // ids of part p as Host takes them, e.g. 1-3,7
+    private String ranges(int[] parts, int p) {
+        List<Integer> members = new ArrayList<>();
+        for (int u = 0; u < parts.length; u++) {
+            if (parts[u] == p) {
+                members.add(ids.get(u));
+            }
+        }
+        Collections.sort(members);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < members.size(); i++) {
+            int j = i;
+            while (j + 1 < members.size() && members.get(j + 1) == members.get(j) + 1) {
+                j++;
+            }
+            if (sb.length() > 0) sb.append(",");
+            sb.append(members.get(i));
+            if (j > i) {
+                sb.append("-").append(members.get(j));
+            }
+            i = j;
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.*;
+import java.util.*;
+
+public class TopologyGen {
+
+    public static final String LEADER_ELECTION = "le";
+    public static final String SYNCH_GHS = "ghs";
+
+    private int n;
+    private String topology;
+    private int degree = 4;
+    private double probability = -1;
+    private int hubs = 1;
+    private String weights = "distinct";
+    private int maxWeight = 100;
+    private String host = "127.0.0.1";
+    private int port = 9000;
+    private Random random = new Random(1);
+
+    private TreeSet<Long> edges = new TreeSet<>();
+    private HashMap<Long, Integer> edgeWeights = new HashMap<>();
+
+    public TopologyGen(String topology, int n) {
+        this.topology = topology.toLowerCase();
+        this.n = n;
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 3) {
+                System.out.println("Usage: TopologyGen <le|ghs> <ring|grid|regular|er|powerlaw|star> <n> "
+                        + "[-degree=d] [-p=prob] [-hubs=k] [-weights=distinct|uniform|unit] [-maxWeight=w] "
+                        + "[-host=h] [-port=p] [-seed=s] [-out=path]");
+                return;
+            }
+
+            String format = args[0];
+            TopologyGen gen = new TopologyGen(args[1], Integer.parseInt(args[2]));
+            String out = null;
+            for (int i = 3; i < args.length; i++) {
+                String[] kv = args[i].replaceFirst("^-", "").split("=", 2);
+                String value = kv.length > 1 ? kv[1] : "";
+                if (kv[0].equals("degree")) {
+                    gen.setDegree(Integer.parseInt(value));
+                } else if (kv[0].equals("p")) {
+                    gen.setProbability(Double.parseDouble(value));
+                } else if (kv[0].equals("hubs")) {
+                    gen.setHubs(Integer.parseInt(value));
+                } else if (kv[0].equals("weights")) {
+                    gen.setWeights(value);
+                } else if (kv[0].equals("maxWeight")) {
+                    gen.setMaxWeight(Integer.parseInt(value));
+                } else if (kv[0].equals("host")) {
+                    gen.setHost(value);
+                } else if (kv[0].equals("port")) {
+                    gen.setPort(Integer.parseInt(value));
+                } else if (kv[0].equals("seed")) {
+                    gen.setSeed(Long.parseLong(value));
+                } else if (kv[0].equals("out")) {
+                    out = value;
+                } else {
+                    throw new Exception(String.format("Unknown option: %s", args[i]));
+                }
+            }
+
+            gen.generate();
+            if (out == null) {
+                gen.write(format, System.out);
+            } else {
+                try (PrintStream ps = new PrintStream(new FileOutputStream(out))) {
+                    gen.write(format, ps);
+                }
+            }
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            System.out.println(sw.toString());
+        }
+    }
+
+    public void setDegree(int d) {
+        degree = d;
+    }
+
+    public void setProbability(double p) {
+        probability = p;
+    }
+
+    public void setHubs(int h) {
+        hubs = h;
+    }
+
+    public void setWeights(String w) {
+        weights = w.toLowerCase();
+    }
+
+    public void setMaxWeight(int w) {
+        maxWeight = w;
+    }
+
+    public void setHost(String h) {
+        host = h;
+    }
+
+    public void setPort(int p) {
+        port = p;
+    }
+
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
+    public int getEdgeNo() {
+        return edges.size();
+    }
+
+    public void generate() throws Exception {
+        if (n < 2) {
+            throw new Exception(String.format("Invalid node number: %d", n));
+        }
+        edges.clear();
+        edgeWeights.clear();
+
+        if (topology.equals("ring")) {
+            generateRing();
+        } else if (topology.equals("grid")) {
+            generateGrid();
+        } else if (topology.equals("regular")) {
+            generateRegular();
+        } else if (topology.equals("er")) {
+            generateErdosRenyi();
+        } else if (topology.equals("powerlaw")) {
+            generatePowerLaw();
+        } else if (topology.equals("star")) {
+            generateStar();
+        } else {
+            throw new Exception(String.format("Unknown topology: %s", topology));
+        }
+
+        connectComponents();
+        assignWeights();
+    }
+
+    private void generateRing() {
+        for (int i = 1; i <= n; i++) {
+            addEdge(i, i % n + 1);
+        }
+    }
+
+    private void generateGrid() {
+        int cols = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 1; i <= n; i++) {
+            if (i % cols != 0 && i + 1 <= n) {
+                addEdge(i, i + 1);
+            }
+            if (i + cols <= n) {
+                addEdge(i, i + cols);
+            }
+        }
+    }
+
+    private void generateRegular() throws Exception {
+        int d = Math.min(degree, n - 1);
+        if (d * n % 2 != 0) {
+            throw new Exception(String.format("Degree %d and node number %d can not form a regular graph", d, n));
+        }
+
+        // pairing model, retried until the pairing has neither loops nor parallel edges
+        for (int attempt = 0; attempt < 1000; attempt++) {
+            List<Integer> stubs = new ArrayList<>();
+            for (int i = 1; i <= n; i++) {
+                for (int j = 0; j < d; j++) {
+                    stubs.add(i);
+                }
+            }
+            Collections.shuffle(stubs, random);
+
+            TreeSet<Long> pairs = new TreeSet<>();
+            boolean valid = true;
+            for (int i = 0; i < stubs.size() && valid; i += 2) {
+                int u = stubs.get(i);
+                int v = stubs.get(i + 1);
+                valid = u != v && pairs.add(key(u, v));
+            }
+            if (valid) {
+                edges.addAll(pairs);
+                return;
+            }
+        }
+        throw new Exception(String.format("Can not generate a %d-regular graph with %d nodes", d, n));
+    }
+
+    private void generateErdosRenyi() {
+        double p = probability > 0 ? probability : Math.min(1.0, (double) degree / (n - 1));
+        for (int i = 1; i <= n; i++) {
+            for (int j = i + 1; j <= n; j++) {
+                if (random.nextDouble() < p) {
+                    addEdge(i, j);
+                }
+            }
+        }
+    }
+
+    private void generatePowerLaw() {
+        // Barabasi-Albert preferential attachment, each new node brings degree / 2 edges
+        int m = Math.max(1, degree / 2);
+        List<Integer> targets = new ArrayList<>();
+        int seedSize = Math.min(n, m + 1);
+        for (int i = 1; i <= seedSize; i++) {
+            for (int j = i + 1; j <= seedSize; j++) {
+                addEdge(i, j);
+                targets.add(i);
+                targets.add(j);
+            }
+        }
+        for (int i = seedSize + 1; i <= n; i++) {
+            HashSet<Integer> chosen = new HashSet<>();
+            while (chosen.size() < Math.min(m, i - 1)) {
+                chosen.add(targets.get(random.nextInt(targets.size())));
+            }
+            for (int t : chosen) {
+                addEdge(i, t);
+                targets.add(i);
+                targets.add(t);
+            }
+        }
+    }
+
+    private void generateStar() {
+        int k = Math.max(1, Math.min(hubs, n - 1));
+        for (int i = 1; i <= k; i++) {
+            for (int j = i + 1; j <= k; j++) {
+                addEdge(i, j);
+            }
+        }
+        for (int i = k + 1; i <= n; i++) {
+            addEdge(i, (i - k - 1) % k + 1);
+        }
+    }
+
+    private void connectComponents() {
+        int[] comp = new int[n + 1];
+        HashMap<Integer, List<Integer>> adj = adjacency();
+        List<Integer> roots = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            if (comp[i] != 0) continue;
+            roots.add(i);
+            Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(i);
+            comp[i] = i;
+            while (!stack.isEmpty()) {
+                int u = stack.pop();
+                for (int v : adj.get(u)) {
+                    if (comp[v] == 0) {
+                        comp[v] = i;
+                        stack.push(v);
+                    }
+                }
+            }
+        }
+        for (int i = 1; i < roots.size(); i++) {
+            addEdge(roots.get(i - 1), roots.get(i));
+        }
+    }
+
+    private void assignWeights() throws Exception {
+        List<Integer> distinct = new ArrayList<>();
+        if (weights.equals("distinct")) {
+            for (int i = 1; i <= Math.max(edges.size(), maxWeight); i++) {
+                distinct.add(i);
+            }
+            Collections.shuffle(distinct, random);
+        } else if (!weights.equals("uniform") && !weights.equals("unit")) {
+            throw new Exception(String.format("Unknown weight distribution: %s", weights));
+        }
+
+        int i = 0;
+        for (long e : edges) {
+            int w;
+            if (weights.equals("distinct")) {
+                w = distinct.get(i++);
+            } else if (weights.equals("uniform")) {
+                w = 1 + random.nextInt(maxWeight);
+            } else {
+                w = 1;
+            }
+            edgeWeights.put(e, w);
+        }
+    }
+
+    public HashMap<Integer, List<Integer>> adjacency() {
+        HashMap<Integer, List<Integer>> adj = new HashMap<>();
+        for (int i = 1; i <= n; i++) {
+            adj.put(i, new ArrayList<>());
+        }
+        for (long e : edges) {
+            int u = (int) (e >> 32);
+            int v = (int) e;
+            adj.get(u).add(v);
+            adj.get(v).add(u);
+        }
+        return adj;
+    }
+
+    public void write(String format, PrintStream out) throws Exception {
+        if (!format.equals(LEADER_ELECTION) && !format.equals(SYNCH_GHS)) {
+            throw new Exception(String.format("Unknown config format: %s", format));
+        }
+
+        out.println(String.format("# Generated %s topology, %d nodes, %d edges", topology, n, edges.size()));
+        out.println("# Number of nodes");
+        out.println(n);
+        out.println();
+        out.println("# UID Hostname Port");
+        for (int i = 1; i <= n; i++) {
+            out.println(String.format("%d %s %d", i, host, port + i));
+        }
+        out.println();
+
+        if (format.equals(LEADER_ELECTION)) {
+            out.println("# Node#   Neighbors");
+            HashMap<Integer, List<Integer>> adj = adjacency();
+            for (int i = 1; i <= n; i++) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(i);
+                List<Integer> nbs = adj.get(i);
+                Collections.sort(nbs);
+                for (int nb : nbs) {
+                    sb.append(" ");
+                    sb.append(nb);
+                }
+                out.println(sb.toString());
+            }
+        } else {
+            out.println("# List of edges and their weight, one per line. An edge is denoted");
+            out.println("# by (smaller uid, larger uid)");
+            for (long e : edges) {
+                out.println(String.format("(%d,%d) %d", (int) (e >> 32), (int) e, edgeWeights.get(e)));
+            }
+        }
+    }
+
+    private void addEdge(int u, int v) {
+        if (u == v) return;
+        edges.add(key(u, v));
+    }
+
+    private static long key(int u, int v) {
+        return ((long) Math.min(u, v) << 32) | Math.max(u, v);
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class TraceTimeline {
+    private static final int MAGIC = 0x54524345;
+    private static final int HEADER_SIZE = 1024;
+
+    private static final byte SEND = 1;
+    private static final byte RECEIVE = 2;
+    private static final byte BUFFER = 3;
+    private static final byte ROUND = 4;
+    private static final byte STATE = 5;
+
+    private static final String[] EVENTS = { "?", "SEND", "RECEIVE", "BUFFER", "ROUND", "STATE" };
+
+    static class Event implements Comparable<Event> {
+        int node;
+        long time;
+        byte event;
+        byte action;
+        int round;
+        int peer;
+        int arg1;
+        int arg2;
+
+        @Override
+        public int compareTo(Event that) {
+            return Long.compare(this.time, that.time);
+        }
+    }
+
+    private List<Event> events = new ArrayList<>();
+    private HashMap<Integer, List<String>> actionNames = new HashMap<>();
+    private HashMap<Integer, HashMap<Integer, String[]>> stateNames = new HashMap<>();
+    private long startTime = Long.MAX_VALUE;
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 1) {
+                System.out.println("Usage: TraceTimeline <trace dir> [-events]");
+                return;
+            }
+            TraceTimeline timeline = new TraceTimeline();
+            File[] files = new File(args[0]).listFiles((d, name) -> name.startsWith("trace_") && name.endsWith(".bin"));
+            if (files == null || files.length == 0) {
+                throw new Exception(String.format("No trace files in %s", args[0]));
+            }
+            for (File f : files) {
+                timeline.load(f);
+            }
+            Collections.sort(timeline.events);
+
+            if (args.length > 1 && args[1].equals("-events")) {
+                timeline.printEvents();
+            }
+            timeline.printRounds();
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            e.printStackTrace(pw);
+            System.out.println(sw.toString());
+        }
+    }
+
+    public void load(File file) throws Exception {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            }
+            buf.flip();
+
+            if (buf.getInt(0) != MAGIC) {
+                throw new Exception(String.format("Invalid trace file: %s", file));
+            }
+            int recordSize = buf.getInt(4);
+            int capacity = buf.getInt(8);
+            int nodeId = buf.getInt(12);
+            readNames(nodeId, buf);
+
+            for (int i = 0; i < capacity; i++) {
+                int pos = HEADER_SIZE + i * recordSize;
+                if (pos + recordSize > buf.limit()) break;
+                long time = buf.getLong(pos);
+                if (time == 0) continue;
+                Event e = new Event();
+                e.node = nodeId;
+                e.time = time;
+                e.event = buf.get(pos + 8);
+                e.action = buf.get(pos + 9);
+                e.round = buf.getInt(pos + 12);
+                e.peer = buf.getInt(pos + 16);
+                e.arg1 = buf.getInt(pos + 20);
+                e.arg2 = buf.getInt(pos + 24);
+                events.add(e);
+                startTime = Math.min(startTime, time);
+            }
+        }
+    }
+
+    private void readNames(int nodeId, ByteBuffer buf) {
+        int end = 24;
+        while (end < HEADER_SIZE && buf.get(end) != 0) {
+            end++;
+        }
+        byte[] raw = new byte[end - 24];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = buf.get(24 + i);
+        }
+        List<String> actions = new ArrayList<>();
+        HashMap<Integer, String[]> states = new HashMap<>();
+        for (String line : new String(raw, StandardCharsets.UTF_8).split("\n")) {
+            if (line.startsWith("A:")) {
+                actions.add(line.substring(2));
+            } else if (line.startsWith("S")) {
+                String[] t = line.substring(1).split(":", 2);
+                states.put(Integer.parseInt(t[0]), t[1].split(","));
+            }
+        }
+        actionNames.put(nodeId, actions);
+        stateNames.put(nodeId, states);
+    }
+
+    private String actionName(Event e) {
+        List<String> actions = actionNames.get(e.node);
+        return e.action > 0 && e.action <= actions.size() ? actions.get(e.action - 1) : "?";
+    }
+
+    private String stateName(Event e, int ordinal) {
+        String[] names = stateNames.get(e.node).get((int) e.action);
+        return names != null && ordinal >= 0 && ordinal < names.length ? names[ordinal] : String.valueOf(ordinal);
+    }
+
+    private double relative(long time) {
+        return (time - startTime) / 1000000.0;
+    }
+
+    public void printEvents() {
+        for (Event e : events) {
+            String detail;
+            if (e.event == SEND) {
+                detail = String.format("%s r: %d -> %d, cl: %d, len: %d", actionName(e), e.round, e.peer, e.arg1, e.arg2);
+            } else if (e.event == RECEIVE || e.event == BUFFER) {
+                detail = String.format("%s r: %d <- %d, cl: %d, len: %d", actionName(e), e.round, e.peer, e.arg1, e.arg2);
+            } else if (e.event == ROUND) {
+                detail = String.format("phase %d round %d", e.arg1, e.round);
+            } else if (e.event == STATE) {
+                detail = String.format("r: %d %s ----> %s", e.round, stateName(e, e.arg1), stateName(e, e.arg2));
+            } else {
+                detail = "";
+            }
+            System.out.println(String.format("%10.3f #%-4d %-8s %s", relative(e.time), e.node,
+                    e.event < EVENTS.length ? EVENTS[e.event] : "?", detail));
+        }
+        System.out.println();
+    }
+
+    public void printRounds() {
+        // (phase, round) -> node -> time the node advanced into that round
+        TreeMap<Long, TreeMap<Integer, Long>> rounds = new TreeMap<>();
+        HashMap<Integer, List<Event>> roundEventsByNode = new HashMap<>();
+        HashMap<Integer, List<Event>> receivesByNode = new HashMap<>();
+        for (Event e : events) {
+            if (e.event == ROUND) {
+                rounds.computeIfAbsent(key(e.arg1, e.round), k -> new TreeMap<>()).put(e.node, e.time);
+                roundEventsByNode.computeIfAbsent(e.node, k -> new ArrayList<>()).add(e);
+            } else if (e.event == RECEIVE) {
+                receivesByNode.computeIfAbsent(e.node, k -> new ArrayList<>()).add(e);
+            }
+        }
+
+        System.out.println(String.format("%6s %6s %6s %12s %10s %10s %8s %12s", "phase", "round", "nodes", "complete_ms",
+                "round_ms", "spread_ms", "critical", "link"));
+        long prevComplete = -1;
+        int prevPhase = Integer.MIN_VALUE;
+        for (Map.Entry<Long, TreeMap<Integer, Long>> entry : rounds.entrySet()) {
+            int phase = (int) (entry.getKey() >> 32);
+            int round = (int) (long) entry.getKey();
+            TreeMap<Integer, Long> times = entry.getValue();
+
+            int critical = -1;
+            long complete = Long.MIN_VALUE;
+            long first = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Long> t : times.entrySet()) {
+                if (t.getValue() > complete) {
+                    complete = t.getValue();
+                    critical = t.getKey();
+                }
+                first = Math.min(first, t.getValue());
+            }
+
+            String link = criticalLink(critical, complete, round - 1, roundEventsByNode.get(critical),
+                    receivesByNode.getOrDefault(critical, Collections.emptyList()));
+            double roundTime = phase == prevPhase && prevComplete >= 0 ? (complete - prevComplete) / 1000000.0 : 0;
+            System.out.println(String.format("%6d %6d %6d %12.3f %10.3f %10.3f %8d %12s", phase, round, times.size(),
+                    relative(complete), roundTime, (complete - first) / 1000000.0, critical, link));
+            prevComplete = complete;
+            prevPhase = phase;
+        }
+    }
+
+    /*
+     * The node that advanced last held the round back. It was waiting for the last message tagged with
+     * the previous round, the sender of that message is the critical link. If every such message was
+     * already there when the node entered the previous round, the node itself was the bottleneck.
+     */
+    private String criticalLink(int node, long advanceTime, int waitedRound, List<Event> roundEvents,
+            List<Event> receives) {
+        long since = Long.MIN_VALUE;
+        for (Event e : roundEvents) {
+            if (e.time >= advanceTime) break;
+            since = e.time;
+        }
+        Event last = null;
+        for (Event e : receives) {
+            if (e.time > advanceTime) break;
+            if (e.time > since && e.round == waitedRound) {
+                last = e;
+            }
+        }
+        return last == null ? "self" : String.format("%d->%d", last.peer, node);
+    }
+
+    private static long key(int phase, int round) {
+        return ((long) phase << 32) | (round & 0xffffffffL);
+    }
+}